@@ -16,7 +16,7 @@
 package com.stratio.crossdata.connector.cassandra
 
 
-import com.datastax.driver.core.ResultSet
+import com.datastax.driver.core.{ResultSet, Session, Statement, TokenRange}
 import com.datastax.spark.connector.CassandraRowMetadata
 import com.stratio.common.utils.components.logger.impl.SparkLoggerComponent
 import com.stratio.crossdata.connector.cassandra.CassandraAttributeRole.{CassandraAttributeRole, ClusteringKey, Function, Indexed, NonIndexed, PartitionKey, Unknown}
@@ -31,11 +31,39 @@ import org.apache.spark.sql.sources.CatalystToCrossdataAdapter._
 import org.apache.spark.sql.sources.{CatalystToCrossdataAdapter, Filter => SourceFilter}
 import org.apache.spark.sql.{Row, sources}
 
+import scala.collection.JavaConversions._
+import scala.collection.mutable.ArrayBuffer
+import scala.util.Try
+
 object CassandraQueryProcessor extends SQLLikeQueryProcessorUtils with SQLLikeUDFQueryProcessorUtils {
 
   val DefaultLimit = 10000
   type ColumnName = String
 
+  /**
+    * Concurrency of native queries executed as several CQL queries:
+    *   - Queries which don't restrict the partition key are split into `tokenRangeSplits` token ranges. Adjacent ranges
+    *     of the ring (e.g: vnodes) are merged, so small tables aren't read by a query per vnode.
+    *   - Queries restricting the partition key with IN are split into single-partition lookups.
+    * Up to `concurrency` of those queries are executed at a time until the limit is reached. Both settings are read
+    * from the `nativeTokenRangeSplits` and `nativeConcurrency` table options.
+    */
+  case class NativeQueryConf(tokenRangeSplits: Int = NativeQueryConf.DefaultTokenRangeSplits,
+                             concurrency: Int = NativeQueryConf.DefaultConcurrency)
+
+  object NativeQueryConf {
+    val TokenRangeSplitsOption = "nativeTokenRangeSplits"
+    val ConcurrencyOption = "nativeConcurrency"
+
+    val DefaultTokenRangeSplits = 16
+    val DefaultConcurrency = 8
+
+    def fromOptions(options: Map[String, String]): NativeQueryConf = NativeQueryConf(
+      Try(options(TokenRangeSplitsOption).toInt).getOrElse(DefaultTokenRangeSplits),
+      Try(options(ConcurrencyOption).toInt).getOrElse(DefaultConcurrency)
+    )
+  }
+
   case class CassandraQueryProcessorContext(udfs: Map[String, NativeUDF]) extends SQLLikeUDFQueryProcessorUtils.ContextWithUDFs
   override type ProcessingContext = CassandraQueryProcessorContext
 
@@ -51,7 +79,8 @@ object CassandraQueryProcessor extends SQLLikeQueryProcessorUtils with SQLLikeUD
                        requiredColumns: Seq[String],
                        filters: Array[SourceFilter],
                        limit: Int,
-                       udfs: Map[String, NativeUDF] = Map.empty): String = {
+                       udfs: Map[String, NativeUDF] = Map.empty,
+                       additionalConditions: Seq[String] = Seq.empty): String = {
 
     implicit val procCtx = CassandraQueryProcessorContext(udfs)
 
@@ -67,7 +96,8 @@ object CassandraQueryProcessor extends SQLLikeQueryProcessorUtils with SQLLikeUD
 
     }
 
-    val filter = if (filters.nonEmpty) filters.map(filterToCQL).mkString("WHERE ", " AND ", "") else ""
+    val conditions = filters.map(filterToCQL) ++ additionalConditions
+    val filter = if (conditions.nonEmpty) conditions.mkString("WHERE ", " AND ", "") else ""
     val columns = requiredColumns.map(expandAttribute).mkString(", ")
 
     s"SELECT $columns FROM $tableQN $filter LIMIT $limit ALLOW FILTERING"
@@ -109,17 +139,25 @@ class CassandraQueryProcessor(cassandraRelation: CassandraXDSourceRelation, logi
               projects.map(buildAggregationExpression)
           }
 
-          val cqlQuery = buildNativeQuery(
-            cassandraRelation.tableDef.name,
-            projectsString,
-            cassandraPlan.filters,
-            cassandraPlan.limit.getOrElse(CassandraQueryProcessor.DefaultLimit),
-            cassandraPlan.udfsMap map { case (k, v) => k.toString -> v }
-          )
-          val resultSet = cassandraRelation.connector.withSessionDo { session =>
-            session.execute(cqlQuery)
+          val requiredColumns = annotateRepeatedNames(cassandraPlan.projects.map(_.name)).toArray
+
+          if (isTokenRangeScan(cassandraPlan)) {
+            tokenRangeScan(projectsString, cassandraPlan, requiredColumns)
+          } else if (partitionLookups(cassandraPlan).isDefined) {
+            multiPartitionLookup(projectsString, cassandraPlan, requiredColumns)
+          } else {
+            val cqlQuery = buildNativeQuery(
+              cassandraRelation.tableDef.name,
+              projectsString,
+              cassandraPlan.filters,
+              cassandraPlan.limit.getOrElse(CassandraQueryProcessor.DefaultLimit),
+              cassandraPlan.udfsMap map { case (k, v) => k.toString -> v }
+            )
+            val resultSet = cassandraRelation.connector.withSessionDo { session =>
+              session.execute(cqlQuery)
+            }
+            sparkResultFromCassandra(requiredColumns, resultSet)
           }
-          sparkResultFromCassandra(annotateRepeatedNames(cassandraPlan.projects.map(_.name)).toArray, resultSet)
         }
 
       }
@@ -211,6 +249,141 @@ class CassandraQueryProcessor(cassandraRelation: CassandraXDSourceRelation, logi
 
   }
 
+  private[this] def isTokenRangeScan(cassandraPlan: CassandraPlan): Boolean = {
+    val partitionKeyColumns = cassandraRelation.tableDef.partitionKey.map(_.columnName).toSet
+    cassandraPlan.basePlan.isInstanceOf[SimpleLogicalPlan] &&
+      cassandraRelation.nativeQueryConf.tokenRangeSplits > 1 &&
+      !cassandraPlan.filters.flatMap(columnNameFromFilter).exists(partitionKeyColumns.contains)
+  }
+
+  /**
+    * @return The values of the partition key (in order) of each partition looked up by a query restricting the
+    *         partition key with IN, and the rest of filters of the query.
+    */
+  private[this] def partitionLookups(cassandraPlan: CassandraPlan): Option[(Seq[Seq[Any]], Array[SourceFilter])] = {
+    val partitionKeyColumns = cassandraRelation.tableDef.partitionKey.map(_.columnName)
+    val (partitionKeyFilters, otherFilters) =
+      cassandraPlan.filters.partition(columnNameFromFilter(_).exists(partitionKeyColumns.contains))
+
+    val valuesByColumn: Map[ColumnName, Seq[Any]] = partitionKeyFilters.collect {
+      case sources.EqualTo(column, value) if !value.isInstanceOf[Attribute] => column -> Seq(value)
+      case sources.In(column, values) => column -> values.toSeq
+    }.toMap
+
+    val isMultiPartitionLookup = cassandraPlan.basePlan.isInstanceOf[SimpleLogicalPlan] &&
+      partitionKeyFilters.length == partitionKeyColumns.length &&
+      partitionKeyColumns.forall(valuesByColumn.contains) &&
+      valuesByColumn.values.exists(_.distinct.length > 1)
+
+    if (isMultiPartitionLookup) {
+      val lookups = partitionKeyColumns.foldLeft(Seq(Seq.empty[Any])) { (partialKeys, column) =>
+        for (partialKey <- partialKeys; value <- valuesByColumn(column).distinct) yield partialKey :+ value
+      }
+      Some((lookups, otherFilters))
+    } else {
+      None
+    }
+  }
+
+  /* Each partition is looked up by a single-partition query. As every partition key column is a bind variable, the
+   * driver routes each query to a replica of its partition instead of having a single coordinator fanning out */
+  private[this] def multiPartitionLookup(projects: Seq[String],
+                                         cassandraPlan: CassandraPlan,
+                                         requiredColumns: Array[ColumnName]): Array[Row] = {
+
+    val limit = cassandraPlan.limit.getOrElse(CassandraQueryProcessor.DefaultLimit)
+    val (lookups, otherFilters) = partitionLookups(cassandraPlan).get
+    val partitionKey = cassandraRelation.tableDef.partitionKey
+
+    val cqlQuery = buildNativeQuery(
+      cassandraRelation.tableDef.name,
+      projects,
+      otherFilters,
+      limit,
+      cassandraPlan.udfsMap map { case (k, v) => k.toString -> v },
+      partitionKey.map(column => s"${column.columnName} = ?")
+    )
+
+    cassandraRelation.connector.withSessionDo { session =>
+      val lookupQuery = cassandraRelation.preparedStatement(session, cqlQuery)
+
+      def statement(key: Seq[Any]): Statement = {
+        val values: Seq[AnyRef] = (partitionKey zip key) map { case (column, value) =>
+          column.columnType.converterToCassandra.convert(value).asInstanceOf[AnyRef]
+        }
+        lookupQuery.bind(values: _*)
+      }
+
+      executeConcurrently(session, lookups map statement, requiredColumns, limit)
+    }
+  }
+
+  /* The table is read by token ranges */
+  private[this] def tokenRangeScan(projects: Seq[String],
+                                   cassandraPlan: CassandraPlan,
+                                   requiredColumns: Array[ColumnName]): Array[Row] = {
+
+    val limit = cassandraPlan.limit.getOrElse(CassandraQueryProcessor.DefaultLimit)
+    val splits = cassandraRelation.nativeQueryConf.tokenRangeSplits
+    val token = cassandraRelation.tableDef.partitionKey.map(_.columnName).mkString("token(", ", ", ")")
+
+    def cqlQuery(tokenConditions: String*): String = buildNativeQuery(
+      cassandraRelation.tableDef.name,
+      projects,
+      cassandraPlan.filters,
+      limit,
+      cassandraPlan.udfsMap map { case (k, v) => k.toString -> v },
+      tokenConditions
+    )
+
+    cassandraRelation.connector.withSessionDo { session =>
+      val boundedRangeQuery = cassandraRelation.preparedStatement(session, cqlQuery(s"$token > ?", s"$token <= ?"))
+      // The range which ends at the minimum token, i.e: the end of the ring
+      val lastRangeQuery = cassandraRelation.preparedStatement(session, cqlQuery(s"$token > ?"))
+
+      def statement(range: TokenRange): Statement =
+        if (range.getEnd.compareTo(range.getStart) > 0)
+          boundedRangeQuery.bind().setToken(0, range.getStart).setToken(1, range.getEnd)
+        else
+          lastRangeQuery.bind().setToken(0, range.getStart)
+
+      val ringRanges = session.getCluster.getMetadata.getTokenRanges.toSeq.sorted
+      val ranges = tokenRanges(ringRanges, splits) flatMap (_.unwrap().toSeq)
+
+      executeConcurrently(session, ranges map statement, requiredColumns, limit)
+    }
+  }
+
+  /* Ranges which cover the ring in `splits` queries: adjacent ring ranges (e.g: the vnodes) are merged when there are
+   * more ring ranges than splits, and they are split evenly otherwise. The range which wraps around the end of the ring
+   * is read by one more query */
+  private[this] def tokenRanges(sortedRingRanges: Seq[TokenRange], splits: Int): Seq[TokenRange] =
+    if (sortedRingRanges.size > splits) {
+      val ringRangesPerRange = math.ceil(sortedRingRanges.size.toDouble / math.max(1, splits)).toInt
+      sortedRingRanges.grouped(ringRangesPerRange).map(_ reduce (_ mergeWith _)).toSeq
+    } else {
+      val rangesPerRingRange = math.max(1, math.ceil(splits.toDouble / sortedRingRanges.size).toInt)
+      sortedRingRanges flatMap (_.splitEvenly(rangesPerRingRange).toSeq)
+    }
+
+  /* Statements are executed asynchronously in waves of `concurrency` queries. The results of each wave are merged in
+   * order and no more waves are launched once the limit is reached */
+  private[this] def executeConcurrently(session: Session,
+                                        statements: Seq[Statement],
+                                        requiredColumns: Array[ColumnName],
+                                        limit: Int): Array[Row] = {
+    val rows = ArrayBuffer.empty[Row]
+    val waves = statements.grouped(math.max(1, cassandraRelation.nativeQueryConf.concurrency))
+    while (waves.hasNext && rows.size < limit) {
+      val results = waves.next() map (statement => session.executeAsync(statement))
+      results foreach { result =>
+        if (rows.size < limit) rows ++= sparkResultFromCassandra(requiredColumns, result.getUninterruptibly)
+        else result.cancel(true)
+      }
+    }
+    rows.take(limit).toArray
+  }
+
   private[this] def columnNameFromFilter(sourceFilter: SourceFilter): Option[ColumnName] = sourceFilter match {
     case sources.EqualTo(attribute, _) => Some(attribute)
     case sources.In(attribute, _) => Some(attribute)
@@ -231,7 +404,6 @@ class CassandraQueryProcessor(cassandraRelation: CassandraXDSourceRelation, logi
     }
 
   private[this] def sparkResultFromCassandra(requiredColumns: Array[ColumnName], resultSet: ResultSet): Array[Row] = {
-    import scala.collection.JavaConversions._
     val cassandraRowMetadata = CassandraRowMetadata.fromColumnNames(requiredColumns)
     resultSet.all().map(CassandraSQLRow.fromJavaDriverRow(_, cassandraRowMetadata)).toArray
   }
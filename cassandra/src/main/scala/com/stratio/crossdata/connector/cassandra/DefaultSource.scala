@@ -29,7 +29,8 @@ import com.stratio.crossdata.connector.cassandra.statements.{CreateKeyspaceState
 import com.stratio.crossdata.connector.{FunctionInventory, TableInventory, TableManipulation}
 import org.apache.spark.SparkConf
 import org.apache.spark.sql.SaveMode.{Append, ErrorIfExists, Ignore, Overwrite}
-import org.apache.spark.sql.cassandra.{CassandraXDSourceRelation, DefaultSource => CassandraConnectorDS}
+import com.stratio.crossdata.connector.cassandra.CassandraQueryProcessor.NativeQueryConf
+import org.apache.spark.sql.cassandra.{CassandraXDSourceRelation, NativeWriteConf, DefaultSource => CassandraConnectorDS}
 import org.apache.spark.sql.sources.{BaseRelation, DataSourceRegister}
 import org.apache.spark.sql.types.{DataTypes, StringType, StructField, StructType}
 import org.apache.spark.sql.{DataFrame, SQLContext, SaveMode}
@@ -81,8 +82,7 @@ class DefaultSource extends CassandraConnectorDS with TableInventory with Functi
   override def createRelation(sqlContext: SQLContext,
                               parameters: Map[String, String]): BaseRelation = {
 
-    val (tableRef, options) = TableRefAndOptions(parameters)
-    CassandraXDSourceRelation(tableRef, sqlContext, options)
+    xdSourceRelation(sqlContext, parameters)
   }
 
   /**
@@ -93,8 +93,7 @@ class DefaultSource extends CassandraConnectorDS with TableInventory with Functi
                               parameters: Map[String, String],
                               schema: StructType): BaseRelation = {
 
-    val (tableRef, options) = TableRefAndOptions(parameters)
-    CassandraXDSourceRelation(tableRef, sqlContext, options, Option(schema))
+    xdSourceRelation(sqlContext, parameters, Option(schema))
   }
 
   /**
@@ -106,8 +105,8 @@ class DefaultSource extends CassandraConnectorDS with TableInventory with Functi
                               parameters: Map[String, String],
                               data: DataFrame): BaseRelation = {
 
-    val (tableRef, options) = TableRefAndOptions(parameters)
-    val table = CassandraXDSourceRelation(tableRef, sqlContext, options)
+    val (tableRef, _) = TableRefAndOptions(parameters)
+    val table = xdSourceRelation(sqlContext, parameters)
 
     mode match {
       case Append => table.insert(data, overwrite = false)
@@ -128,11 +127,20 @@ class DefaultSource extends CassandraConnectorDS with TableInventory with Functi
         }
     }
 
-    CassandraXDSourceRelation(tableRef, sqlContext, options)
+    xdSourceRelation(sqlContext, parameters)
   }
 
 
 
+  private def xdSourceRelation(sqlContext: SQLContext,
+                               parameters: Map[String, String],
+                               schema: Option[StructType] = None): CassandraXDSourceRelation = {
+    val (tableRef, options) = TableRefAndOptions(parameters)
+    CassandraXDSourceRelation(
+      tableRef, sqlContext, options, schema, NativeQueryConf.fromOptions(parameters), NativeWriteConf.fromOptions(parameters)
+    )
+  }
+
   override def nativeBuiltinFunctions: Seq[UDF] = {
     //TODO: Complete the built-in function inventory
     Seq(
@@ -232,10 +240,11 @@ class DefaultSource extends CassandraConnectorDS with TableInventory with Functi
 
   /**
    * @param tMeta C* Metadata for a given table
-   * @return A table description obtained after translate its C* meta data.
+   * @return A table description obtained after translate its C* meta data. Its fingerprint is taken from the
+   *         table CQL definition so it only changes when the table schema does.
    */
   private def tableMeta2Table(tMeta: TableMetadata): Table =
-    Table(tMeta.getName, Some(tMeta.getKeyspace.getName))
+    Table(tMeta.getName, Some(tMeta.getKeyspace.getName), fingerprint = Some(TableInventory.fingerprint(tMeta.exportAsString)))
 
   private lazy val systemTableRegex = "^system(_.+)?".r
 
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2015 Stratio (http://stratio.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.spark.sql.cassandra
+
+import java.util.concurrent.Executor
+
+import com.datastax.driver.core.{BatchStatement, ResultSetFuture, Statement}
+import com.datastax.spark.connector.cql.{CassandraConnector, TableDef}
+import com.datastax.spark.connector.util.Quote.quote
+import com.datastax.spark.connector.writer.{PerRowWriteOptionValue, StaticWriteOptionValue, WriteConf}
+import org.apache.spark.sql.Row
+
+import scala.util.Try
+
+/**
+  * Settings of the inserts executed by the Cassandra driver instead of the Spark Cassandra connector writer:
+  *   - `nativeInsertMaxRows`: Inserts of local rows (e.g: INSERT INTO ... VALUES) up to this number of rows are
+  *     executed without launching a Spark job (1000 by default, 0 disables them).
+  *   - `writeTargetLatencyMs`: If defined, the tasks write their rows with the Cassandra driver instead of the Spark
+  *     Cassandra connector writer, adapting the number of concurrent writes of each task so that the write latency stays
+  *     below this target.
+  *   - `writeMaxConcurrency`: Maximum number of concurrent writes of each task (8 by default).
+  *   - `writeMaxBatchRows`: Maximum number of rows of the same partition grouped in an unlogged batch (100 by default).
+  *
+  * The consistency level, TTL and timestamp of the table write configuration are applied to every write. Tables with
+  * a TTL or timestamp per row are always written by the Spark Cassandra connector.
+  */
+case class NativeWriteConf(insertMaxRows: Int = NativeWriteConf.DefaultInsertMaxRows,
+                           targetLatencyMs: Option[Long] = None,
+                           maxConcurrency: Int = NativeWriteConf.DefaultMaxConcurrency,
+                           maxBatchRows: Int = NativeWriteConf.DefaultMaxBatchRows)
+
+object NativeWriteConf {
+  val InsertMaxRowsOption = "nativeInsertMaxRows"
+  val TargetLatencyOption = "writeTargetLatencyMs"
+  val MaxConcurrencyOption = "writeMaxConcurrency"
+  val MaxBatchRowsOption = "writeMaxBatchRows"
+
+  val DefaultInsertMaxRows = 1000
+  val DefaultMaxConcurrency = 8
+  val DefaultMaxBatchRows = 100
+
+  def fromOptions(options: Map[String, String]): NativeWriteConf = NativeWriteConf(
+    Try(options(InsertMaxRowsOption).toInt).getOrElse(DefaultInsertMaxRows),
+    Try(options(TargetLatencyOption).toLong).toOption,
+    Try(options(MaxConcurrencyOption).toInt).getOrElse(DefaultMaxConcurrency),
+    Try(options(MaxBatchRowsOption).toInt).getOrElse(DefaultMaxBatchRows)
+  )
+}
+
+/**
+  * Writes rows with asynchronous prepared inserts. Rows of the same partition are grouped in unlogged batches, which
+  * the driver routes to a replica of the partition.
+  */
+private[cassandra] class CassandraNativeWriter(connector: CassandraConnector,
+                                               tableDef: TableDef,
+                                               columns: Seq[String],
+                                               conf: NativeWriteConf,
+                                               writeConf: WriteConf) extends Serializable {
+
+  import CassandraNativeWriter._
+
+  def write(rows: Iterator[Row]): Unit = connector.withSessionDo { session =>
+
+    val insert = session.prepare(
+      s"INSERT INTO ${quote(tableDef.keyspaceName)}.${quote(tableDef.tableName)} " +
+        s"${columns.map(quote).mkString("(", ", ", ")")} VALUES ${columns.map(_ => "?").mkString("(", ", ", ")")}" +
+        usingClause(writeConf)
+    )
+    insert.setConsistencyLevel(writeConf.consistencyLevel)
+    val converters = columns map (column => tableDef.columnByName(column).columnType.converterToCassandra)
+    val partitionKeyIndexes = tableDef.partitionKey map (column => columns.indexOf(column.columnName))
+
+    val throttle = new AdaptiveThrottle(conf.maxConcurrency, conf.targetLatencyMs)
+    val inFlight = new java.util.ArrayDeque[ResultSetFuture]()
+
+    def execute(statement: Statement): Unit = {
+      while (inFlight.size >= throttle.concurrency) inFlight.poll().getUninterruptibly
+      val start = System.nanoTime()
+      val result = session.executeAsync(statement)
+      result.addListener(new Runnable {
+        override def run(): Unit = throttle.completed(System.nanoTime() - start)
+      }, SameThreadExecutor)
+      inFlight.add(result)
+    }
+
+    def partitionKey(row: Row): Seq[Any] = partitionKeyIndexes map (idx => if (idx >= 0) row.get(idx) else null)
+
+    def bind(row: Row): Statement = {
+      val values = (0 until row.length) map { idx =>
+        if (row.isNullAt(idx)) null else converters(idx).convert(row.get(idx)).asInstanceOf[AnyRef]
+      }
+      insert.bind(values: _*)
+    }
+
+    rows.grouped(PartitioningWindowRows) foreach { window =>
+      window.groupBy(partitionKey).values foreach { partitionRows =>
+        partitionRows.grouped(math.max(1, conf.maxBatchRows)) foreach {
+          case Seq(row) => execute(bind(row))
+          case batchRows =>
+            val batch = new BatchStatement(BatchStatement.Type.UNLOGGED)
+            batch.setConsistencyLevel(writeConf.consistencyLevel)
+            batchRows foreach (row => batch.add(bind(row)))
+            execute(batch)
+        }
+      }
+    }
+
+    while (!inFlight.isEmpty) inFlight.poll().getUninterruptibly
+  }
+
+}
+
+private[cassandra] object CassandraNativeWriter {
+
+  // Number of consecutive rows whose partitions are grouped together
+  val PartitioningWindowRows = 1000
+
+  /**
+    * Whether the writes of a table can be executed by the driver, i.e: its TTL and timestamp aren't taken from the rows.
+    */
+  def supports(writeConf: WriteConf): Boolean =
+    Seq(writeConf.ttl.value, writeConf.timestamp.value) forall {
+      case _: PerRowWriteOptionValue[_] => false
+      case _ => true
+    }
+
+  private def usingClause(writeConf: WriteConf): String = {
+    val options = Seq(
+      writeConf.ttl.value match {
+        case StaticWriteOptionValue(ttl) => Some(s"TTL $ttl")
+        case _ => None
+      },
+      writeConf.timestamp.value match {
+        case StaticWriteOptionValue(timestamp) => Some(s"TIMESTAMP $timestamp")
+        case _ => None
+      }
+    ).flatten
+
+    if (options.isEmpty) "" else options.mkString(" USING ", " AND ", "")
+  }
+
+  private object SameThreadExecutor extends Executor {
+    override def execute(command: Runnable): Unit = command.run()
+  }
+
+  /**
+    * Limits the number of concurrent writes. If there is a target latency, the limit is increased by one write after
+    * each write faster than the target and halved after each slower one (up to the maximum concurrency).
+    */
+  class AdaptiveThrottle(maxConcurrency: Int, targetLatencyMs: Option[Long]) {
+
+    @volatile private var currentConcurrency: Int = targetLatencyMs.fold(math.max(1, maxConcurrency))(_ => 1)
+
+    def concurrency: Int = currentConcurrency
+
+    def completed(latencyNanos: Long): Unit = targetLatencyMs foreach { target =>
+      synchronized {
+        currentConcurrency =
+          if (latencyNanos / 1000000 > target) math.max(1, currentConcurrency / 2)
+          else math.min(math.max(1, maxConcurrency), currentConcurrency + 1)
+      }
+    }
+  }
+
+}
@@ -21,7 +21,7 @@ import java.io.IOException
 import java.net.InetAddress
 import java.util.UUID
 
-import com.datastax.driver.core.Metadata
+import com.datastax.driver.core.{Cluster, Metadata, PreparedStatement, Session}
 import com.datastax.spark.connector.cql.{CassandraConnector, CassandraConnectorConf, Schema}
 import com.datastax.spark.connector.rdd.partitioner.{CassandraPartitionGenerator, DataSizeEstimates}
 import com.datastax.spark.connector.rdd.{CassandraRDD, ReadConf}
@@ -32,6 +32,7 @@ import com.datastax.spark.connector.writer.{SqlRowWriter, WriteConf}
 import com.datastax.spark.connector.{ColumnName, ColumnRef, FunctionCallRef, SomeColumns, _}
 import com.stratio.common.utils.components.logger.impl.SparkLoggerComponent
 import com.stratio.crossdata.connector.cassandra.CassandraQueryProcessor
+import com.stratio.crossdata.connector.cassandra.CassandraQueryProcessor.NativeQueryConf
 import com.stratio.crossdata.connector.{NativeFunctionExecutor, NativeScan}
 import org.apache.spark.rdd.RDD
 import org.apache.spark.sql.cassandra.DataTypeConverter.toStructField
@@ -58,7 +59,9 @@ class CassandraXDSourceRelation(tableRef: TableRef,
                                 val connector: CassandraConnector,
                                 readConf: ReadConf,
                                 writeConf: WriteConf,
-                                @transient override val sqlContext: SQLContext)
+                                @transient override val sqlContext: SQLContext,
+                                val nativeQueryConf: NativeQueryConf = NativeQueryConf(),
+                                val nativeWriteConf: NativeWriteConf = NativeWriteConf())
   extends BaseRelation
   with InsertableRelation
   with PrunedFilteredScan
@@ -102,6 +105,28 @@ class CassandraXDSourceRelation(tableRef: TableRef,
     case _ => false
   }
 
+  // Statements prepared by the native queries, with the cluster which prepared them (the least recently used first)
+  @transient private lazy val preparedStatements =
+    new java.util.LinkedHashMap[String, (Cluster, PreparedStatement)](16, 0.75f, true) {
+      override def removeEldestEntry(eldest: java.util.Map.Entry[String, (Cluster, PreparedStatement)]): Boolean =
+        size > MaxPreparedStatements
+    }
+
+  private val MaxPreparedStatements = 100
+
+  /**
+    * Prepares a native query just once, unless the connector has opened a new cluster since it was prepared.
+    */
+  def preparedStatement(session: Session, cql: String): PreparedStatement = preparedStatements.synchronized {
+    Option(preparedStatements.get(cql)) collect {
+      case (cluster, statement) if cluster eq session.getCluster => statement
+    } getOrElse {
+      val statement = session.prepare(cql)
+      preparedStatements.put(cql, (session.getCluster, statement))
+      statement
+    }
+  }
+
   // ~~ NativeScan implementation 
 
   lazy val tableDef = Schema.tableFromCassandra(connector, tableRef.keyspace, tableRef.table)
@@ -119,11 +144,27 @@ class CassandraXDSourceRelation(tableRef: TableRef,
       }
     }
 
-    implicit val rwf = SqlRowWriter.Factory
-    val columns = SomeColumns(data.columns.map(x => x: ColumnRef): _*)
-    data.rdd.saveToCassandra(tableRef.keyspace, tableRef.table, columns, writeConf)
+    data.queryExecution.optimizedPlan match {
+      case LocalRelation(output, rows)
+        if rows.length <= nativeWriteConf.insertMaxRows && CassandraNativeWriter.supports(writeConf) =>
+        // Small local inserts (e.g: INSERT INTO ... VALUES) are written by the driver without launching a Spark job
+        val toScala = CatalystTypeConverters.createToScalaConverter(StructType.fromAttributes(output))
+        nativeWriter(data.columns).write(rows.iterator.map(row => toScala(row).asInstanceOf[Row]))
+
+      case _ if nativeWriteConf.targetLatencyMs.isDefined && CassandraNativeWriter.supports(writeConf) =>
+        val writer = nativeWriter(data.columns)
+        data.rdd.foreachPartition(rows => writer.write(rows))
+
+      case _ =>
+        implicit val rwf = SqlRowWriter.Factory
+        val columns = SomeColumns(data.columns.map(x => x: ColumnRef): _*)
+        data.rdd.saveToCassandra(tableRef.keyspace, tableRef.table, columns, writeConf)
+    }
   }
 
+  private def nativeWriter(columns: Seq[String]): CassandraNativeWriter =
+    new CassandraNativeWriter(connector, tableDef, columns, nativeWriteConf, writeConf)
+
   override def sizeInBytes: Long = {
     // If it's not found, use SQLConf default setting
     tableSizeInBytes.getOrElse(sqlContext.conf.defaultSizeInBytes)
@@ -330,7 +371,9 @@ object CassandraXDSourceRelation {
   def apply(tableRef: TableRef,
             sqlContext: SQLContext,
             options: CassandraSourceOptions = CassandraSourceOptions(),
-            schema: Option[StructType] = None): CassandraXDSourceRelation = {
+            schema: Option[StructType] = None,
+            nativeQueryConf: NativeQueryConf = NativeQueryConf(),
+            nativeWriteConf: NativeWriteConf = NativeWriteConf()): CassandraXDSourceRelation = {
 
     val sparkConf = sqlContext.sparkContext.getConf
     val sqlConf = sqlContext.getAllConfs
@@ -365,7 +408,9 @@ object CassandraXDSourceRelation {
       connector = cassandraConnector,
       readConf = readConf,
       writeConf = writeConf,
-      sqlContext = sqlContext)
+      sqlContext = sqlContext,
+      nativeQueryConf = nativeQueryConf,
+      nativeWriteConf = nativeWriteConf)
   }
 
 }
\ No newline at end of file
@@ -47,6 +47,14 @@ class CassandraConnectorIT extends CassandraWithSharedContext {
       result should have length 0
     }
 
+    it should s"support a query with limit and without partition key filters for $executionType execution" in {
+      assumeEnvironmentIsUpAndRunning
+
+      val result = sql(s"SELECT id FROM $Table LIMIT 3").collect(executionType)
+      result should have length 3
+      result.map(_.getInt(0)).distinct should have length 3
+    }
+
     it should s"support a (SELECT column) for $executionType execution" in {
 
       assumeEnvironmentIsUpAndRunning
@@ -70,6 +78,13 @@ class CassandraConnectorIT extends CassandraWithSharedContext {
       result should have length 3
     }
 
+    it should s"support a (SELECT * ... WHERE LAST_PK_COLUMN IN (...) LIMIT _) for $executionType execution" in {
+      assumeEnvironmentIsUpAndRunning
+
+      val result = sql(s"SELECT id FROM $Table WHERE id IN (2,4,6,8,10) LIMIT 2").collect(executionType)
+      result should have length 2
+    }
+
     it should s"support a (SELECT * ...  WHERE CK._1 = _ AND CK._2 = _) for $executionType execution" in {
       assumeEnvironmentIsUpAndRunning
 
@@ -16,6 +16,7 @@
 package com.stratio.crossdata.connector.cassandra
 
 import org.apache.spark.sql.Row
+import org.apache.spark.sql.cassandra.NativeWriteConf
 import org.junit.runner.RunWith
 import org.scalatest.junit.JUnitRunner
 
@@ -159,4 +160,31 @@ class CassandraInsertTableIT extends CassandraInsertCollection {
       )
   }
 
+  it should "insert rows through the driver adapting the write concurrency to the target latency" in {
+    val throttledTable = "throttledInserts"
+    sql(
+      s"""|CREATE TEMPORARY TABLE $throttledTable
+          |USING $SourceProvider
+          |OPTIONS (
+          |keyspace '$Catalog',
+          |table '$Table',
+          |cluster '$ClusterName',
+          |spark_cassandra_connection_host '$CassandraHost',
+          |${NativeWriteConf.InsertMaxRowsOption} '0',
+          |${NativeWriteConf.TargetLatencyOption} '500',
+          |${NativeWriteConf.MaxConcurrencyOption} '2'
+          |)""".stripMargin)
+
+    _xdContext.sql(s"INSERT INTO $throttledTable(id, age, name) VALUES (35, 40, 'Ada'), (36, 41, 'Alan')").collect() should be(Row(2) :: Nil)
+
+    //EXPECTATION
+    val results = sql(s"select id, age, name from $Table where id=35 or id=36").collect()
+
+    results should have length 2
+    results should contain allOf(
+      Row(35, 40, "Ada"),
+      Row(36, 41, "Alan")
+      )
+  }
+
 }
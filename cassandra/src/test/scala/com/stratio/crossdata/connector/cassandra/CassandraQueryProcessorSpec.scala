@@ -62,6 +62,14 @@ class CassandraQueryProcessorSpec extends BaseXDTest {
     query should be(s"SELECT $ColumnId FROM $TableQN WHERE $ColumnAge = $ValueAge AND $ColumnId = '$ValueId' LIMIT $Limit ALLOW FILTERING")
   }
 
+  it should "build a query restricted to a token range" in {
+    val query = CassandraQueryProcessor.buildNativeQuery(
+      TableQN, Array(ColumnId), Array(sources.EqualTo(ColumnAge, ValueAge)), Limit,
+      additionalConditions = Seq(s"token($ColumnId) > ?", s"token($ColumnId) <= ?"))
+
+    query should be(s"SELECT $ColumnId FROM $TableQN WHERE $ColumnAge = $ValueAge AND token($ColumnId) > ? AND token($ColumnId) <= ? LIMIT $Limit ALLOW FILTERING")
+  }
+
   it should "build a query with a IN clause" in {
     val query = CassandraQueryProcessor.buildNativeQuery(
       TableQN, Array(ColumnId), Array(sources.In(ColumnAge, Array(ValueAge, ValueAge2))), Limit)
@@ -93,11 +93,31 @@ trait TableInventory extends GenerateConnectorOptions{
    */
   def listTables(context: SQLContext, options: Map[String, String]): Seq[Table]
 
+  /**
+   * Lists the tables like [[listTables]] but skipping the schema inference of those tables which haven't
+   * changed since they were imported, that is, whose fingerprint matches the one of the previous import.
+   *
+   * @param context SQLContext at which the command will be executed.
+   * @param options SQL Sentence user options
+   * @param previousImport Provides the description (including schema and fingerprint) of a table imported before
+   * @return A list of tables descriptions extracted from the datasource using a connector.
+   */
+  def listTables(context: SQLContext, options: Map[String, String], previousImport: Table => Option[Table]): Seq[Table] =
+    listTables(context, options)
+
 }
 
 object TableInventory {
-  //Table description
-  case class Table(tableName: String, database: Option[String] = None, schema: Option[StructType] = None)
+  //Table description. The fingerprint, if any, identifies the version of the table metadata its schema was inferred from
+  case class Table(tableName: String,
+                   database: Option[String] = None,
+                   schema: Option[StructType] = None,
+                   fingerprint: Option[String] = None)
+
+  // Option under which the fingerprint of an imported table is kept in the catalog
+  val FingerprintOption = "crossdata_import_fingerprint"
+
+  def fingerprint(metadata: String): String = Integer.toHexString(metadata.hashCode)
 }
 
 /* Interface for providing lists and UDF discovery services */
@@ -37,7 +37,6 @@ import org.apache.spark.sql.catalyst.optimizer.Optimizer
 import org.apache.spark.sql.catalyst.plans.logical.{LocalRelation, LogicalPlan}
 import org.apache.spark.sql.crossdata.catalog.XDCatalog.{CrossdataApp, IndexIdentifier}
 import org.apache.spark.sql.crossdata.catalog.interfaces.{XDCatalogCommon, XDPersistentCatalog, XDStreamingCatalog, XDTemporaryCatalog}
-import org.apache.spark.sql.crossdata.catalog.temporary.HashmapCatalog
 import org.apache.spark.sql.crossdata.catalog.utils.CatalogUtils
 import org.apache.spark.sql.crossdata.catalog.{CatalogChain, XDCatalog}
 import org.apache.spark.sql.crossdata.catalyst.analysis._
@@ -114,7 +113,7 @@ class XDContext protected(@transient val sc: SparkContext,
   @transient
   override protected[sql] lazy val catalog: XDCatalog = {
 
-    val temporaryCatalog: XDTemporaryCatalog = new HashmapCatalog(conf)
+    val temporaryCatalog: XDTemporaryCatalog = CatalogUtils.temporaryCatalog(conf, catalogConfig)
     val externalCatalog: XDPersistentCatalog = CatalogUtils.externalCatalog(conf, catalogConfig)
     val streamingCatalog: Option[XDStreamingCatalog] = CatalogUtils.streamingCatalog(conf, xdConfig)
 
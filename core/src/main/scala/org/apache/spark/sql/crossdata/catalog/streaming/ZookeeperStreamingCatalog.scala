@@ -112,9 +112,16 @@ class ZookeeperStreamingCatalog(val catalystConf: CatalystConf, serverConfig: Co
     ephemeralQueriesDAO.dao.exists(queryAlias)
 
   override def createEphemeralQuery(ephemeralQuery: EphemeralQueryModel): Either[String, EphemeralQueryModel] =
-    if (!existsEphemeralQuery(ephemeralQuery.alias))
+    if (existsEphemeralQuery(ephemeralQuery.alias)) {
+      Left("Ephemeral query exists")
+    } else if (!coversWindow(ephemeralQuery)) {
+      Left("The window of the ephemeral query (plus the allowed lateness) is larger than the max window of its table")
+    } else {
       Right(ephemeralQueriesDAO.dao.upsert(ephemeralQuery.alias, ephemeralQuery))
-    else Left("Ephemeral query exists")
+    }
+
+  private def coversWindow(ephemeralQuery: EphemeralQueryModel): Boolean =
+    getEphemeralTable(ephemeralQuery.ephemeralTableName).forall(_.options.coversWindow(ephemeralQuery.window))
 
   override def getEphemeralQuery(queryAlias: String): Option[EphemeralQueryModel] =
     ephemeralQueriesDAO.dao.get(queryAlias)
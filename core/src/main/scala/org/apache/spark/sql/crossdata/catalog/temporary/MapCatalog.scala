@@ -30,7 +30,7 @@ abstract class MapCatalog(catalystConf: CatalystConf) extends XDTemporaryCatalog
 
   protected def newMap: mutable.Map[String, LogicalPlan]
 
-  private val tables: mutable.Map[String, LogicalPlan] = newMap
+  protected val tables: mutable.Map[String, LogicalPlan] = newMap
   private val views: mutable.Map[String, LogicalPlan] = newMap
 
   implicit def tableIdent2string(tident: TableIdentifierNormalized): String = XDCatalogCommon.stringifyTableIdentifierNormalized(tident)
@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2015 Stratio (http://stratio.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.spark.sql.crossdata.catalog.temporary
+
+import java.io._
+import java.lang.ref.{ReferenceQueue, WeakReference}
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.{Files, Paths, StandardOpenOption}
+import java.util.concurrent.atomic.AtomicLong
+
+import com.typesafe.config.Config
+import org.apache.spark.rdd.RDD
+import org.apache.spark.sql.SQLContext
+import org.apache.spark.sql.catalyst.CatalystConf
+import org.apache.spark.sql.catalyst.InternalRow
+import org.apache.spark.sql.catalyst.expressions.{Attribute, UnsafeProjection, UnsafeRow}
+import org.apache.spark.sql.catalyst.plans.logical.{LeafNode, LocalRelation, LogicalPlan}
+import org.apache.spark.sql.crossdata.catalog.TableIdentifierNormalized
+import org.apache.spark.sql.crossdata.catalog.XDCatalog.{CrossdataTable, ViewIdentifierNormalized}
+import org.apache.spark.sql.execution.LogicalRDD
+import org.apache.spark.sql.types.StructType
+import org.apache.spark.unsafe.Platform
+import org.apache.spark.{Logging, Partition, SparkContext, TaskContext}
+
+import scala.collection.mutable.ArrayBuffer
+import scala.util.{Failure, Success, Try}
+
+object SpillableHashmapCatalog {
+
+  val SpillConfigKey = "temporary.spill"
+  val SpillEnabledKey = s"$SpillConfigKey.enabled"
+  val SpillMemoryBudgetKey = s"$SpillConfigKey.memoryBudget"
+  val SpillThresholdKey = s"$SpillConfigKey.threshold"
+  val SpillDirectoryKey = s"$SpillConfigKey.directory"
+
+  val DefaultMemoryBudget: Long = 128L * 1024 * 1024
+  val DefaultThreshold: Long = 1024L * 1024
+  val DefaultDirectory: String = new File(System.getProperty("java.io.tmpdir"), "crossdata-spill").getAbsolutePath
+
+  // Size of the ranges of a spill file read by each task
+  val SpilledPartitionBytes: Int = 4 * 1024 * 1024
+
+  def isEnabled(catalogConfig: Config): Boolean = Try(catalogConfig.getBoolean(SpillEnabledKey)).getOrElse(false)
+
+  def apply(catalystConf: CatalystConf, catalogConfig: Config): SpillableHashmapCatalog =
+    new SpillableHashmapCatalog(
+      catalystConf,
+      Try(catalogConfig.getBytes(SpillMemoryBudgetKey).toLong).getOrElse(DefaultMemoryBudget),
+      Try(catalogConfig.getBytes(SpillThresholdKey).toLong).getOrElse(DefaultThreshold),
+      new File(Try(catalogConfig.getString(SpillDirectoryKey)).getOrElse(DefaultDirectory))
+    )
+
+  /**
+    * Range of a spill file with `numRows` consecutive rows.
+    */
+  case class SpilledRange(offset: Long, length: Int, numRows: Int)
+
+  /**
+    * [[LocalRelation]] whose rows have been written, in [[UnsafeRow]] binary format, to a local file. The rows are never
+    * loaded back on heap as a whole: the relation is scanned by a [[SpilledRelationRDD]] with a partition per range.
+    */
+  case class SpilledLocalRelation(output: Seq[Attribute], path: String, ranges: Seq[SpilledRange]) extends LeafNode {
+
+    def scan(sqlContext: SQLContext): LogicalPlan =
+      LogicalRDD(output, new SpilledRelationRDD(sqlContext.sparkContext, output.length, path, ranges))(sqlContext)
+
+    def delete(): Unit = new File(path).delete()
+
+  }
+
+  /**
+    * Partition of a spilled relation. Its rows are read from the spill file when the task is serialized, so only the
+    * partitions of the running tasks are on heap, and they are shipped with the task as the rows of a [[LocalRelation]].
+    */
+  class SpilledPartition(val index: Int, val path: String, val range: SpilledRange) extends Partition {
+
+    @transient private var bytes: Array[Byte] = _
+
+    def rowBytes: Array[Byte] = Option(bytes) getOrElse readRange()
+
+    private def readRange(): Array[Byte] = {
+      val channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)
+      try {
+        val buffer = ByteBuffer.allocate(range.length)
+        while (buffer.hasRemaining && channel.read(buffer, range.offset + buffer.position()) >= 0) {}
+        buffer.array()
+      } finally {
+        channel.close()
+      }
+    }
+
+    private def writeObject(out: ObjectOutputStream): Unit = {
+      out.defaultWriteObject()
+      val rangeBytes = rowBytes
+      out.writeInt(rangeBytes.length)
+      out.write(rangeBytes)
+    }
+
+    private def readObject(in: ObjectInputStream): Unit = {
+      in.defaultReadObject()
+      bytes = new Array[Byte](in.readInt())
+      in.readFully(bytes)
+    }
+
+  }
+
+  class SpilledRelationRDD(sc: SparkContext, numFields: Int, path: String, ranges: Seq[SpilledRange])
+    extends RDD[InternalRow](sc, Nil) {
+
+    override protected def getPartitions: Array[Partition] =
+      ranges.zipWithIndex.map { case (range, index) => new SpilledPartition(index, path, range): Partition }.toArray
+
+    override def compute(split: Partition, context: TaskContext): Iterator[InternalRow] = {
+      val partition = split.asInstanceOf[SpilledPartition]
+      val bytes = partition.rowBytes
+      val buffer = ByteBuffer.wrap(bytes)
+
+      Iterator.fill(partition.range.numRows) {
+        val size = buffer.getInt
+        val row = new UnsafeRow()
+        row.pointTo(bytes, Platform.BYTE_ARRAY_OFFSET + buffer.position(), numFields, size)
+        buffer.position(buffer.position() + size)
+        row
+      }
+    }
+  }
+
+  private def spill(relation: LocalRelation, directory: File): SpilledLocalRelation = {
+    val toUnsafe = UnsafeProjection.create(StructType.fromAttributes(relation.output))
+    val file = File.createTempFile("xd-spilled-relation-", ".bin", directory)
+
+    val ranges = ArrayBuffer.empty[SpilledRange]
+    var rangeOffset = 0L
+    var rangeLength = 0
+    var rangeRows = 0
+
+    val out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))
+    val writeBuffer = new Array[Byte](4096)
+    try {
+      relation.data foreach { row =>
+        val unsafeRow = toUnsafe(row)
+        if (rangeRows > 0 && rangeLength + 4 + unsafeRow.getSizeInBytes > SpilledPartitionBytes) {
+          ranges += SpilledRange(rangeOffset, rangeLength, rangeRows)
+          rangeOffset += rangeLength
+          rangeLength = 0
+          rangeRows = 0
+        }
+        out.writeInt(unsafeRow.getSizeInBytes)
+        unsafeRow.writeToStream(out, writeBuffer)
+        rangeLength += 4 + unsafeRow.getSizeInBytes
+        rangeRows += 1
+      }
+    } finally {
+      out.close()
+    }
+    if (rangeRows > 0 || ranges.isEmpty) ranges += SpilledRange(rangeOffset, rangeLength, rangeRows)
+
+    SpilledLocalRelation(relation.output, file.getAbsolutePath, ranges)
+  }
+
+  /**
+    * Spillable relations kept on heap by every catalog of the JVM, in access order (the least recently used first), so
+    * that the memory budget bounds the heap of the temporary tables of all the sessions together.
+    *
+    * Catalogs are held through weak references. Each catalog spills to its own directory, which is deleted along with
+    * the heap relations of the catalog once it has been collected (e.g: its session was closed without dropping them).
+    */
+  private[temporary] object HeapRelations {
+
+    private class CatalogReference(catalog: SpillableHashmapCatalog, val catalogId: Long)
+      extends WeakReference[SpillableHashmapCatalog](catalog, collectedCatalogs) {
+      var directory: Option[File] = None
+    }
+
+    private case class HeapRelation(catalog: CatalogReference, tableName: String, size: Long)
+
+    private val collectedCatalogs = new ReferenceQueue[SpillableHashmapCatalog]
+    private val catalogs = new java.util.HashMap[Long, CatalogReference]()
+    private val relations = new java.util.LinkedHashMap[(Long, String), HeapRelation](16, 0.75f, true)
+    private var heapBytes = 0L
+
+    private val catalogIds = new AtomicLong()
+
+    def register(catalog: SpillableHashmapCatalog): Long = {
+      purge()
+      val catalogId = catalogIds.getAndIncrement()
+      synchronized(catalogs.put(catalogId, new CatalogReference(catalog, catalogId)))
+      catalogId
+    }
+
+    def bytes: Long = synchronized(heapBytes)
+
+    /**
+      * Directory where `catalog` spills its relations. It is created in `spillDirectory` the first time it is needed.
+      */
+    def directory(catalog: SpillableHashmapCatalog, spillDirectory: File): File = synchronized {
+      val reference = catalogs.get(catalog.catalogId)
+      reference.directory getOrElse {
+        spillDirectory.mkdirs()
+        val directory = Files.createTempDirectory(spillDirectory.toPath, "xd-catalog-").toFile
+        reference.directory = Some(directory)
+        directory
+      }
+    }
+
+    /**
+      * Tracks a new heap relation and returns the relations to spill in order to keep the heap within the budget.
+      * They must be spilled by the caller once it doesn't hold the lock of any catalog.
+      */
+    def track(
+               catalog: SpillableHashmapCatalog,
+               tableName: String,
+               size: Long,
+               budget: Long): Seq[(SpillableHashmapCatalog, String)] = {
+      purge()
+      synchronized {
+        forget(catalog, tableName)
+        relations.put((catalog.catalogId, tableName), HeapRelation(catalogs.get(catalog.catalogId), tableName, size))
+        heapBytes += size
+
+        val evicted = ArrayBuffer.empty[(SpillableHashmapCatalog, String)]
+        while (heapBytes > budget && !relations.isEmpty) {
+          val key = relations.keySet.iterator.next()
+          val relation = relations.remove(key)
+          heapBytes -= relation.size
+          Option(relation.catalog.get) foreach (evictedCatalog => evicted += evictedCatalog -> relation.tableName)
+        }
+        evicted
+      }
+    }
+
+    def touch(catalog: SpillableHashmapCatalog, tableName: String): Unit = synchronized {
+      relations.get((catalog.catalogId, tableName))
+    }
+
+    def forget(catalog: SpillableHashmapCatalog, tableName: String): Unit = synchronized {
+      Option(relations.remove((catalog.catalogId, tableName))) foreach (heapBytes -= _.size)
+    }
+
+    /**
+      * Releases the heap relations and the spill files of the catalogs which have been collected.
+      */
+    def purge(): Unit =
+      Iterator.continually(collectedCatalogs.poll()).takeWhile(_ != null) foreach {
+        case collected: CatalogReference =>
+          val directory = synchronized {
+            catalogs.remove(collected.catalogId)
+            val catalogRelations = relations.entrySet.iterator
+            while (catalogRelations.hasNext) {
+              val relation = catalogRelations.next().getValue
+              if (relation.catalog eq collected) {
+                heapBytes -= relation.size
+                catalogRelations.remove()
+              }
+            }
+            collected.directory
+          }
+          directory foreach { dir =>
+            Option(dir.listFiles()).toSeq.flatten foreach (_.delete())
+            dir.delete()
+          }
+      }
+
+  }
+
+}
+
+/**
+  * [[HashmapCatalog]] which bounds the heap used by the temporary tables.
+  *
+  * Local relations (e.g: those created by `XDContext.createDataFrame`) bigger than `spillThreshold` bytes are kept on heap
+  * as long as the ones of every session fit in `memoryBudget`. Beyond that, the least recently used ones are spilled to
+  * files in `spillDirectory`, which are scanned in ranges by the queries of the table instead of being loaded back.
+  */
+class SpillableHashmapCatalog(
+                               catalystConf: CatalystConf,
+                               memoryBudget: Long,
+                               spillThreshold: Long,
+                               spillDirectory: File
+                             ) extends HashmapCatalog(catalystConf) with Logging {
+
+  import SpillableHashmapCatalog._
+
+  private[temporary] val catalogId: Long = HeapRelations.register(this)
+
+  // Lookups, saves and drops only lock their catalog; relations are spilled holding no lock
+  override def relation(tableIdent: TableIdentifierNormalized)(implicit sqlContext: SQLContext): Option[LogicalPlan] =
+    synchronized(super.relation(tableIdent)) map {
+      case spilled: SpilledLocalRelation =>
+        spilled.scan(sqlContext)
+      case plan =>
+        HeapRelations.touch(this, tableIdent2string(tableIdent)) // Updates the access order
+        plan
+    }
+
+  override def saveTable(
+                          tableIdentifier: TableIdentifierNormalized,
+                          plan: LogicalPlan,
+                          crossdataTable: Option[CrossdataTable] = None): Unit = {
+    val evicted = synchronized {
+      forget(tableIdentifier)
+      super.saveTable(tableIdentifier, plan, crossdataTable)
+      track(tableIdentifier, plan)
+    }
+    evicted foreach { case (catalog, tableName) => catalog.spillTable(tableName) }
+  }
+
+  override def saveView(
+                         viewIdentifier: ViewIdentifierNormalized,
+                         plan: LogicalPlan,
+                         query: Option[String] = None): Unit = synchronized {
+    super.saveView(viewIdentifier, plan, query)
+  }
+
+  override def dropTable(tableIdentifier: TableIdentifierNormalized): Unit = synchronized {
+    forget(tableIdentifier)
+    super.dropTable(tableIdentifier)
+  }
+
+  override def dropAllTables(): Unit = synchronized {
+    tables.keys.toList foreach (tableName => forget(tableName))
+    super.dropAllTables()
+  }
+
+  private def track(tableName: String, plan: LogicalPlan): Seq[(SpillableHashmapCatalog, String)] = plan match {
+    case relation: LocalRelation if relation.statistics.sizeInBytes > spillThreshold =>
+      HeapRelations.track(this, tableName, relation.statistics.sizeInBytes.toLong, memoryBudget)
+    case _ =>
+      Seq.empty
+  }
+
+  private def forget(tableName: String): Unit = {
+    HeapRelations.forget(this, tableName)
+    tables.get(tableName) collect { case spilled: SpilledLocalRelation => spilled.delete() }
+  }
+
+  private[temporary] def spillTable(tableName: String): Unit =
+    synchronized(tables.get(tableName)) collect {
+      case relation: LocalRelation =>
+        Try(spill(relation, HeapRelations.directory(this, spillDirectory))) match {
+          case Success(spilled) =>
+            val stillSaved = synchronized {
+              val saved = tables.get(tableName) exists (_ eq relation)
+              if (saved) tables.put(tableName, spilled)
+              saved
+            }
+            if (!stillSaved) spilled.delete() // The table was dropped or replaced while it was being spilled
+          case Failure(error) =>
+            logWarning(s"Temporary table $tableName cannot be spilled to $spillDirectory. It will remain on heap", error)
+        }
+    }
+
+}
@@ -20,7 +20,8 @@ import java.lang.reflect.Constructor
 import com.typesafe.config.Config
 import org.apache.spark.Logging
 import org.apache.spark.sql.catalyst.CatalystConf
-import org.apache.spark.sql.crossdata.catalog.interfaces.{XDPersistentCatalog, XDStreamingCatalog}
+import org.apache.spark.sql.crossdata.catalog.interfaces.{XDPersistentCatalog, XDStreamingCatalog, XDTemporaryCatalog}
+import org.apache.spark.sql.crossdata.catalog.temporary.{HashmapCatalog, SpillableHashmapCatalog}
 import org.apache.spark.sql.crossdata.config.CoreConfig
 
 object CatalogUtils extends Logging {
@@ -37,6 +38,12 @@ object CatalogUtils extends Logging {
     constr.newInstance(catalystConf).asInstanceOf[XDPersistentCatalog]
   }
 
+  protected[crossdata] def temporaryCatalog(catalystConf: CatalystConf, config: Config): XDTemporaryCatalog =
+    if (SpillableHashmapCatalog.isEnabled(config))
+      SpillableHashmapCatalog(catalystConf, config)
+    else
+      new HashmapCatalog(catalystConf)
+
   protected[crossdata] def streamingCatalog(catalystConf: CatalystConf, serverConfig: Config): Option[XDStreamingCatalog] = {
     if (serverConfig.hasPath(CoreConfig.StreamingCatalogClassConfigKey)) {
       val streamingCatalogClass = serverConfig.getString(CoreConfig.StreamingCatalogClassConfigKey)
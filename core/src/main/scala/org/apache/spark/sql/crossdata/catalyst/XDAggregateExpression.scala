@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2015 Stratio (http://stratio.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.spark.sql.crossdata.catalyst
+
+import org.apache.spark.sql.catalyst.expressions.Expression
+import org.apache.spark.sql.catalyst.expressions.aggregate.{AggregateExpression, AggregateFunction}
+
+/**
+  * Matches the aggregate expressions, which are private to Spark SQL, outside of it (e.g: native connectors). It
+  * extracts their aggregate function and whether it is distinct.
+  */
+object XDAggregateExpression {
+
+  def unapply(expression: Expression): Option[(AggregateFunction, Boolean)] = expression match {
+    case AggregateExpression(aggregateFunction, _, isDistinct) => Some((aggregateFunction, isDistinct))
+    case _ => None
+  }
+
+}
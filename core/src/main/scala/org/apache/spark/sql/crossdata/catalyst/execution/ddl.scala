@@ -117,22 +117,39 @@ private[crossdata] case class ImportTablesUsingWithOptions(datasource: String, o
       doExist
     }
 
+    // Description of a table imported before, as long as its fingerprint was recorded
+    def previousImport(table: TableInventory.Table): Option[TableInventory.Table] = for {
+      crossdataTable <- sqlContext.catalog.tableMetadata(TableIdentifier(table.tableName, table.database))
+      fingerprint <- crossdataTable.opts.get(TableInventory.FingerprintOption)
+    } yield table.copy(schema = crossdataTable.schema, fingerprint = Some(fingerprint))
+
+    // A table has to be imported again when its metadata has changed since the previous import
+    def isOutdated(table: TableInventory.Table): Boolean =
+      table.fingerprint.isDefined && previousImport(table).exists(_.fingerprint != table.fingerprint)
+
     // Get a reference to the inventory relation.
     val resolved = ResolvedDataSource.lookupDataSource(datasource).newInstance()
     val inventoryRelation = resolved.asInstanceOf[TableInventory]
 
-    // Obtains the list of tables and persist it (if persistence implemented)
-    val tables = inventoryRelation.listTables(sqlContext, opts)
+    // Obtains the list of tables (re-using the schemas of the unchanged ones) and persist it (if persistence implemented)
+    val tables = inventoryRelation.listTables(sqlContext, opts, previousImport)
 
     for {
       table: TableInventory.Table <- tables
       tableId = TableIdentifier(table.tableName, table.database)
       if inventoryRelation.exclusionFilter(table)
     } yield {
-      val ignoreTable = tableExists(tableId)
+      val outdated = isOutdated(table)
+      val ignoreTable = !outdated && tableExists(tableId)
       if (!ignoreTable) {
-        logInfo(s"Importing table ${tableId.unquotedString}")
-        val optionsWithTable = inventoryRelation.generateConnectorOpts(table, opts)
+        if (outdated) {
+          logInfo(s"Refreshing table ${tableId.unquotedString} whose metadata has changed since it was imported")
+          sqlContext.catalog.dropTable(tableId)
+        } else {
+          logInfo(s"Importing table ${tableId.unquotedString}")
+        }
+        val optionsWithTable = inventoryRelation.generateConnectorOpts(table, opts) ++
+          table.fingerprint.map(TableInventory.FingerprintOption -> _)
         val identifier = TableIdentifier(table.tableName, table.database).normalize(sqlContext.conf)
         val crossdataTable = CrossdataTable(identifier, table.schema, datasource, Array.empty, optionsWithTable)
         import org.apache.spark.sql.crossdata.util.CreateRelationUtil._
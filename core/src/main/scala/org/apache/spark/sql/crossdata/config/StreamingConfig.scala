@@ -44,21 +44,30 @@ object StreamingConfig extends CoreConfig {
 
     val groupId = finalOptions(KafkaGroupId)
     val partition = finalOptions.get(KafkaPartition)
-    val kafkaAdditionalOptions = finalOptions.filter{case (k, v) => k.startsWith(KafkaAdditionalOptionsKey)}
+    val kafkaAdditionalOptions = finalOptions.collect {
+      case (k, v) if k.startsWith(s"$KafkaAdditionalOptionsKey.") => (k.stripPrefix(s"$KafkaAdditionalOptionsKey."), v)
+    }
     val storageLevel = finalOptions(ReceiverStorageLevel)
     val kafkaOptions = KafkaOptionsModel(connectionsModel, topics, groupId, partition, kafkaAdditionalOptions, storageLevel)
     val minW = finalOptions(AtomicWindow).toInt
     val maxW = finalOptions(MaxWindow).toInt
     val outFormat = finalOptions(OutputFormat) match {
       case "JSON" => EphemeralOutputFormat.JSON
+      case "AVRO" => EphemeralOutputFormat.AVRO
       case other => EphemeralOutputFormat.ROW
     }
 
+    val eventTime = finalOptions.get(EventTimeColumn) map { column =>
+      EventTimeModel(column, finalOptions.get(AllowedLateness).fold(EventTimeModel.DefaultAllowedLateness)(_.toInt))
+    }
+
     val checkpointDirectory = s"${finalOptions(CheckpointDirectory)}/$ident"
     val sparkOpts = finalOptions.filter{case (k, v) => k.startsWith(SparkConfPath)}
     validateSparkConfig(sparkOpts)
+    eventTime.foreach(validateEventTime(_, maxW))
 
-    val ephemeralOptions = EphemeralOptionsModel(kafkaOptions, minW, maxW, outFormat, checkpointDirectory, sparkOpts)
+    val ephemeralOptions =
+      EphemeralOptionsModel(kafkaOptions, minW, maxW, outFormat, checkpointDirectory, sparkOpts, eventTime)
 
     EphemeralTableModel(ident, ephemeralOptions, userSchema)
   }
@@ -93,6 +102,11 @@ object StreamingConfig extends CoreConfig {
     }
   }
 
+  // The events of the event time windows are taken from the events received during the max window
+  private def validateEventTime(eventTime: EventTimeModel, maxWindow: Int): Unit =
+    if (eventTime.allowedLateness > maxWindow)
+      throw new RuntimeException(s"The allowed lateness cannot be larger than the max window ($maxWindow seconds)")
+
 }
 
 
@@ -48,6 +48,9 @@ object StreamingConstants {
   val MaxWindow = "maxWindow"
   val OutputFormat = "outputFormat"
   val CheckpointDirectory = "checkpointDirectory"
+  //optional, the windows are assigned by processing time if it is not defined
+  val EventTimeColumn = "eventTimeColumn"
+  val AllowedLateness = "allowedLateness" //optional
 
   /**
    * SparkOptions
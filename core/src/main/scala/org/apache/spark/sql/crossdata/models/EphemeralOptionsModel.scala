@@ -22,9 +22,15 @@ case class EphemeralOptionsModel(kafkaOptions: KafkaOptionsModel,
                                  maxWindow: Int = DefaultMaxWindow,
                                  outputFormat: EphemeralOutputFormat.Value = EphemeralOutputFormat.ROW,
                                  checkpointDirectory: String = DefaultCheckpointDirectory,
-                                 sparkOptions: Map[String, String] = Map.empty) {
+                                 sparkOptions: Map[String, String] = Map.empty,
+                                 eventTime: Option[EventTimeModel] = None) {
 
   def toPrettyString : String = ModelUtils.modelToJsonString(this)
+
+  /**
+   * Whether the events of a query window, plus the allowed lateness of the event time windows, are kept by the table.
+   */
+  def coversWindow(window: Int): Boolean = window + eventTime.fold(0)(_.allowedLateness) <= maxWindow
 }
 
 object EphemeralOptionsModel {
@@ -18,6 +18,6 @@ package org.apache.spark.sql.crossdata.models
 object EphemeralOutputFormat extends Enumeration {
 
   type Status = Value
-  val ROW, JSON = Value
+  val ROW, JSON, AVRO = Value
 }
 
@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2015 Stratio (http://stratio.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.spark.sql.crossdata.models
+
+/**
+ * Event time of the events of an ephemeral table: the column with the time of each event (a timestamp, or the
+ * milliseconds since the epoch) and the seconds an event can arrive after the greatest event time seen.
+ */
+case class EventTimeModel(column: String, allowedLateness: Int = EventTimeModel.DefaultAllowedLateness) {
+
+  def toStringPretty : String = ModelUtils.modelToJsonString(this)
+}
+
+object EventTimeModel {
+
+  val DefaultAllowedLateness = 0
+}
@@ -25,7 +25,6 @@ import org.apache.spark.SparkContext
 import org.apache.spark.sql.SQLConf
 import org.apache.spark.sql.crossdata.{XDSQLConf, XDSession}
 import org.apache.spark.sql.crossdata.catalog.interfaces.{XDPersistentCatalog, XDStreamingCatalog, XDTemporaryCatalog}
-import org.apache.spark.sql.crossdata.catalog.temporary.HashmapCatalog
 import org.apache.spark.sql.crossdata.catalog.utils.CatalogUtils
 import org.apache.spark.sql.crossdata.config.CoreConfig
 import org.apache.spark.sql.crossdata.config.CoreConfig._
@@ -134,7 +133,7 @@ class BasicSessionProvider(
 
       sharedState.sqlConf.setConfString(XDSQLConf.UserIdPropertyKey, userId)
 
-      val tempCatalog = new HashmapCatalog(sqlConf)
+      val tempCatalog = CatalogUtils.temporaryCatalog(sqlConf, catalogConfig)
 
       sessionIDToTempCatalog.put(sessionID, tempCatalog)
       sessionIDToSQLProps.put(sessionID, sharedState.sqlConf)
@@ -145,8 +144,8 @@ class BasicSessionProvider(
   override def closeSession(sessionID: SessionID): Try[Unit] = {
     for {
       _ <- sessionIDToSQLProps.remove(sessionID)
-      _ <- sessionIDToTempCatalog.remove(sessionID)
-    } yield ()
+      tempCatalog <- sessionIDToTempCatalog.remove(sessionID)
+    } yield tempCatalog.dropAllTables() // Releases the relations the session may have spilled
   } map {
     Success(_)
   } getOrElse {
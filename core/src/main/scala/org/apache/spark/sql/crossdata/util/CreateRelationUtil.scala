@@ -16,6 +16,7 @@
 package org.apache.spark.sql.crossdata.util
 
 import com.stratio.common.utils.components.logger.impl.SparkLoggerComponent
+import com.stratio.crossdata.connector.TableInventory
 import org.apache.spark.sql.SQLContext
 import org.apache.spark.sql.crossdata.catalog.XDCatalog
 import XDCatalog.CrossdataTable
@@ -40,7 +41,9 @@ object CreateRelationUtil extends SparkLoggerComponent{
         throw new RuntimeException(msg)
     }
 
-    val resolved = ResolvedDataSource(sqlContext, tableSchema, crossdataTable.partitionColumn, crossdataTable.datasource, crossdataTable.opts)
+    val resolved = ResolvedDataSource(
+      sqlContext, tableSchema, crossdataTable.partitionColumn, crossdataTable.datasource,
+      crossdataTable.opts - TableInventory.FingerprintOption)
     LogicalRelation(resolved.relation)
   }
 
@@ -144,6 +144,21 @@ class ZookeeperStreamingCatalogIT extends SharedXDContextTest with CatalogConsta
 
   }
 
+  it should "not create queries whose window is larger than the max window of their table" in {
+
+    val streamCatalog = xdContext.catalog
+    val eventTimeOptions = EphemeralTableOptions.copy(maxWindow = 10, eventTime = Some(EventTimeModel("time", 6)))
+
+    streamCatalog.createEphemeralTable(EphemeralTable.copy(options = eventTimeOptions))
+    try {
+      streamCatalog.createEphemeralQuery(EphemeralQuery) shouldBe a [Left[_, _]]
+      streamCatalog.existsEphemeralQuery(QueryAlias) shouldBe false
+    } finally {
+      streamCatalog.dropEphemeralTable(EphemeralTableName)
+    }
+
+  }
+
 
   /**
    * Stop the underlying [[org.apache.spark.SparkContext]], if any.
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2015 Stratio (http://stratio.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.spark.sql.crossdata.catalog.temporary
+
+import java.io.File
+import java.nio.file.Files
+
+import org.apache.spark.sql.{DataFrame, Row}
+import org.apache.spark.sql.catalyst.TableIdentifier
+import org.apache.spark.sql.catalyst.expressions.AttributeReference
+import org.apache.spark.sql.catalyst.plans.logical.{LocalRelation, LogicalPlan}
+import org.apache.spark.sql.crossdata.catalog.interfaces.XDCatalogCommon
+import org.apache.spark.sql.crossdata.test.SharedXDContextTest
+import org.apache.spark.sql.types.{IntegerType, StringType}
+import org.junit.runner.RunWith
+import org.scalatest.concurrent.Eventually
+import org.scalatest.junit.JUnitRunner
+
+import scala.concurrent.duration._
+
+@RunWith(classOf[JUnitRunner])
+class SpillableHashmapCatalogIT extends SharedXDContextTest with Eventually {
+
+  "A SpillableHashmapCatalog" should "spill the least recently used local relations once its memory budget is exceeded" in {
+
+    import XDCatalogCommon._
+    implicit val _ = _xdContext
+
+    val spillDirectory = Files.createTempDirectory("xd-spill-test").toFile
+    val relations = Seq("t1", "t2", "t3") map (name => TableIdentifier(name).normalize(_xdContext.catalog.conf) -> localRelation(name))
+    val relationSize = relations.head._2.statistics.sizeInBytes.toLong
+
+    val catalog = new SpillableHashmapCatalog(xdContext.conf, 2 * relationSize, 0L, spillDirectory)
+
+    relations foreach { case (tableIdent, relation) => catalog.saveTable(tableIdent, relation) }
+
+    spillFiles(spillDirectory) should have length 1
+
+    relations foreach { case (tableIdent, relation) =>
+      val restored = catalog.relation(tableIdent)
+      restored shouldBe defined
+      restored.get.output shouldBe relation.output
+      rows(restored.get) shouldBe rows(relation)
+    }
+
+    spillFiles(spillDirectory) should have length 1
+
+    catalog.dropAllTables()
+    spillFiles(spillDirectory) shouldBe empty
+  }
+
+  it should "share its memory budget with the catalogs of the other sessions" in {
+
+    import XDCatalogCommon._
+
+    val spillDirectory = Files.createTempDirectory("xd-spill-test").toFile
+    val (tableIdent, relation) = TableIdentifier("t1").normalize(_xdContext.catalog.conf) -> localRelation("t1")
+    val relationSize = relation.statistics.sizeInBytes.toLong
+
+    val catalogs = Seq.fill(3)(new SpillableHashmapCatalog(xdContext.conf, 2 * relationSize, 0L, spillDirectory))
+
+    catalogs foreach (_.saveTable(tableIdent, relation))
+
+    spillFiles(spillDirectory) should have length 1
+    SpillableHashmapCatalog.HeapRelations.bytes shouldBe 2 * relationSize
+
+    catalogs foreach (_.dropAllTables())
+    spillFiles(spillDirectory) shouldBe empty
+    SpillableHashmapCatalog.HeapRelations.bytes shouldBe 0
+  }
+
+  it should "release the spill files and the memory budget of the catalogs which have been collected" in {
+
+    import XDCatalogCommon._
+
+    val spillDirectory = Files.createTempDirectory("xd-spill-test").toFile
+    val (tableIdent, relation) = TableIdentifier("t1").normalize(_xdContext.catalog.conf) -> localRelation("t1")
+    val relationSize = relation.statistics.sizeInBytes.toLong
+    val initialBytes = SpillableHashmapCatalog.HeapRelations.bytes
+
+    def saveInDiscardedCatalogs(): Unit = {
+      val catalogs = Seq.fill(3)(new SpillableHashmapCatalog(xdContext.conf, 2 * relationSize, 0L, spillDirectory))
+      catalogs foreach (_.saveTable(tableIdent, relation))
+      spillFiles(spillDirectory) should have length 1
+    }
+
+    saveInDiscardedCatalogs()
+
+    eventually(timeout(30 seconds), interval(100 milliseconds)) {
+      System.gc()
+      SpillableHashmapCatalog.HeapRelations.purge()
+      spillFiles(spillDirectory) shouldBe empty
+      SpillableHashmapCatalog.HeapRelations.bytes shouldBe initialBytes
+    }
+  }
+
+  private def spillFiles(spillDirectory: File): Seq[File] =
+    Option(spillDirectory.listFiles()).toSeq.flatten flatMap { catalogDirectory =>
+      Option(catalogDirectory.listFiles()).toSeq.flatten
+    }
+
+  private def rows(plan: LogicalPlan): Seq[Seq[Any]] =
+    new DataFrame(_xdContext, plan).collect().map(_.toSeq).toSeq
+
+  private def localRelation(tableName: String): LocalRelation = {
+    val attributes = AttributeReference("id", IntegerType)() :: AttributeReference("name", StringType)() :: Nil
+    val rows = (1 to 1000) map (i => Row(i, s"$tableName-$i"))
+    LocalRelation.fromExternalRows(attributes, rows)
+  }
+
+}
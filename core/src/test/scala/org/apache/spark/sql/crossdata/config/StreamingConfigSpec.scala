@@ -16,7 +16,7 @@
 package org.apache.spark.sql.crossdata.config
 
 import com.stratio.crossdata.test.BaseXDTest
-import org.apache.spark.sql.crossdata.models.{ConnectionModel, ConnectionHostModel, TopicModel, EphemeralOutputFormat}
+import org.apache.spark.sql.crossdata.models.{ConnectionModel, ConnectionHostModel, EventTimeModel, TopicModel, EphemeralOutputFormat}
 import org.junit.runner.RunWith
 import org.scalatest.junit.JUnitRunner
 
@@ -39,7 +39,10 @@ class StreamingConfigSpec extends BaseXDTest {
     "receiver.storageLevel" -> "MEMORY_AND_DISK",
     "atomicWindow" -> "10",
     "outputFormat" -> "JSON",
-    "spark.cores.max" -> "3"
+    "spark.cores.max" -> "3",
+    "receiver.kafka.options.maxRatePerPartition" -> "1000",
+    "eventTimeColumn" -> "timestamp",
+    "allowedLateness" -> "5"
   ) ++ MandatoryTableOptions
 
 
@@ -59,6 +62,7 @@ class StreamingConfigSpec extends BaseXDTest {
       Seq(ConnectionModel("localhost", 2181)),
       Seq(ConnectionModel("localhost", 9092)))
     options.kafkaOptions.storageLevel shouldBe "MEMORY_AND_DISK_SER"
+    options.eventTime shouldBe None
 
     // table options
     options.kafkaOptions.groupId shouldBe KafkaGroupId
@@ -74,9 +78,23 @@ class StreamingConfigSpec extends BaseXDTest {
     options.outputFormat shouldBe EphemeralOutputFormat.JSON
     options.sparkOptions should contain ("spark.cores.max", "3")
     options.kafkaOptions.storageLevel shouldBe "MEMORY_AND_DISK"
+    options.kafkaOptions.additionalOptions should contain ("maxRatePerPartition", "1000")
+    options.eventTime shouldBe Some(EventTimeModel("timestamp", 5))
 
   }
 
+  it should "read the avro output format" in {
+    val avroOptions = CompleteTableOptions + (StreamingConstants.OutputFormat -> "AVRO")
+    val ephTable = StreamingConfig.createEphemeralTableModel(EphemeralTableName, avroOptions)
+
+    ephTable.options.outputFormat shouldBe EphemeralOutputFormat.AVRO
+  }
+
+  it should "fail if the allowed lateness is larger than the max window" in {
+    val wrongOptions = CompleteTableOptions + (StreamingConstants.AllowedLateness -> "11")
+    an [Exception] should be thrownBy StreamingConfig.createEphemeralTableModel(EphemeralTableName, wrongOptions)
+  }
+
   it should "fail if spark.cores.max is less than 2" in {
     val wrongOptions = CompleteTableOptions + (StreamingConstants.SparkCoresMax -> "1")
     an [Exception] should be thrownBy StreamingConfig.createEphemeralTableModel(EphemeralTableName, wrongOptions)
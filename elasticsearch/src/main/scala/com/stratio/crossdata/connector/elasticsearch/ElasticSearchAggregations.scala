@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2015 Stratio (http://stratio.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.crossdata.connector.elasticsearch
+
+import java.util.TimeZone
+
+import com.sksamuel.elastic4s.SearchDefinition
+import org.apache.spark.sql.Row
+import org.apache.spark.sql.catalyst.expressions.aggregate._
+import org.apache.spark.sql.catalyst.expressions.{Alias, Attribute, Cast, Expression, Literal, NamedExpression, Year}
+import org.apache.spark.sql.catalyst.plans.logical.Aggregate
+import org.apache.spark.sql.crossdata.catalyst.XDAggregateExpression
+import org.apache.spark.sql.types._
+import org.elasticsearch.action.search.SearchResponse
+import org.elasticsearch.search.aggregations.bucket.MultiBucketsAggregation
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramInterval
+import org.elasticsearch.search.aggregations.bucket.terms.Terms
+import org.elasticsearch.search.aggregations.metrics.cardinality.Cardinality
+import org.elasticsearch.search.aggregations.metrics.stats.Stats
+import org.elasticsearch.search.aggregations.metrics.valuecount.ValueCount
+import org.elasticsearch.search.aggregations.{AbstractAggregationBuilder, AggregationBuilder, AggregationBuilders, Aggregations}
+import org.joda.time.{DateTime, DateTimeZone}
+
+import scala.collection.JavaConversions._
+import scala.util.Try
+
+/**
+  * Translation of Catalyst [[Aggregate]]s into Elasticsearch aggregations:
+  *   - Grouping columns are translated into nested `terms` aggregations and `year(column)` into `date_histogram`s
+  *     in the timezone of the JVM, as Spark does.
+  *   - `count(*)` is taken from the buckets document count and `count(column)` from `value_count`.
+  *   - `count(DISTINCT column)` is computed from a `terms` aggregation and `APPROXIMATE count(DISTINCT column)`
+  *     from `cardinality`.
+  *   - `sum`, `min`, `max` and `avg` of numeric columns are taken from `stats` aggregations. Elasticsearch computes
+  *     them with doubles, so integral results which could have lost precision are left to Spark.
+  *
+  * Buckets are bounded by `es.nativeAggregationMaxBuckets`. Results which would be incomplete or inexact (truncated
+  * buckets, documents without grouping value...) are discarded so that the query is executed by Spark.
+  */
+object ElasticSearchAggregations {
+
+  val MaxBuckets = "es.nativeAggregationMaxBuckets"
+  val DefaultMaxBuckets = 10000
+
+  private val GroupingTypes: Set[DataType] = Set(StringType, IntegerType, LongType, ShortType, DoubleType, FloatType, BooleanType)
+
+  // Integral values whose magnitude is below this one are exactly represented by doubles
+  private val MaxExactDouble: Double = math.pow(2, 53)
+
+  class IncompleteAggregationException(msg: String) extends RuntimeException(msg)
+
+  private[elasticsearch] sealed trait Grouping {
+    def field: Attribute
+    def expression: Expression
+  }
+  private[elasticsearch] case class TermsGrouping(field: Attribute) extends Grouping {
+    override def expression: Expression = field
+  }
+  private[elasticsearch] case class YearGrouping(field: Attribute, expression: Expression) extends Grouping
+
+  private[elasticsearch] sealed trait Metric
+  private[elasticsearch] case object DocCount extends Metric
+  private[elasticsearch] case class FieldCount(field: Attribute) extends Metric
+  private[elasticsearch] case class DistinctCount(field: Attribute) extends Metric
+  private[elasticsearch] case class ApproximateDistinctCount(field: Attribute) extends Metric
+  private[elasticsearch] case class NumericMetric(function: String, field: Attribute, dataType: DataType) extends Metric
+
+  // Each output column is either a grouping value or a metric
+  private[elasticsearch] type Output = Either[Int, Metric]
+
+  def isSupported(aggregate: Aggregate): Boolean =
+    Try(translate(aggregate.groupingExpressions, aggregate.aggregateExpressions)).isSuccess
+
+  /**
+    * @return The groupings and output columns of an aggregation.
+    * @throws UnsupportedOperationException if the aggregation cannot be executed by Elasticsearch.
+    */
+  private[elasticsearch] def translate(groupingExpressions: Seq[Expression],
+                                       aggregateExpressions: Seq[NamedExpression]): (Seq[Grouping], Seq[Output]) = {
+
+    def unsupported(expr: Expression) = throw new UnsupportedOperationException(s"Unsupported aggregation: $expr")
+
+    def numericField(expr: Expression): Attribute = expr match {
+      case a: Attribute if a.dataType.isInstanceOf[NumericType] && !a.dataType.isInstanceOf[DecimalType] => a
+      case Cast(child, _: NumericType) => numericField(child)
+      case other => unsupported(other)
+    }
+
+    val groupings = groupingExpressions map {
+      case a: Attribute if GroupingTypes contains a.dataType => TermsGrouping(a)
+      case year @ Year(a: Attribute) => YearGrouping(a, year)
+      case year @ Year(Cast(a: Attribute, DateType)) if a.dataType == TimestampType || a.dataType == DateType =>
+        YearGrouping(a, year)
+      case other => unsupported(other)
+    }
+
+    val outputs: Seq[Output] = aggregateExpressions map { namedExpression =>
+      val expr = namedExpression match {
+        case Alias(child, _) => child
+        case other => other
+      }
+      val groupingIndex = groupings.indexWhere(_.expression semanticEquals expr)
+
+      if (groupingIndex >= 0) Left(groupingIndex)
+      else Right {
+        expr match {
+          case XDAggregateExpression(Count(Seq(Literal(value, _))), false) if value != null => DocCount
+          case XDAggregateExpression(Count(Seq(a: Attribute)), false) => FieldCount(a)
+          case XDAggregateExpression(Count(Seq(a: Attribute)), true) => DistinctCount(a)
+          case XDAggregateExpression(hll: HyperLogLogPlusPlus, false) =>
+            hll.child match {
+              case a: Attribute => ApproximateDistinctCount(a)
+              case other => unsupported(other)
+            }
+          case XDAggregateExpression(fn @ (_: Sum | _: Min | _: Max | _: Average), false)
+            if !namedExpression.dataType.isInstanceOf[DecimalType] =>
+            val function = fn match {
+              case _: Sum => "sum"
+              case _: Min => "min"
+              case _: Max => "max"
+              case _: Average => "avg"
+            }
+            NumericMetric(function, numericField(fn.children.head), namedExpression.dataType)
+          case other => unsupported(other)
+        }
+      }
+    }
+
+    (groupings, outputs)
+  }
+
+}
+
+/**
+  * Elasticsearch aggregation computing the result of a Catalyst [[Aggregate]].
+  *
+  * @param fieldName Elasticsearch field of each attribute
+  */
+class ElasticSearchAggregations(groupingExpressions: Seq[Expression],
+                                aggregateExpressions: Seq[NamedExpression],
+                                fieldName: Attribute => String,
+                                maxBuckets: Int) {
+
+  import ElasticSearchAggregations._
+
+  private val (groupings, outputs) = translate(groupingExpressions, aggregateExpressions)
+
+  private val metrics: Seq[(Metric, Int)] = outputs.zipWithIndex collect { case (Right(metric), idx) => metric -> idx }
+
+  def fields: Seq[Attribute] = groupings.map(_.field) ++ metrics.collect {
+    case (FieldCount(a), _) => a
+    case (DistinctCount(a), _) => a
+    case (ApproximateDistinctCount(a), _) => a
+    case (NumericMetric(_, a, _), _) => a
+  }
+
+  /**
+    * Adds the aggregations to a query which won't return any document.
+    */
+  def addTo(query: SearchDefinition): SearchDefinition = {
+    val metricBuilders: Seq[AbstractAggregationBuilder] = metrics flatMap {
+      case (DocCount, _) => Nil
+      case (FieldCount(a), idx) => List[AbstractAggregationBuilder](AggregationBuilders.count(metricName(idx)).field(fieldName(a)))
+      case (DistinctCount(a), idx) => List[AbstractAggregationBuilder](termsBuilder(metricName(idx), a))
+      case (ApproximateDistinctCount(a), idx) =>
+        List[AbstractAggregationBuilder](AggregationBuilders.cardinality(metricName(idx)).field(fieldName(a)))
+      case (NumericMetric(_, a, _), idx) =>
+        List[AbstractAggregationBuilder](AggregationBuilders.stats(metricName(idx)).field(fieldName(a)))
+    }
+
+    val groupingBuilders: Seq[AggregationBuilder[_]] = groupings.zipWithIndex map {
+      case (TermsGrouping(a), level) => termsBuilder(groupingName(level), a)
+      case (YearGrouping(a, _), level) =>
+        AggregationBuilders.dateHistogram(groupingName(level))
+          .field(fieldName(a)).interval(DateHistogramInterval.YEAR).timeZone(sparkTimeZone.getID).minDocCount(1)
+    }
+
+    val topLevelBuilders = groupingBuilders.reverse match {
+      case innermost +: outer =>
+        metricBuilders foreach (innermost.subAggregation(_))
+        outer.foldLeft[AbstractAggregationBuilder](innermost) { (inner, outerBuilder) =>
+          outerBuilder.subAggregation(inner)
+          outerBuilder
+        } :: Nil
+      case _ => metricBuilders
+    }
+
+    topLevelBuilders foreach (query._builder.addAggregation(_))
+    query size 0
+  }
+
+  /**
+    * @throws IncompleteAggregationException if the aggregation result is not complete
+    */
+  def rows(resp: SearchResponse): Array[Row] = {
+
+    def collect(aggregations: Aggregations, docCount: Long, level: Int, keys: List[Any]): Seq[Row] =
+      if (level == groupings.length) {
+        Seq(row(aggregations, docCount, keys.reverse.toIndexedSeq))
+      } else {
+        val grouping = aggregations.get[MultiBucketsAggregation](groupingName(level))
+        val buckets = grouping.getBuckets
+        checkComplete(grouping, buckets.map(_.getDocCount).sum, docCount)
+        buckets flatMap { bucket =>
+          val key = groupingValue(groupings(level), bucket, groupingExpressions(level).dataType)
+          collect(bucket.getAggregations, bucket.getDocCount, level + 1, key :: keys)
+        }
+      }
+
+    collect(resp.getAggregations, resp.getHits.getTotalHits, 0, Nil).toArray
+  }
+
+  private def row(aggregations: Aggregations, docCount: Long, keys: IndexedSeq[Any]): Row = {
+    val values: Seq[Any] = outputs.zipWithIndex map {
+      case (Left(groupingIndex), _) => keys(groupingIndex)
+      case (Right(DocCount), _) => docCount
+      case (Right(FieldCount(_)), idx) => aggregations.get[ValueCount](metricName(idx)).getValue
+      case (Right(ApproximateDistinctCount(_)), idx) => aggregations.get[Cardinality](metricName(idx)).getValue
+      case (Right(DistinctCount(_)), idx) =>
+        val terms = aggregations.get[Terms](metricName(idx))
+        checkComplete(terms, 0, 0)
+        terms.getBuckets.size.toLong
+      case (Right(NumericMetric(function, _, dataType)), idx) =>
+        numericMetricValue(function, aggregations.get[Stats](metricName(idx)), dataType)
+    }
+    Row.fromSeq(values)
+  }
+
+  private def checkComplete(aggregation: MultiBucketsAggregation, bucketsDocCount: Long, docCount: Long): Unit = {
+    aggregation match {
+      case terms: Terms if terms.getSumOfOtherDocCounts > 0 =>
+        throw new IncompleteAggregationException(s"More than $maxBuckets buckets in ${aggregation.getName}")
+      case _ if aggregation.getBuckets.size > maxBuckets =>
+        throw new IncompleteAggregationException(s"More than $maxBuckets buckets in ${aggregation.getName}")
+      case _ =>
+    }
+    if (bucketsDocCount != docCount)
+      throw new IncompleteAggregationException(s"Some documents have no value for ${aggregation.getName}")
+  }
+
+  // Spark returns null for the aggregations of no values whereas ES returns 0, NaN or Infinity
+  private def numericMetricValue(function: String, stats: Stats, dataType: DataType): Any =
+    if (stats.getCount == 0) null
+    else {
+      val value = function match {
+        case "sum" => stats.getSum
+        case "min" => stats.getMin
+        case "max" => stats.getMax
+        case "avg" => stats.getAvg
+      }
+      // The partial results of ES are exact doubles as long as the values (and their sum) are below 2^53
+      val bound = math.max(math.abs(stats.getMin), math.abs(stats.getMax))
+      val exactBound = if (function == "sum") bound * stats.getCount else bound
+      if (isIntegral(dataType) && exactBound >= MaxExactDouble)
+        throw new IncompleteAggregationException(s"The $function of ${stats.getName} could be inexact")
+      toDataType(value, dataType)
+    }
+
+  private def groupingValue(grouping: Grouping, bucket: MultiBucketsAggregation.Bucket, dataType: DataType): Any =
+    grouping match {
+      case _: YearGrouping =>
+        val sparkZone = DateTimeZone.forTimeZone(sparkTimeZone)
+        bucket.getKey match {
+          case date: DateTime => date.withZone(sparkZone).getYear
+          case millis: Number => new DateTime(millis.longValue, sparkZone).getYear
+        }
+      case _: TermsGrouping =>
+        dataType match {
+          case StringType => bucket.getKeyAsString
+          case BooleanType => bucket.getKeyAsString.toBoolean
+          case numericType => toDataType(bucket.getKey.asInstanceOf[Number], numericType) // Long terms keep their keys
+        }
+    }
+
+  // Spark extracts the fields of dates in the default timezone of the JVM
+  private def sparkTimeZone: TimeZone = TimeZone.getDefault
+
+  private def isIntegral(dataType: DataType): Boolean = dataType match {
+    case LongType | IntegerType | ShortType => true
+    case _ => false
+  }
+
+  private def toDataType(value: Number, dataType: DataType): Any = dataType match {
+    case LongType => value.longValue
+    case IntegerType => value.intValue
+    case ShortType => value.shortValue
+    case FloatType => value.floatValue
+    case _ => value.doubleValue
+  }
+
+  private def termsBuilder(name: String, field: Attribute) =
+    AggregationBuilders.terms(name).field(fieldName(field)).size(maxBuckets).shardSize(maxBuckets)
+
+  private def groupingName(level: Int): String = s"group_$level"
+
+  private def metricName(outputIndex: Int): String = s"metric_$outputIndex"
+
+
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2015 Stratio (http://stratio.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.crossdata.connector.elasticsearch
+
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{ConcurrentHashMap, Executors, ThreadFactory, TimeUnit}
+import java.util.function.{Function => JFunction}
+
+import com.sksamuel.elastic4s.{ElasticClient, ElasticsearchClientUri}
+import com.stratio.common.utils.components.logger.impl.SparkLoggerComponent
+import com.stratio.crossdata.connector.elasticsearch.DefaultSource._
+import org.elasticsearch.client.transport.TransportClient
+import org.elasticsearch.common.settings.Settings
+import org.elasticsearch.hadoop.cfg.ConfigurationOptions._
+
+import scala.annotation.tailrec
+import scala.collection.JavaConversions._
+import scala.util.Try
+
+/**
+  * Registry of native Elasticsearch clients shared by every query, listing and index lookup using the same connection
+  * parameters.
+  *
+  * Clients are reference counted: they are closed once they are no longer used and either they have been idle for
+  * `es.nativeClientMaxIdle` milliseconds or they have lost the connection with every node of the cluster.
+  */
+object ElasticSearchClientRegistry extends SparkLoggerComponent {
+
+  val ClientMaxIdle = "es.nativeClientMaxIdle"
+  val DefaultClientMaxIdle: Long = 5 * 60 * 1000L
+
+  private val EvictionIntervalMs: Long = 30 * 1000L
+
+  case class ClientKey(nodes: String, port: Int, clusterName: String)
+
+  private class SharedClient(val client: ElasticClient, val maxIdle: Long) {
+
+    // Number of current users of the client. It is set to -1 once the client has been closed
+    private val references = new AtomicInteger(0)
+    @volatile private var retired = false
+    @volatile var lastRelease: Long = System.currentTimeMillis()
+
+    @tailrec final def retain(): Boolean = {
+      val current = references.get()
+      if (current < 0) false
+      else if (references.compareAndSet(current, current + 1)) true
+      else retain()
+    }
+
+    def release(): Unit = {
+      lastRelease = System.currentTimeMillis()
+      if (references.decrementAndGet() == 0 && retired) closeIfUnused()
+    }
+
+    def retire(): Unit = {
+      retired = true
+      closeIfUnused()
+    }
+
+    def isIdle(now: Long): Boolean = references.get() == 0 && now - lastRelease > maxIdle
+
+    def isHealthy: Boolean = Try {
+      client.java match {
+        case transportClient: TransportClient => !transportClient.connectedNodes().isEmpty
+        case _ => true
+      }
+    } getOrElse false
+
+    private def closeIfUnused(): Unit =
+      if (references.compareAndSet(0, -1)) {
+        Try(client.close()) recover { case error => logWarning("Error closing Elasticsearch native client", error) }
+      }
+  }
+
+  private val clients = new ConcurrentHashMap[ClientKey, SharedClient]()
+
+  private lazy val evictor = {
+    val scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory {
+      override def newThread(r: Runnable): Thread = {
+        val thread = new Thread(r, "elasticsearch-client-evictor")
+        thread.setDaemon(true)
+        thread
+      }
+    })
+    scheduler.scheduleWithFixedDelay(new Runnable {
+      override def run(): Unit = evictIdleClients()
+    }, EvictionIntervalMs, EvictionIntervalMs, TimeUnit.MILLISECONDS)
+    scheduler
+  }
+
+  def withClientDo[T](parameters: Map[String, String])(f: ElasticClient => T): T = {
+    val sharedClient = acquire(parameters)
+    try {
+      f(sharedClient.client)
+    } finally {
+      sharedClient.release()
+    }
+  }
+
+  def clientKey(parameters: Map[String, String]): ClientKey = ClientKey(
+    parameters.getOrElse(ES_NODES, ES_NODES_DEFAULT),
+    parameters.getOrElse(ElasticNativePort, "9300").toInt,
+    parameters(ElasticCluster)
+  )
+
+  /**
+    * Closes every unused client which has been idle for too long.
+    */
+  def evictIdleClients(): Unit = {
+    val now = System.currentTimeMillis()
+    clients.entrySet() foreach { entry =>
+      if (entry.getValue.isIdle(now)) retire(entry.getKey, entry.getValue)
+    }
+  }
+
+  /**
+    * Closes all the clients as soon as they are no longer used.
+    */
+  def closeAll(): Unit = clients.entrySet() foreach (entry => retire(entry.getKey, entry.getValue))
+
+  def size: Int = clients.size()
+
+  private def acquire(parameters: Map[String, String]): SharedClient = {
+    val key = clientKey(parameters)
+
+    // A client which has just been built is used regardless of its health so that connection errors are reported
+    @tailrec def retainClient(checkHealth: Boolean): SharedClient = {
+      var built = false
+      val sharedClient = clients.computeIfAbsent(key, new JFunction[ClientKey, SharedClient] {
+        override def apply(key: ClientKey): SharedClient = {
+          built = true
+          new SharedClient(buildClient(key), Try(parameters(ClientMaxIdle).toLong).getOrElse(DefaultClientMaxIdle))
+        }
+      })
+
+      if (!sharedClient.retain()) {
+        clients.remove(key, sharedClient) // Closed by the evictor in the meantime
+        retainClient(checkHealth)
+      } else if (checkHealth && !built && !sharedClient.isHealthy) {
+        logWarning(s"Elasticsearch native client for $key is not connected to any node. It will be replaced")
+        sharedClient.release()
+        retire(key, sharedClient)
+        retainClient(checkHealth = false)
+      } else {
+        sharedClient
+      }
+    }
+
+    evictor
+    retainClient(checkHealth = true)
+  }
+
+  private def retire(key: ClientKey, sharedClient: SharedClient): Unit = {
+    clients.remove(key, sharedClient)
+    sharedClient.retire()
+  }
+
+  private def buildClient(key: ClientKey): ElasticClient = {
+    // TODO support for multiple host, no documentation found with expected format.
+    val uri = ElasticsearchClientUri(s"elasticsearch://${key.nodes}:${key.port}")
+
+    val settings = Settings.settingsBuilder().put("cluster.name", key.clusterName).build()
+    ElasticClient.transport(settings, uri)
+  }
+
+}
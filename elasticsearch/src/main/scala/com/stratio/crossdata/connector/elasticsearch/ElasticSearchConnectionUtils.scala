@@ -15,38 +15,19 @@
  */
 package com.stratio.crossdata.connector.elasticsearch
 
-import com.sksamuel.elastic4s.{ElasticClient, ElasticsearchClientUri}
+import com.sksamuel.elastic4s.ElasticClient
+import com.stratio.crossdata.connector.TableInventory
 import com.stratio.crossdata.connector.TableInventory.Table
 import com.stratio.crossdata.connector.elasticsearch.DefaultSource._
 import org.elasticsearch.client.IndicesAdminClient
 import org.elasticsearch.cluster.metadata.MappingMetaData
 import org.elasticsearch.common.collect.ImmutableOpenMap
-import org.elasticsearch.common.settings.Settings
 import org.elasticsearch.hadoop.cfg.ConfigurationOptions._
 
 object ElasticSearchConnectionUtils {
 
-  def withClientDo[T](parameters: Map[String, String])(f: ElasticClient => T): T = {
-    val client = buildClient(parameters)
-    try {
-      f(client)
-    } finally {
-      client.close()
-    }
-  }
-
-
-  private def buildClient(parameters: Map[String, String]): ElasticClient = {
-    val host: String = parameters.getOrElse(ES_NODES, ES_NODES_DEFAULT)
-    // TODO support for multiple host, no documentation found with expected format.
-    val port: Int = parameters.getOrElse(ElasticNativePort, "9300").toInt
-    val clusterName = parameters(ElasticCluster)
-
-    val uri = ElasticsearchClientUri(s"elasticsearch://$host:$port")
-
-    val settings = Settings.settingsBuilder().put("cluster.name", clusterName).build()
-    ElasticClient.transport(settings, uri)
-  }
+  def withClientDo[T](parameters: Map[String, String])(f: ElasticClient => T): T =
+    ElasticSearchClientRegistry.withClientDo(parameters)(f)
 
   def extractIndexAndType(options: Map[String, String]): Option[(String, String)] = {
     options.get(ES_RESOURCE).map{ indexType =>
@@ -56,9 +37,9 @@ object ElasticSearchConnectionUtils {
     }
   }
 
-  def listTypes(options: Map[String, String]): Seq[Table] = {
+  def listTypes(options: Map[String, String]): Seq[Table] = withClientDo(options) { client =>
 
-    val adminClient = buildClient(options).admin.indices()
+    val adminClient = client.admin.indices()
 
     val indexType: Option[(String, String)] =  extractIndexAndType(options)
     val index = indexType.map(_._1).orElse(options.get(ElasticIndex))
@@ -79,8 +60,8 @@ object ElasticSearchConnectionUtils {
 
   }
 
-  def numberOfTypes(options: Map[String, String]): Int = {
-    val adminClient = buildClient(options).admin.indices()
+  def numberOfTypes(options: Map[String, String]): Int = withClientDo(options) { client =>
+    val adminClient = client.admin.indices()
 
     val indexType: Option[(String, String)] =  extractIndexAndType(options)
     val index = indexType.map(_._1).orElse(options.get(ElasticIndex)) getOrElse sys.error("Index not found")
@@ -99,7 +80,11 @@ object ElasticSearchConnectionUtils {
 
   private def getIndexDetails(indexName: String, indexData: ImmutableOpenMap[String, MappingMetaData]): Seq[Table] = {
     val schema = None // Elasticsearch 'datasource' is already able to infer the schema
-    indexData.keys().map(typeES => new Table(typeES.value, Some(indexName), schema)).toSeq
+    indexData.keys().map { typeES =>
+      // The mapping of a type changes whenever new fields are added to it
+      val fingerprint = TableInventory.fingerprint(indexData.get(typeES.value).source().string())
+      Table(typeES.value, Some(indexName), schema, Some(fingerprint))
+    }.toSeq
   }
 
 }
@@ -21,17 +21,24 @@ import com.stratio.common.utils.components.logger.impl.SparkLoggerComponent
 import com.stratio.crossdata.connector.elasticsearch.ElasticSearchConnectionUtils._
 import org.apache.spark.sql.catalyst.expressions.{Attribute, Literal}
 import org.apache.spark.sql.catalyst.planning.PhysicalOperation
-import org.apache.spark.sql.catalyst.plans.logical.{Limit, LogicalPlan}
+import org.apache.spark.sql.catalyst.plans.logical.{Aggregate, LeafNode, Limit, LogicalPlan}
 import org.apache.spark.sql.{Row, sources}
-import org.apache.spark.sql.sources.CatalystToCrossdataAdapter.{BaseLogicalPlan, CrossdataExecutionPlan, FilterReport, ProjectReport, SimpleLogicalPlan}
+import org.apache.spark.sql.sources.CatalystToCrossdataAdapter.{AggregationLogicalPlan, BaseLogicalPlan, CrossdataExecutionPlan, FilterReport, ProjectReport, SimpleLogicalPlan}
 import org.apache.spark.sql.sources.{CatalystToCrossdataAdapter, Filter => SourceFilter}
-import org.apache.spark.sql.types.{StructField, StructType, ArrayType}
+import org.apache.spark.sql.execution.datasources.LogicalRelation
+import org.apache.spark.sql.types.{StringType, StructType}
 import org.elasticsearch.action.search.SearchResponse
 
 import scala.util.{Failure, Try}
 
 object ElasticSearchQueryProcessor {
 
+  val ScrollSize = "es.nativeScrollSize"
+  val ScrollKeepAlive = "es.nativeScrollKeepAlive"
+
+  val DefaultScrollSize = 1000
+  val DefaultScrollKeepAlive = "1m"
+
   def apply(logicalPlan: LogicalPlan, parameters: Map[String, String], schemaProvided: Option[StructType] = None)
                                           = new ElasticSearchQueryProcessor(logicalPlan, parameters, schemaProvided)
 }
@@ -46,6 +53,8 @@ object ElasticSearchQueryProcessor {
 class ElasticSearchQueryProcessor(val logicalPlan: LogicalPlan, val parameters: Map[String, String],
                                   val schemaProvided: Option[StructType] = None) extends SparkLoggerComponent {
 
+  import ElasticSearchQueryProcessor._
+
   type Limit = Option[Int]
 
   /**
@@ -55,20 +64,78 @@ class ElasticSearchQueryProcessor(val logicalPlan: LogicalPlan, val parameters:
    */
   def execute(): Option[Array[Row]] = {
 
-    def tryRows(requiredColumns: Seq[Attribute], finalQuery: SearchDefinition, esClient: ElasticClient): Try[Array[Row]] = {
-      val rows: Try[Array[Row]] = Try {
-        val resp: SearchResponse = esClient.execute(finalQuery).await.original
-        if (resp.getShardFailures.length > 0) {
-          val errors = resp.getShardFailures map { failure => failure.reason() }
-          throw new RuntimeException(errors mkString("Errors from ES:", ";\n", ""))
-        } else {
-          ElasticSearchRowConverter.asRows(schemaProvided.get, resp.getHits.getHits, requiredColumns)
-        }
+    val scrollSize = Try(parameters(ScrollSize).toInt).getOrElse(DefaultScrollSize)
+    val scrollKeepAlive = parameters.getOrElse(ScrollKeepAlive, DefaultScrollKeepAlive)
+
+    def checkShardFailures(resp: SearchResponse): Unit =
+      if (resp.getShardFailures.length > 0) {
+        val errors = resp.getShardFailures map { failure => failure.reason() }
+        throw new RuntimeException(errors mkString("Errors from ES:", ";\n", ""))
+      }
+
+    /* Results bigger than a page are scrolled. Each page is converted as soon as it is received so that
+     * just one page of hits is kept in memory */
+    def tryRows(requiredColumns: Seq[Attribute], finalQuery: SearchDefinition, limit: Limit, esClient: ElasticClient): Try[Array[Row]] = Try {
+      val rows = Array.newBuilder[Row]
+      val hitConverter = ElasticSearchRowConverter.HitConverter(schemaProvided.get, requiredColumns)
+
+      def appendHits(resp: SearchResponse, remaining: Limit): Limit = {
+        checkShardFailures(resp)
+        val hits = remaining.fold(resp.getHits.getHits)(resp.getHits.getHits.take(_))
+        rows ++= hitConverter.asRows(hits)
+        remaining.map(_ - hits.length)
+      }
+
+      limit match {
+        case Some(maxRows) if maxRows <= scrollSize =>
+          appendHits(esClient.execute(finalQuery size maxRows).await.original, limit)
+
+        case _ =>
+          var resp: SearchResponse = esClient.execute(finalQuery size scrollSize scroll scrollKeepAlive).await.original
+          try {
+            var remaining = appendHits(resp, limit)
+            while (resp.getHits.getHits.nonEmpty && remaining.forall(_ > 0)) {
+              resp = esClient.java.prepareSearchScroll(resp.getScrollId).setScroll(scrollKeepAlive).get()
+              remaining = appendHits(resp, remaining)
+            }
+          } finally {
+            Option(resp.getScrollId) foreach { scrollId =>
+              Try(esClient.java.prepareClearScroll().addScrollId(scrollId).get())
+            }
+          }
       }
-      rows
+
+      rows.result()
+    }
+
+    def tryAggregatedRows(aggregations: ElasticSearchAggregations, finalQuery: SearchDefinition, limit: Limit,
+                          esClient: ElasticClient): Try[Array[Row]] = Try {
+      val resp: SearchResponse = esClient.execute(aggregations.addTo(finalQuery)).await.original
+      checkShardFailures(resp)
+      val rows = aggregations.rows(resp)
+      limit.fold(rows)(rows.take)
     }
 
     val result: Try[Array[Row]] = validatedNativePlan.map {
+      case (_, Some(0)) =>
+        Try(Array.empty[Row])
+
+      case (AggregationLogicalPlan(aggregateExpressions, groupingExpressions, filters, _, _), limit) =>
+        val (esIndex, esType) = extractIndexAndType(parameters).get
+        val maxBuckets = Try(parameters(ElasticSearchAggregations.MaxBuckets).toInt)
+          .getOrElse(ElasticSearchAggregations.DefaultMaxBuckets)
+        val finalQuery = buildFilters(filters, search in esIndex / esType, filterContext = true)
+
+        Try(new ElasticSearchAggregations(groupingExpressions, aggregateExpressions, fieldName, maxBuckets)) flatMap { aggregations =>
+          withClientDo(parameters) { esClient =>
+            // Terms of analyzed strings are their tokens instead of the whole values
+            if (aggregations.fields.filter(_.dataType == StringType).forall(isNotAnalyzed(esClient, esIndex, esType, _)))
+              tryAggregatedRows(aggregations, finalQuery, limit, esClient)
+            else
+              Failure(new UnsupportedOperationException("Analyzed string fields cannot be aggregated natively"))
+          }
+        }
+
       case (baseLogicalPlan, limit) =>
         val requiredColumns = baseLogicalPlan match {
           case SimpleLogicalPlan(projects, _, _, _) =>
@@ -81,7 +148,7 @@ class ElasticSearchQueryProcessor(val logicalPlan: LogicalPlan, val parameters:
         val finalQuery = buildNativeQuery(requiredColumns, filters, search in esIndex / esType)
 
         withClientDo(parameters) { esClient =>
-          tryRows(requiredColumns, finalQuery, esClient)
+          tryRows(requiredColumns, finalQuery, limit, esClient)
         }
     }.getOrElse(Failure(new RuntimeException("Invalid native plan")))
 
@@ -94,7 +161,8 @@ class ElasticSearchQueryProcessor(val logicalPlan: LogicalPlan, val parameters:
     selectFields(requiredColumns, queryWithFilters)
   }
 
-  private def buildFilters(sFilters: Array[SourceFilter], query: SearchDefinition): SearchDefinition = {
+  // Aggregations only see the documents matching the query so, in that case, filters can't be post filters
+  private def buildFilters(sFilters: Array[SourceFilter], query: SearchDefinition, filterContext: Boolean = false): SearchDefinition = {
 
     val matchers = sFilters.collect {
       case sources.StringContains(attribute, value) => termQuery(attribute, value.toLowerCase)
@@ -112,11 +180,11 @@ class ElasticSearchQueryProcessor(val logicalPlan: LogicalPlan, val parameters:
       case sources.IsNull(attribute) => must(not(existsQuery(attribute)))
     }
 
-    val matchQuery = query bool must(matchers)
-
-    val finalQuery = if (searchFilters.isEmpty)
-      matchQuery
-    else matchQuery postFilter bool {
+    val finalQuery = if (filterContext)
+      query bool must(matchers ++ searchFilters)
+    else if (searchFilters.isEmpty)
+      query bool must(matchers)
+    else (query bool must(matchers)) postFilter bool {
       must(searchFilters)
     }
 
@@ -125,43 +193,51 @@ class ElasticSearchQueryProcessor(val logicalPlan: LogicalPlan, val parameters:
 
   }
 
-  private def selectFields(fields: Seq[Attribute], query: SearchDefinition): SearchDefinition = {
-      val subDocuments = schemaProvided.toSeq flatMap {
-        _.fields collect {
-          case StructField(name, _: StructType, _, _) => name
-          case StructField(name, ArrayType(_: StructType, _), _, _) => name
-        }
-      }
-      val stringFields: Seq[String] = fields.view map (_.name) filterNot (subDocuments contains _)
+  // Only the projected columns are fetched from the documents source
+  private def selectFields(fields: Seq[Attribute], query: SearchDefinition): SearchDefinition =
+    query.sourceInclude(fields.map(_.name).distinct: _*)
 
-      val fieldsQuery = query.fields(stringFields.toList: _*)
 
-      if(stringFields.size != fields.size)
-        fieldsQuery.sourceInclude(subDocuments: _*).sourceExclude(stringFields:_*)
-      else fieldsQuery
+  // Attributes of the plan are resolved into the fields of the relation, ignoring any alias
+  private lazy val fieldName: Attribute => String = {
+    val relationFields = logicalPlan.collectFirst { case lr: LogicalRelation => lr.output.map(a => a.exprId -> a.name).toMap }
+    attribute => relationFields.flatMap(_.get(attribute.exprId)).getOrElse {
+      throw new UnsupportedOperationException(s"${attribute.name} is not a field of the relation")
+    }
   }
 
+  private def isNotAnalyzed(esClient: ElasticClient, esIndex: String, esType: String, attribute: Attribute): Boolean = Try {
+    val mapping = esClient.admin.indices.prepareGetMappings(esIndex).setTypes(esType).get().mappings().get(esIndex).get(esType)
+    val properties = mapping.sourceAsMap().get("properties").asInstanceOf[java.util.Map[String, AnyRef]]
+    val fieldMapping = properties.get(fieldName(attribute)).asInstanceOf[java.util.Map[String, AnyRef]]
+    fieldMapping.get("index") == "not_analyzed"
+  } getOrElse false
 
   def validatedNativePlan: Option[(BaseLogicalPlan, Limit)] = {
-    lazy val limit: Option[Int] = logicalPlan.collectFirst { case Limit(Literal(num: Int, _), _) => num }
 
-    def findProjectsFilters(lplan: LogicalPlan): Option[BaseLogicalPlan] = {
+    // A limit is only honored above the aggregation: below it, it would restrict the documents to aggregate
+    def findProjectsFilters(lplan: LogicalPlan, limit: Limit, aggregated: Boolean): Option[(BaseLogicalPlan, Limit)] = {
       lplan match {
 
-        case Limit(_, child) =>
-          findProjectsFilters(child)
+        case Limit(Literal(num: Int, _), child) if !aggregated =>
+          findProjectsFilters(child, Some(limit.fold(num)(_ min num)), aggregated)
+
+        case aggregate @ Aggregate(_, _, child) if !aggregated && ElasticSearchAggregations.isSupported(aggregate) =>
+          findProjectsFilters(child, limit, aggregated = true)
 
-        case PhysicalOperation(projectList, filterList, _) =>
+        case PhysicalOperation(projectList, filterList, _: LeafNode) =>
           CatalystToCrossdataAdapter.getConnectorLogicalPlan(logicalPlan, projectList, filterList) match {
             case CrossdataExecutionPlan(_, ProjectReport(exprIgnored), FilterReport(filtersIgnored, _)) if filtersIgnored.nonEmpty || exprIgnored.nonEmpty =>
               None
             case CrossdataExecutionPlan(basePlan, _, _) =>
-              Some(basePlan)
+              Some((basePlan, limit))
           }
+
+        case _ => None // e.g: A limit below a projection or an aggregation
       }
     }
 
-    findProjectsFilters(logicalPlan).collect{ case bp if checkNativeFilters(bp.filters) => (bp, limit) }
+    findProjectsFilters(logicalPlan, None, aggregated = false) filter { case (bp, _) => checkNativeFilters(bp.filters) }
   }
 
   private[this] def checkNativeFilters(filters: Array[SourceFilter]): Boolean = filters.forall {
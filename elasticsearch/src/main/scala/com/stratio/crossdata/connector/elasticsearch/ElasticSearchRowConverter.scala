@@ -25,73 +25,84 @@ import org.apache.spark.sql.Row
 import org.apache.spark.sql.catalyst.expressions.{Attribute, GenericRowWithSchema}
 import org.apache.spark.sql.types._
 import org.elasticsearch.search.SearchHit
-import org.elasticsearch.search.SearchHitField
 import org.joda.time.DateTime
 
-import scala.collection.JavaConverters._
-
 object ElasticSearchRowConverter {
 
+  type FieldConverter = Any => Any
 
-  def asRows(schema: StructType, array: Array[SearchHit], requiredFields: Seq[Attribute]): Array[Row] = {
+  def asRows(schema: StructType, array: Array[SearchHit], requiredFields: Seq[Attribute]): Array[Row] =
+    HitConverter(schema, requiredFields).asRows(array)
 
-    array map { hit =>
-      hitAsRow(
-        hit.fields().asScala.toMap,
-        Option(hit.getSource).map(_.asScala.toMap).getOrElse(Map.empty),
-        schema,
-        requiredFields.map(_.name)
-      )
-    }
-  }
+  /**
+    * Converter of the hits of a query into rows of the required fields. The type conversion of each field is resolved
+    * once, when the converter is built, so it should be reused for every hit of the query. Converters are not
+    * thread-safe.
+    */
+  case class HitConverter(schema: StructType, requiredFields: Seq[Attribute]) {
 
-  def hitAsRow(
-                hitFields: Map[String, SearchHitField],
-                subDocuments: Map[String, AnyRef],
-                schema: StructType,
-                requiredFields: Seq[String]): Row = {
+    private val fieldNames: Array[String] = requiredFields.map(_.name).toArray
 
-    val schemaMap = schema.map(field => field.name -> field.dataType).toMap
+    private val fieldConverters: Array[FieldConverter] = fieldNames map (name => converter(schema(name).dataType))
 
-    val values: Seq[Any] = requiredFields.map { name =>
+    def asRows(hits: Array[SearchHit]): Array[Row] = {
+      val rows = new Array[Row](hits.length)
+      var i = 0
+      while (i < hits.length) {
+        rows(i) = asRow(hits(i))
+        i += 1
+      }
+      rows
+    }
 
-      // TODO: Note that if a nested subdocument is targeted, it won't work and this algorithm should be made recursive.
-      (hitFields.get(name) orElse subDocuments.get(name)).flatMap(Option(_)) map {
-        ((value: Any) => enforceCorrectType(value, schemaMap(name))) compose {
-          case hitField: SearchHitField =>
-            if(hitField.getValues.size()>1) hitField.getValues
-            else hitField.getValue
-          case other => other
+    def asRow(hit: SearchHit): Row = {
+      val hitFields = hit.fields()
+      val source = hit.getSource
+      val values = new Array[Any](fieldNames.length)
+
+      var i = 0
+      while (i < fieldNames.length) {
+        // TODO: Note that if a nested subdocument is targeted, it won't work and this algorithm should be made recursive.
+        val value = hitFields.get(fieldNames(i)) match {
+          case null => if (source == null) null else source.get(fieldNames(i))
+          case hitField => if (hitField.getValues.size() > 1) hitField.getValues else hitField.getValue[Any]
         }
-      } orNull
+        values(i) = if (value == null) null else fieldConverters(i)(value)
+        i += 1
+      }
 
+      new GenericRowWithSchema(values, schema)
     }
-    new GenericRowWithSchema(values.toArray, schema)
   }
 
-  protected def enforceCorrectType(value: Any, desiredType: DataType): Any =
-      // TODO check if value==null
-      desiredType match {
-        case StringType => value.toString
-        case _ if value == "" => null // guard the non string type
-        case ByteType => toByte(value)
-        case ShortType => toShort(value)
-        case IntegerType => toInt(value)
-        case LongType => toLong(value)
-        case DoubleType => toDouble(value)
-        case FloatType => toFloat(value)
-        case DecimalType() => toDecimal(value)
-        case BooleanType => value.asInstanceOf[Boolean]
-        case TimestampType => toTimestamp(value)
-        case NullType => null
-        case DateType => toDate(value)
-        case BinaryType => toBinary(value)
-        case schema: StructType => toRow(value, schema)
-        case ArrayType(elementType: DataType, _) => toArray(value, elementType)
-        case _ =>
-          sys.error(s"Unsupported datatype conversion [${value.getClass}},$desiredType]")
-          value
-      }
+  /**
+    * @return The conversion of the values of a field into the desired type. Values are not null.
+    */
+  def converter(desiredType: DataType): FieldConverter = {
+
+    // guard the non string types
+    def nonEmpty(convert: FieldConverter): FieldConverter = value => if (value == "") null else convert(value)
+
+    desiredType match {
+      case StringType => _.toString
+      case ByteType => nonEmpty(toByte)
+      case ShortType => nonEmpty(toShort)
+      case IntegerType => nonEmpty(toInt)
+      case LongType => nonEmpty(toLong)
+      case DoubleType => nonEmpty(toDouble)
+      case FloatType => nonEmpty(toFloat)
+      case DecimalType() => nonEmpty(toDecimal)
+      case BooleanType => nonEmpty(_.asInstanceOf[Boolean])
+      case TimestampType => nonEmpty(timestampConverter)
+      case NullType => _ => null
+      case DateType => nonEmpty(toDate)
+      case BinaryType => nonEmpty(toBinary)
+      case schema: StructType => nonEmpty(rowConverter(schema))
+      case ArrayType(elementType: DataType, _) => nonEmpty(arrayConverter(elementType))
+      case _ =>
+        value => sys.error(s"Unsupported datatype conversion [${value.getClass}},$desiredType]")
+    }
+  }
 
   private def toByte(value: Any): Byte = value match {
     case value: Byte => value
@@ -104,12 +115,9 @@ object ElasticSearchRowConverter {
     case value: Long => value.toShort
   }
 
-  private def toInt(value: Any): Int = {
-    import scala.language.reflectiveCalls
-    value match {
-      case value: String => value.toInt
-      case _ => value.asInstanceOf[ {def toInt: Int}].toInt
-    }
+  private def toInt(value: Any): Int = value match {
+    case value: String => value.toInt
+    case value: Number => value.intValue
   }
 
   private def toLong(value: Any): Long = {
@@ -146,14 +154,14 @@ object ElasticSearchRowConverter {
     }
   }
 
-  private def toTimestamp(value: Any): Timestamp = {
-    value match {
-      case value : String =>
-        val dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'hh:mm:ss.SSS")
-        val parsedDate = dateFormat.parse(value)
-        new java.sql.Timestamp(parsedDate.getTime)
+  // The date format is built once per converter
+  private def timestampConverter: FieldConverter = {
+    val dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'hh:mm:ss.SSS")
+
+    {
+      case value: String => new java.sql.Timestamp(dateFormat.parse(value).getTime)
       case value: java.util.Date => new Timestamp(value.getTime)
-      case _ => sys.error(s"Unsupported datatype conversion [${value.getClass}},Timestamp]")
+      case value => sys.error(s"Unsupported datatype conversion [${value.getClass}},Timestamp]")
     }
   }
 
@@ -170,16 +178,30 @@ object ElasticSearchRowConverter {
   }
 
 
-  def toRow(value: Any, schema: StructType): Row = value match {
-    case m: util.HashMap[String @ unchecked, _] =>
-      val rowValues = schema.fields map (field => enforceCorrectType(m.get(field.name), field.dataType))
-      new GenericRowWithSchema(rowValues, schema)
-    case _ => sys.error(s"Unsupported datatype conversion [${value.getClass}},Row")
+  private def rowConverter(schema: StructType): FieldConverter = {
+    val fieldConverters = schema.fields map (field => converter(field.dataType))
+
+    {
+      case m: util.Map[String @unchecked, _] =>
+        val rowValues = new Array[Any](fieldConverters.length)
+        var i = 0
+        while (i < fieldConverters.length) {
+          val fieldValue = m.get(schema.fields(i).name)
+          rowValues(i) = if (fieldValue == null) null else fieldConverters(i)(fieldValue)
+          i += 1
+        }
+        new GenericRowWithSchema(rowValues, schema)
+      case value => sys.error(s"Unsupported datatype conversion [${value.getClass}},Row")
+    }
   }
 
-  def toArray(value: Any, elementType: DataType): Seq[Any] = value match {
-    case arr: util.ArrayList[Any] =>
-      arr.toArray.map(enforceCorrectType(_, elementType))
+  private def arrayConverter(elementType: DataType): FieldConverter = {
+    val elementConverter = converter(elementType)
+
+    {
+      case arr: util.List[_] =>
+        arr.toArray.map(element => if (element == null) null else elementConverter(element)): Seq[Any]
+    }
   }
 
 }
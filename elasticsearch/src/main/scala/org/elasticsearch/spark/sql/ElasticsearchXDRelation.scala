@@ -18,9 +18,9 @@ package org.elasticsearch.spark.sql
 import java.sql.{Date, Timestamp}
 
 import com.stratio.crossdata.connector.NativeScan
-import com.stratio.crossdata.connector.elasticsearch.ElasticSearchQueryProcessor
+import com.stratio.crossdata.connector.elasticsearch.{ElasticSearchAggregations, ElasticSearchQueryProcessor}
 import org.apache.spark.{Logging, Partition, SparkContext, TaskContext}
-import org.apache.spark.sql.catalyst.plans.logical.{LeafNode, LogicalPlan, Project, UnaryNode, Filter => FilterPlan}
+import org.apache.spark.sql.catalyst.plans.logical.{Aggregate, LeafNode, LogicalPlan, Project, UnaryNode, Filter => FilterPlan}
 import org.apache.spark.sql.catalyst.plans.logical.Limit
 import org.apache.spark.sql.sources._
 import org.apache.spark.sql.types._
@@ -133,8 +133,8 @@ class ElasticsearchXDRelation(parameters: Map[String, String], sqlContext: SQLCo
   override def isSupported(logicalStep: LogicalPlan, wholeLogicalPlan: LogicalPlan): Boolean = logicalStep match {
     case ln: LeafNode => true // TODO leafNode == LogicalRelation(xdSourceRelation)
     case un: UnaryNode => un match {
-      case Project(_, _) | FilterPlan(_, _)  => true
-      case Limit(_, _)=> false //TODO add support to others
+      case Project(_, _) | FilterPlan(_, _) | Limit(_, _) => true
+      case aggregate: Aggregate => ElasticSearchAggregations.isSupported(aggregate)
       case _ => false
 
     }
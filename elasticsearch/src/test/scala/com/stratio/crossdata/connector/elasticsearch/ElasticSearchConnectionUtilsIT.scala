@@ -116,4 +116,22 @@ class ElasticSearchConnectionUtilsIT extends ElasticWithSharedContext with Elast
 
   }
 
+  it should "share the native ES Connection among calls with the same connection parameters" in {
+    assumeEnvironmentIsUpAndRunning
+    val options: Map[String, String] = Map(
+      "es.nodes" -> s"$ElasticHost",
+      "es.port" -> s"$ElasticRestPort",
+      "es.nativePort" -> s"$ElasticNativePort",
+      "es.cluster" -> s"$ElasticClusterName"
+    )
+
+    //Experimentation
+    val firstClient = ElasticSearchConnectionUtils.withClientDo(options)(identity)
+    val secondClient = ElasticSearchConnectionUtils.withClientDo(options)(identity)
+
+    //Expectations
+    secondClient should be theSameInstanceAs firstClient
+
+  }
+
 }
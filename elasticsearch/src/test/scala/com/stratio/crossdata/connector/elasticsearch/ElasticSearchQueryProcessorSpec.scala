@@ -47,7 +47,7 @@ class ElasticSearchQueryProcessorSpec extends BaseXDTest with MockitoSugar {
 
     //Expectations
     result should not be null
-    result.toString().replace("\n", "").replace(" ", "") should be("{\"query\":{\"bool\":{}},\"fields\":\"title\"}")
+    result.toString().replace("\n", "").replace(" ", "") should be("{\"query\":{\"bool\":{}},\"_source\":{\"includes\":[\"title\"],\"excludes\":[]}}")
   }
 
 
@@ -69,7 +69,7 @@ class ElasticSearchQueryProcessorSpec extends BaseXDTest with MockitoSugar {
 
     //Expectations
     result should not be null
-    result.toString().replace("\n", "").replace(" ", "") should be("{\"query\":{\"bool\":{}},\"post_filter\":{\"bool\":{\"must\":{\"term\":{\"year\":1990}}}},\"fields\":\"title\"}")
+    result.toString().replace("\n", "").replace(" ", "") should be("{\"query\":{\"bool\":{}},\"post_filter\":{\"bool\":{\"must\":{\"term\":{\"year\":1990}}}},\"_source\":{\"includes\":[\"title\"],\"excludes\":[]}}")
   }
 
 
@@ -91,6 +91,6 @@ class ElasticSearchQueryProcessorSpec extends BaseXDTest with MockitoSugar {
 
     //Expectations
     result should not be null
-    result.toString().replace("\n", "").replace(" ", "") should be("{\"query\":{\"bool\":{}},\"post_filter\":{\"bool\":{\"must\":[{\"term\":{\"year\":1990}},{\"term\":{\"Name\":\"Lord\"}}]}},\"fields\":\"title\"}")
+    result.toString().replace("\n", "").replace(" ", "") should be("{\"query\":{\"bool\":{}},\"post_filter\":{\"bool\":{\"must\":[{\"term\":{\"year\":1990}},{\"term\":{\"Name\":\"Lord\"}}]}},\"_source\":{\"includes\":[\"title\"],\"excludes\":[]}}")
   }
 }
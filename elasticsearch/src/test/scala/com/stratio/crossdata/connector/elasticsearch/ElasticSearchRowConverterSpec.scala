@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2015 Stratio (http://stratio.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.crossdata.connector.elasticsearch
+
+import com.stratio.crossdata.test.BaseXDTest
+import org.apache.spark.sql.Row
+import org.apache.spark.sql.catalyst.expressions.AttributeReference
+import org.apache.spark.sql.types._
+import org.elasticsearch.common.bytes.BytesArray
+import org.elasticsearch.common.text.StringText
+import org.elasticsearch.search.SearchHitField
+import org.elasticsearch.search.internal.{InternalSearchHit, InternalSearchHitField}
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+
+import scala.collection.JavaConversions._
+
+@RunWith(classOf[JUnitRunner])
+class ElasticSearchRowConverterSpec extends BaseXDTest {
+
+  val schema = StructType(Seq(
+    StructField("id", IntegerType),
+    StructField("name", StringType),
+    StructField("salary", DoubleType),
+    StructField("tags", ArrayType(StringType)),
+    StructField("team", StructType(Seq(StructField("id", LongType), StructField("name", StringType))))
+  ))
+
+  val requiredFields = schema.fields.map(field => AttributeReference(field.name, field.dataType)())
+
+  "A HitConverter" should "convert the source of the hits into rows of the required fields" in {
+    //Fixture
+    val hitConverter = ElasticSearchRowConverter.HitConverter(schema, requiredFields)
+
+    //Experimentation
+    val rows = hitConverter.asRows(Array(
+      hit("""{"id": 1, "name": "Name 1", "salary": 1000, "tags": ["a", "b"], "team": {"id": 2, "name": "team 1"}}"""),
+      hit("""{"id": "2", "salary": ""}""")
+    ))
+
+    //Expectations
+    rows(0).toSeq should be (Seq(1, "Name 1", 1000.0, Seq("a", "b"), Row(2L, "team 1")))
+    rows(1).toSeq should be (Seq(2, null, null, null, null))
+  }
+
+  it should "take the values of the stored fields before the source ones" in {
+    //Fixture
+    val hitConverter = ElasticSearchRowConverter.HitConverter(schema, requiredFields.take(2))
+
+    //Experimentation
+    val row = hitConverter.asRow(hit("""{"id": 1, "name": "source"}""", "name" -> Seq("stored")))
+
+    //Expectations
+    row.toSeq should be (Seq(1, "stored"))
+  }
+
+  private def hit(source: String, storedFields: (String, Seq[AnyRef])*): InternalSearchHit = {
+    val fields: Map[String, SearchHitField] = storedFields.map { case (name, values) =>
+      name -> new InternalSearchHitField(name, values)
+    } toMap
+
+    new InternalSearchHit(0, "id", new StringText("type"), fields).sourceRef(new BytesArray(source))
+  }
+
+}
@@ -15,6 +15,7 @@
  */
 package com.stratio.crossdata.connector.elasticsearch
 
+import org.apache.spark.sql.Row
 import org.apache.spark.sql.crossdata.ExecutionType._
 import org.joda.time.DateTime
 import org.junit.runner.RunWith
@@ -248,6 +249,77 @@ class ElasticsearchConnectorIT extends ElasticWithSharedContext {
     result(0).getDate(1) should be (DateTime.parse((1981)+"-01-01T10:00:00-00:00").toDate)
   }
 
+  it should "select with LIMIT" in {
+    assumeEnvironmentIsUpAndRunning
+
+    //Experimentation
+    val dataframe = sql(s"SELECT name, age FROM $Type LIMIT 3")
+
+    //Expectations
+    dataframe.collect(Native) should have length 3
+  }
+
+  it should "scroll the results bigger than a page" in {
+    assumeEnvironmentIsUpAndRunning
+
+    //Experimentation
+    val dataframe = sql(s"SELECT id FROM $Type")
+    val queryProcessor = ElasticSearchQueryProcessor(
+      dataframe.queryExecution.optimizedPlan,
+      defaultOptions + ("es.resource" -> s"$Index/$Type") + (ElasticSearchQueryProcessor.ScrollSize -> "3"),
+      Some(dataframe.schema)
+    )
+
+    //Expectations
+    queryProcessor.execute().get.map(_.getInt(0)) should contain theSameElementsAs (1 to 10)
+  }
+
+  it should "push down count and metric aggregations" in {
+    assumeEnvironmentIsUpAndRunning
+
+    //Experimentation
+    val dataframe = sql(s"SELECT count(*), min(age), max(age), avg(age) FROM $Type WHERE age > 15")
+
+    //Expectations
+    dataframe.collect(Native) should contain only Row(5L, 16, 20, 18.0)
+  }
+
+  it should "push down aggregations grouped by not analyzed fields" in {
+    assumeEnvironmentIsUpAndRunning
+
+    //Experimentation
+    val dataframe = sql(s"SELECT name, count(*), sum(age) FROM $Type WHERE id <= 3 GROUP BY name")
+
+    //Expectations
+    dataframe.collect(Native) should contain theSameElementsAs Seq(Row("Name 1", 1L, 11L), Row("Name 2", 1L, 12L), Row("Name 3", 1L, 13L))
+  }
+
+  it should "push down distinct counts" in {
+    assumeEnvironmentIsUpAndRunning
+
+    //Experimentation
+    val dataframe = sql(s"SELECT count(DISTINCT name) FROM $Type WHERE age > 15")
+
+    //Expectations
+    dataframe.collect(Native) should contain only Row(5L)
+  }
+
+  it should "not push down the aggregations of limited subqueries" in {
+    assumeEnvironmentIsUpAndRunning
+
+    //Experimentation
+    val dataframe = sql(s"SELECT count(*) FROM (SELECT * FROM $Type LIMIT 5) limited")
+    val queryProcessor = ElasticSearchQueryProcessor(
+      dataframe.queryExecution.optimizedPlan,
+      defaultOptions + ("es.resource" -> s"$Index/$Type"),
+      Some(dataframe.schema)
+    )
+
+    //Expectations
+    queryProcessor.validatedNativePlan shouldBe None
+    dataframe.collect() should contain only Row(5L)
+  }
+
   //TODO add support for dates in query?
   ignore should "select with Date Range" in {
     assumeEnvironmentIsUpAndRunning
@@ -15,6 +15,8 @@
  */
 package com.stratio.crossdata.connector.mongodb
 
+import java.util.concurrent.Executors
+
 import com.mongodb.DBCollection
 import com.mongodb.casbah.Imports.DBObject
 import com.mongodb.casbah.MongoDB
@@ -29,6 +31,8 @@ import org.apache.spark.sql.sources.{BaseRelation, DataSourceRegister}
 import org.apache.spark.sql.types.StructType
 import org.apache.spark.sql.{DataFrame, SQLContext, SaveMode}
 
+import scala.concurrent.duration.Duration
+import scala.concurrent.{Await, ExecutionContext, Future}
 import scala.util.{Failure, Try}
 
 /**
@@ -55,6 +59,11 @@ class DefaultSource extends ProviderDS with TableInventory with DataSourceRegist
     */
   val MongoCollectionPropertyMax:String= "max"
 
+  /**
+    * max number of collections whose schema is inferred at the same time by IMPORT TABLES
+    */
+  val SchemaInferenceParallelism: String = "schemaInferenceParallelism"
+
   override def shortName(): String = "mongodb"
 
   override def createRelation(
@@ -111,13 +120,24 @@ class DefaultSource extends ProviderDS with TableInventory with DataSourceRegist
   /**
    * @inheritdoc
    */
-  override def listTables(context: SQLContext, options: Map[String, String]): Seq[Table] = {
+  override def listTables(context: SQLContext, options: Map[String, String]): Seq[Table] =
+    listTables(context, options, _ => None)
+
+  /**
+   * @inheritdoc
+   *
+   * The fingerprint of a collection is built from its stats (number of documents, size and indexes) so the schema
+   * of the unchanged collections is not sampled again. The rest of the collections are sampled in parallel.
+   */
+  override def listTables(context: SQLContext,
+                          options: Map[String, String],
+                          previousImport: Table => Option[Table]): Seq[Table] = {
 
     Seq(Host).foreach { opName =>
       if (!options.contains(opName)) sys.error( s"""Option "$opName" is mandatory for IMPORT TABLES""")
     }
 
-    MongodbConnection.withClientDo(parseParametersWithoutValidation(options)) { mongoClient =>
+    val collections: Seq[Table] = MongodbConnection.withClientDo(parseParametersWithoutValidation(options)) { mongoClient =>
 
       def extractAllDatabases: Seq[MongoDB] =
         mongoClient.getDatabaseNames().map(mongoClient.getDB)
@@ -130,17 +150,41 @@ class DefaultSource extends ProviderDS with TableInventory with DataSourceRegist
         collection: DBCollection <- extractAllCollections(database)
         if options.get(Database).forall( _ == collection.getDB.getName)
         if options.get(Collection).forall(_ == collection.getName)
+        table = Table(collection.getName, Some(database.getName))
+        if exclusionFilter(table)
       } yield {
-        collectionToTable(context, options, database.getName, collection.getName)
+        table.copy(fingerprint = Some(collectionFingerprint(collection)))
       }
       tablesIt.toSeq
     }
+
+    val parallelism = options.get(SchemaInferenceParallelism).map(_.toInt) getOrElse Runtime.getRuntime.availableProcessors
+    val executor = Executors.newFixedThreadPool(parallelism max 1)
+    implicit val ec = ExecutionContext.fromExecutor(executor)
+
+    try {
+      val tables = collections map { table =>
+        previousImport(table) filter (_.fingerprint == table.fingerprint) map { unchanged =>
+          Future.successful(table.copy(schema = unchanged.schema))
+        } getOrElse Future {
+          collectionToTable(context, options, table.database.get, table.tableName).copy(fingerprint = table.fingerprint)
+        }
+      }
+      Await.result(Future.sequence(tables), Duration.Inf)
+    } finally {
+      executor.shutdown()
+    }
   }
 
   //Avoids importing system tables
   override def exclusionFilter(t: TableInventory.Table): Boolean =
     !t.tableName.startsWith("""system.""") && !t.database.get.equals("local")
 
+  private def collectionFingerprint(collection: DBCollection): String = {
+    val stats = collection.getStats
+    TableInventory.fingerprint(Seq("count", "size", "nindexes").map(stats.get).mkString(":"))
+  }
+
   private def collectionToTable(context: SQLContext, options: Map[String, String], database: String, collection: String): Table = {
 
     val collectionConfig = MongodbConfigBuilder()
@@ -15,9 +15,10 @@
  */
 package com.stratio.crossdata.connector.mongodb
 
+import java.util
 import java.util.regex.Pattern
 
-import com.mongodb.{DBObject, QueryBuilder}
+import com.mongodb.{DBObject, QueryBuilder, QueryOperators, ReadPreference => MongoReadPreference}
 import com.mongodb.casbah.Imports._
 import com.stratio.common.utils.components.logger.impl.SparkLoggerComponent
 import com.stratio.datasource.mongodb.MongodbConnection
@@ -33,9 +34,29 @@ import org.apache.spark.sql.sources.CatalystToCrossdataAdapter.{BaseLogicalPlan,
 import org.apache.spark.sql.sources.{CatalystToCrossdataAdapter, Filter => SourceFilter}
 import org.apache.spark.sql.types.StructType
 
+import scala.collection.JavaConverters._
+
 object MongoQueryProcessor {
 
   val DefaultLimit = 10000
+
+  /**
+    * Number of documents fetched by each round trip of native queries. They are converted into rows batch by batch.
+    */
+  val CursorBatchSize = "cursorBatchSize"
+  val DefaultCursorBatchSize = 1000
+
+  /**
+    * Read preference of native queries, e.g: secondaryPreferred. The read preference of the collection is used if
+    * not provided.
+    */
+  val ReadPreference = "readPreference"
+
+  /**
+    * Name of the index which native queries must use.
+    */
+  val Hint = "hint"
+
   type ColumnName = String
   type Limit = Option[Int]
 
@@ -57,8 +78,7 @@ object MongoQueryProcessor {
 
   def filtersToDBObject(
                          sFilters: Array[SourceFilter],
-                         name2randomAccess: Map[String, GetArrayItem],
-                         parentFilterIsNot: Boolean = false
+                         name2randomAccess: Map[String, GetArrayItem]
                        )(implicit config: Config): DBObject = {
 
     def attstr2left(att: String): String =
@@ -67,9 +87,24 @@ object MongoQueryProcessor {
           s"${att.name}.${ordinal.toString}"
       } getOrElse att
 
+    def subFilter(filters: SourceFilter*): DBObject = filtersToDBObject(filters.toArray, name2randomAccess)
+
+    /* Negations are pushed down to the leaves of the filter (De Morgan's laws) because MongoDB `$not` and `$nor`
+     * match the documents without the field, whereas SQL negations are never satisfied by null values */
+    def negate(filter: SourceFilter): DBObject = filter match {
+      case sources.Not(child) => subFilter(child)
+      case sources.And(left, right) => subFilter(sources.Or(sources.Not(left), sources.Not(right)))
+      case sources.Or(left, right) => subFilter(sources.Not(left), sources.Not(right))
+      case sources.IsNull(attribute) => subFilter(sources.IsNotNull(attribute))
+      case sources.IsNotNull(attribute) => subFilter(sources.IsNull(attribute))
+      case leaf =>
+        val negation = subFilter(sources.IsNotNull(filterAttribute(leaf)))
+        negation.put(QueryOperators.NOR, util.Arrays.asList(subFilter(leaf)))
+        negation
+    }
+
     val queryBuilder: QueryBuilder = QueryBuilder.start
 
-    if (parentFilterIsNot) queryBuilder.not()
     sFilters.foreach {
       case sources.EqualTo(attribute, value) =>
         queryBuilder.put(attstr2left(attribute)).is(correctIdValue(attribute, value))
@@ -87,25 +122,36 @@ object MongoQueryProcessor {
         queryBuilder.put(attstr2left(attribute)).is(null)
       case sources.IsNotNull(attribute) =>
         queryBuilder.put(attstr2left(attribute)).notEquals(null)
-      case sources.And(leftFilter, rightFilter) if !parentFilterIsNot =>
-        queryBuilder.and(filtersToDBObject(Array(leftFilter), name2randomAccess),
-          filtersToDBObject(Array(rightFilter),name2randomAccess))
-      case sources.Or(leftFilter, rightFilter) if !parentFilterIsNot =>
-        queryBuilder.or(filtersToDBObject(Array(leftFilter),name2randomAccess),
-          filtersToDBObject(Array(rightFilter), name2randomAccess))
-      case sources.StringStartsWith(attribute, value) if !parentFilterIsNot =>
-        queryBuilder.put(attstr2left(attribute)).regex(Pattern.compile("^" + value + ".*$"))
-      case sources.StringEndsWith(attribute, value) if !parentFilterIsNot =>
-        queryBuilder.put(attstr2left(attribute)).regex(Pattern.compile("^.*" + value + "$"))
-      case sources.StringContains(attribute, value) if !parentFilterIsNot =>
-        queryBuilder.put(attstr2left(attribute)).regex(Pattern.compile(".*" + value + ".*"))
+      case sources.And(leftFilter, rightFilter) =>
+        queryBuilder.and(subFilter(leftFilter), subFilter(rightFilter))
+      case sources.Or(leftFilter, rightFilter) =>
+        // Wrapped within an $and so that several disjunctions are not merged into the same $or
+        queryBuilder.and(QueryBuilder.start.or(subFilter(leftFilter), subFilter(rightFilter)).get)
+      case sources.StringStartsWith(attribute, value) =>
+        queryBuilder.put(attstr2left(attribute)).regex(Pattern.compile("^" + Pattern.quote(value) + ".*$"))
+      case sources.StringEndsWith(attribute, value) =>
+        queryBuilder.put(attstr2left(attribute)).regex(Pattern.compile("^.*" + Pattern.quote(value) + "$"))
+      case sources.StringContains(attribute, value) =>
+        queryBuilder.put(attstr2left(attribute)).regex(Pattern.compile(".*" + Pattern.quote(value) + ".*"))
       case sources.Not(filter) =>
-        filtersToDBObject(Array(filter), name2randomAccess, true)
+        queryBuilder.and(negate(filter))
     }
 
     queryBuilder.get
   }
 
+  private def filterAttribute(filter: SourceFilter): String = filter match {
+    case sources.EqualTo(attribute, _) => attribute
+    case sources.GreaterThan(attribute, _) => attribute
+    case sources.GreaterThanOrEqual(attribute, _) => attribute
+    case sources.LessThan(attribute, _) => attribute
+    case sources.LessThanOrEqual(attribute, _) => attribute
+    case sources.In(attribute, _) => attribute
+    case sources.StringStartsWith(attribute, _) => attribute
+    case sources.StringEndsWith(attribute, _) => attribute
+    case sources.StringContains(attribute, _) => attribute
+  }
+
     /**
       * Check if the field is "_id" and if the user wants to filter by this field as an ObjectId
       *
@@ -153,16 +199,24 @@ class MongoQueryProcessor(logicalPlan: LogicalPlan, config: Config, schemaProvid
 
   import MongoQueryProcessor._
 
-  def execute(): Option[Array[Row]] = {
+  def execute(): Option[Array[Row]] = withRowsDo(_.toArray)
+
+  /**
+    * Executes the plan natively, streaming the results: the documents are fetched and converted into rows in batches
+    * of `cursorBatchSize` as the iterator is consumed, so just one batch is kept in memory. The cursor is closed once
+    * `f` returns so the iterator must not escape it.
+    *
+    * @return the result of `f` or None if the plan cannot be executed natively
+    */
+  def withRowsDo[T](f: Iterator[Row] => T): Option[T] = {
 
-    // TODO convert to Spark result using an iterator with batches instead of an array
     if (schemaProvided.isEmpty) {
       None
     } else {
       try {
         validatedNativePlan.map { case MongoPlan(bs: SimpleLogicalPlan, limit) =>
           if (limit.exists(_ == 0)) {
-            Array.empty[Row]
+            f(Iterator.empty)
           } else {
             val name2randomAccess = bs.collectionRandomAccesses.map {
               case (k, v) => s"${k.name}[${v.right}]" -> v
@@ -172,14 +226,24 @@ class MongoQueryProcessor(logicalPlan: LogicalPlan, config: Config, schemaProvid
               config,
               name2randomAccess
             )
-            val resultSet = MongodbConnection.withCollectionDo(config) { collection =>
+            val batchSize = config.get[String](CursorBatchSize).map(_.toInt).getOrElse(DefaultCursorBatchSize)
+            val schema = prunedSchema(bs.projects, bs.collectionRandomAccesses, schemaProvided.get)
+
+            MongodbConnection.withCollectionDo(config) { collection =>
               logDebug(s"Executing native query: filters => $mongoFilters projects => $mongoRequiredColumns")
-              val cursor = collection.find(mongoFilters, mongoRequiredColumns)
-              val result = cursor.limit(limit.getOrElse(DefaultLimit)).toArray[DBObject]
-              cursor.close()
-              result
+              val cursor = collection.find(mongoFilters, mongoRequiredColumns).underlying
+                .limit(limit.getOrElse(DefaultLimit))
+                .batchSize(batchSize)
+              config.get[String](ReadPreference) foreach (readPreference => cursor.setReadPreference(MongoReadPreference.valueOf(readPreference)))
+              config.get[String](Hint) foreach (index => cursor.hint(index))
+
+              try {
+                val documents = (cursor: java.util.Iterator[DBObject]).asScala
+                f(documents.grouped(batchSize).flatMap(batch => asRow(schema, batch.toArray)))
+              } finally {
+                cursor.close()
+              }
             }
-            sparkResultFromMongodb(bs.projects, bs.collectionRandomAccesses, schemaProvided.get, resultSet)
           }
         }
       } catch {
@@ -215,6 +279,12 @@ class MongoQueryProcessor(logicalPlan: LogicalPlan, config: Config, schemaProvid
 
 
   private[this] def checkNativeFilters(filters: Seq[SourceFilter]): Boolean = filters.forall {
+    // Native UDFs are not supported by MongoDB
+    case sources.EqualTo(_, _: Attribute) => false
+    case sources.LessThan(_, _: Attribute) => false
+    case sources.GreaterThan(_, _: Attribute) => false
+    case sources.LessThanOrEqual(_, _: Attribute) => false
+    case sources.GreaterThanOrEqual(_, _: Attribute) => false
     case _: sources.EqualTo => true
     case _: sources.In => true
     case _: sources.LessThan => true
@@ -229,25 +299,19 @@ class MongoQueryProcessor(logicalPlan: LogicalPlan, config: Config, schemaProvid
     case sources.And(left, right) => checkNativeFilters(Array(left, right))
     case sources.Or(left, right) => checkNativeFilters(Array(left, right))
     case sources.Not(filter) => checkNativeFilters(Array(filter))
-    // TODO add more filters
     case _ => false
 
   }
 
-  private[this] def sparkResultFromMongodb(
-                                            requiredColumns: Seq[Attribute],
-                                            indexAccesses: Map[Attribute, GetArrayItem],
-                                            schema: StructType,
-                                            resultSet: Array[DBObject]
-                                          ): Array[Row] = {
-    asRow(
-      pruneSchema(
-        schema,
-        requiredColumns.map(r => r.name -> indexAccesses.get(r).map(_.right.toString().toInt)).toArray
-      ),
-      resultSet
+  private[this] def prunedSchema(
+                                  requiredColumns: Seq[Attribute],
+                                  indexAccesses: Map[Attribute, GetArrayItem],
+                                  schema: StructType
+                                ): StructType =
+    pruneSchema(
+      schema,
+      requiredColumns.map(r => r.name -> indexAccesses.get(r).map(_.right.toString().toInt)).toArray
     )
-  }
 
 
 }
@@ -38,6 +38,26 @@ class MongoConnectorIT extends MongoWithSharedContext {
   }
 
 
+  it should "execute natively a select fetching the documents in batches with the configured read preference and hint" in {
+    assumeEnvironmentIsUpAndRunning
+
+    val tunedTable = "tunedStudents"
+    sql(
+      s"""|CREATE TEMPORARY TABLE $tunedTable (id BIGINT, age INT)
+          |USING $SourceProvider
+          |OPTIONS (
+          |host '$MongoHost:$MongoPort',
+          |database '$Database',
+          |collection '$Collection',
+          |${MongoQueryProcessor.CursorBatchSize} '3',
+          |${MongoQueryProcessor.ReadPreference} 'primaryPreferred',
+          |${MongoQueryProcessor.Hint} '_id_'
+          |)""".stripMargin)
+
+    val result = sql(s"SELECT id, age FROM $tunedTable WHERE age > 12").collect(Native)
+    result.map(_.get(0)) should contain theSameElementsAs (3 to 10)
+  }
+
   it should "return the columns in the requested order" in {
     assumeEnvironmentIsUpAndRunning
     val dataframe = sql(s"SELECT name, id FROM $Collection ")
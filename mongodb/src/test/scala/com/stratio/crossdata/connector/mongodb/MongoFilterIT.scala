@@ -54,6 +54,24 @@ class MongoFilterIT extends MongoDataTypesCollection {
 
   }
 
+  it should "supports NOT BETWEEN, OR and NOT IN natively" in {
+    assumeEnvironmentIsUpAndRunning
+
+    val nativeRows = sql(
+      s"SELECT id FROM $Collection WHERE (id NOT BETWEEN 2 AND 8 OR id = 5) AND id NOT IN (9, 10)"
+    ).collect(ExecutionType.Native)
+
+    nativeRows should contain theSameElementsAs Seq(Row(1), Row(5))
+  }
+
+  it should "supports NOT LIKE natively" in {
+    assumeEnvironmentIsUpAndRunning
+
+    val nativeRows = sql(s"SELECT description FROM $Collection WHERE description NOT LIKE 'description1%'").collect(ExecutionType.Native)
+
+    nativeRows should contain theSameElementsAs (2 to 9).map(n => Row(s"description$n"))
+  }
+
   it should "supports filter DATE greater than" in {
     assumeEnvironmentIsUpAndRunning
 
@@ -15,6 +15,7 @@
  */
 package com.stratio.crossdata.connector.mongodb
 
+import com.mongodb.casbah.commons.MongoDBObject
 import com.stratio.datasource.mongodb.config.MongodbConfig
 import org.apache.spark.sql.Row
 import org.junit.runner.RunWith
@@ -129,4 +130,34 @@ class MongoImportTablesIT extends MongoDataTypesCollection {
 
   }
 
+  it should "re-infer the schema of a collection only when it has changed since it was imported" in {
+    assumeEnvironmentIsUpAndRunning
+
+    xdContext.dropAllTables()
+
+    val importQuery =
+      s"""
+         |IMPORT TABLES
+         |USING $SourceProvider
+         |OPTIONS (
+         |host '$MongoHost:${MongoPort.toString}',
+         |${MongodbConfig.Database} '$Database',
+         |${MongodbConfig.Collection} '$Collection'
+         |)
+      """.stripMargin
+
+    sql(importQuery).collect() should contain only Row(Seq("highschool", Collection), false)
+    sql(importQuery).collect() should contain only Row(Seq("highschool", Collection), true)
+
+    val collection = client.get(Database)(Collection)
+    collection.insert(MongoDBObject("id" -> 11, "newField" -> "new"))
+
+    try {
+      sql(importQuery).collect() should contain only Row(Seq("highschool", Collection), false)
+      xdContext.table(s"highschool.$Collection").schema.fieldNames should contain ("newField")
+    } finally {
+      collection.remove(MongoDBObject("id" -> 11))
+    }
+  }
+
 }
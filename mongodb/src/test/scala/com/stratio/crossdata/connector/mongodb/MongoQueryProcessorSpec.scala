@@ -170,6 +170,48 @@ class MongoQueryProcessorSpec extends BaseXDTest {
     subfilters.get(1).get(ColumnAge).asInstanceOf[DBObject].get(QueryOperators.LTE) shouldBe (ValueAge2)
   }
 
+  it should "build a query with a NOT clause excluding the null values" in {
+    val (filters, _) = MongoQueryProcessor.buildNativeQuery(Array(ColumnId), Array(Not(GreaterThan(ColumnAge, ValueAge))), config)
+
+    val negation = filters.get(QueryOperators.AND).asInstanceOf[util.List[DBObject]].get(0)
+    negation.get(ColumnAge).asInstanceOf[DBObject].get(QueryOperators.NE) shouldBe (null)
+
+    val negatedFilter = negation.get(QueryOperators.NOR).asInstanceOf[util.List[DBObject]].get(0)
+    negatedFilter.get(ColumnAge).asInstanceOf[DBObject].get(QueryOperators.GT) shouldBe (ValueAge)
+  }
+
+  it should "push a NOT clause down to the leaves of an OR clause" in {
+    val (filters, _) = MongoQueryProcessor.buildNativeQuery(Array(ColumnId), Array(Not(Or(IsNull(ColumnAge), EqualTo(ColumnId, ValueId)))), config)
+
+    val negation = filters.get(QueryOperators.AND).asInstanceOf[util.List[DBObject]].get(0)
+    val negatedLeaves = negation.get(QueryOperators.AND).asInstanceOf[util.List[DBObject]]
+
+    negatedLeaves.get(0).get(ColumnAge).asInstanceOf[DBObject].get(QueryOperators.NE) shouldBe (null)
+    negatedLeaves.get(1).get(ColumnId).asInstanceOf[DBObject].get(QueryOperators.NE) shouldBe (null)
+    negatedLeaves.get(1).get(QueryOperators.NOR) shouldBe a [util.List[_]]
+  }
+
+  it should "keep several OR clauses apart" in {
+    val (filters, _) = MongoQueryProcessor.buildNativeQuery(
+      Array(ColumnId),
+      Array(Or(EqualTo(ColumnAge, ValueAge), EqualTo(ColumnAge, ValueAge2)), Or(EqualTo(ColumnId, ValueId), IsNull(ColumnId))),
+      config
+    )
+
+    val conjunction = filters.get(QueryOperators.AND).asInstanceOf[util.List[DBObject]]
+    conjunction should have size 2
+    conjunction.get(0).get(QueryOperators.OR).asInstanceOf[util.List[DBObject]] should have size 2
+    conjunction.get(1).get(QueryOperators.OR).asInstanceOf[util.List[DBObject]] should have size 2
+  }
+
+  it should "escape the regular expression characters of the LIKE clauses" in {
+    val (filters, _) = MongoQueryProcessor.buildNativeQuery(Array(ColumnId), Array(StringStartsWith(ColumnId, "a.b*")), config)
+
+    val pattern = filters.get(ColumnId).asInstanceOf[Pattern]
+    pattern.matcher("a.b*c").matches shouldBe true
+    pattern.matcher("acbb").matches shouldBe false
+  }
+
   it should "build a query with a REGEX clause " in {
 
     val (filters, requiredColumns) = MongoQueryProcessor.buildNativeQuery(Array(ColumnId), Array(StringContains(ColumnId, ValueId.toString)), config)
@@ -182,7 +224,7 @@ class MongoQueryProcessorSpec extends BaseXDTest {
     filterSet should have size 1
     filters.get(ColumnId) shouldBe a [Pattern]
 
-    filters.get(ColumnId).asInstanceOf[Pattern].pattern should be (Pattern.compile(s".*${ValueId.toString}.*").pattern)
+    filters.get(ColumnId).asInstanceOf[Pattern].pattern should be (Pattern.compile(s".*${Pattern.quote(ValueId.toString)}.*").pattern)
   }
 
 }
@@ -24,7 +24,7 @@ import com.stratio.crossdata.connector.{TableInventory, TableManipulation}
 import org.apache.spark.Partition
 import org.apache.spark.sql.SaveMode.{Append, ErrorIfExists, Ignore, Overwrite}
 import org.apache.spark.sql.execution.datasources.jdbc.PostgresqlUtils._
-import org.apache.spark.sql.execution.datasources.jdbc.{PostgresqlRelationUtils, PostgresqlXDRelation, DefaultSource => JdbcDS}
+import org.apache.spark.sql.execution.datasources.jdbc.{PostgresqlPartitioner, PostgresqlRelationUtils, PostgresqlXDRelation, DefaultSource => JdbcDS}
 import org.apache.spark.sql.sources.{BaseRelation, CreatableRelationProvider, SchemaRelationProvider}
 import org.apache.spark.sql.types.StructType
 import org.apache.spark.sql.{DataFrame, SQLContext, SaveMode}
@@ -44,7 +44,7 @@ class DefaultSource
 
   override def shortName(): String = "postgresql"
 
-  protected def getRelationParams(parameters: Map[String, String]): (String, String, Array[Partition], Properties) = {
+  protected def getRelationParams(parameters: Map[String, String]): (String, String, () => Array[Partition], Properties) = {
 
     val properties = mapToPropertiesWithDriver(parameters)
 
@@ -59,29 +59,30 @@ class DefaultSource
     if(partitionColumn.nonEmpty && Seq(lowerBound, upperBound, numPartitions).exists(_.isEmpty))
       sys.error("Partitioning incompletely specified")
 
-    val parts = columnPartition {
-      partitionColumn map { pColum =>
+    // The statistics of the table are only queried when a Spark scan needs the partitions
+    val parts = () => partitionColumn map { pColum =>
+      columnPartition {
         createJDBCPartitioningInfo(
           pColum,
           lowerBound.get.toLong,
           upperBound.get.toLong,
           numPartitions.get.toInt)
-      } orNull
-    }
+      }
+    } getOrElse PostgresqlPartitioner.partitions(table, parameters)
 
     (url, table, parts, properties)
   }
 
   override def createRelation(sqlContext: SQLContext, parameters: Map[String, String]): BaseRelation = {
     val (url, table, parts, properties) = getRelationParams(parameters)
-    new PostgresqlXDRelation(url, table, parts, properties, sqlContext, None)
+    new PostgresqlXDRelation(url, table, parts(), properties, sqlContext, None)
   }
 
   override def createRelation(sqlContext: SQLContext,
                               parameters: Map[String, String],
                               schema: StructType): BaseRelation = {
     val (url, table, parts, properties) = getRelationParams(parameters)
-    new PostgresqlXDRelation(url, table, parts, properties, sqlContext, Some(schema))
+    new PostgresqlXDRelation(url, table, parts(), properties, sqlContext, Some(schema))
   }
 
 
@@ -103,13 +104,15 @@ class DefaultSource
 
     val (url, table, parts, properties) = getRelationParams(parameters)
 
-    val postgresqlRelation = new PostgresqlXDRelation(url, table, parts, properties, sqlContext, Some(data.schema))
+    val postgresqlRelation = new PostgresqlXDRelation(url, table, parts(), properties, sqlContext, Some(data.schema))
+    // The rows are inserted by position into the columns of the existing table
+    lazy val tableRelation = new PostgresqlXDRelation(url, table, parts(), properties, sqlContext)
     mode match {
-      case Append => postgresqlRelation.insert(data, overwrite = false)
-      case Overwrite => postgresqlRelation.insert(data, overwrite = true)
-      case ErrorIfExists => if (tableExists(parameters, table)) postgresqlRelation.insert(data, overwrite = false)
+      case Append => tableRelation.insert(data, overwrite = false)
+      case Overwrite => tableRelation.insert(data, overwrite = true)
+      case ErrorIfExists => if (tableExists(parameters, table)) tableRelation.insert(data, overwrite = false)
       else throw new UnsupportedOperationException(s"SaveMode is set to ErrorIfExists and $table already exists")
-      case Ignore => if (tableExists(parameters, table)) postgresqlRelation.insert(data, overwrite = false)
+      case Ignore => if (tableExists(parameters, table)) tableRelation.insert(data, overwrite = false)
 
     }
     postgresqlRelation
@@ -17,11 +17,12 @@ package org.apache.spark.sql.catalyst
 
 import javax.xml.bind.DatatypeConverter
 
-import org.apache.spark.sql.catalyst.expressions.{Abs, Alias, And, Ascending, AttributeReference, BinaryExpression, BinaryOperator, CaseWhen, Cast, Concat, ConcatWs, Contains, Descending, EndsWith, Expression, GetStructField, If, In, InSet, IsNotNull, IsNull, Literal, MonotonicallyIncreasingID, NamedExpression, Not, Or, Pmod, SortDirection, StartsWith, StringRegexExpression, TernaryExpression, UnaryExpression, UnaryMathExpression, UnaryMinus, UnaryPositive}
+import org.apache.spark.sql.catalyst.expressions._
 import org.apache.spark.sql.catalyst.expressions.aggregate.{AggregateExpression, AggregateFunction, Average}
 import org.apache.spark.sql.catalyst.plans._
 import org.apache.spark.sql.catalyst.plans.logical.{Aggregate, LogicalPlan}
 import org.apache.spark.sql.catalyst.util.DateTimeUtils
+import org.apache.spark.sql.execution.datasources.jdbc.PostgresqlUtils
 import org.apache.spark.sql.types._
 import org.apache.spark.unsafe.types.UTF8String
 
@@ -67,8 +68,8 @@ object ExpressionsSQLBuilder {
       case (_, NullType | _: ArrayType | _: MapType | _: StructType) if value == null => "NULL"
       case _ if value == null => s"CAST(NULL AS ${dataType.sql})"
       case (v: UTF8String, StringType) =>
-        // Escapes all backslashes and single quotes.
-        "'" + v.toString.replace("\\", "\\\\").replace("'", "\\'") + "'"
+        // Escapes single quotes (backslashes are not escape characters in standard conforming strings)
+        "'" + v.toString.replace("'", "''") + "'"
       case (v: Byte, ByteType) => v.toString
       case (v: Short, ShortType) => v.toString
       case (v: Long, LongType) => v.toString
@@ -130,9 +131,10 @@ object ExpressionsSQLBuilder {
     case Not(child) =>
       s"(NOT ${child.sql(aliasContext)})"
 
+    case RLike(left, right) => s"(${left.sql(aliasContext)} ~ ${right.sql(aliasContext)})"
     case strRegexExp: StringRegexExpression => strRegexExp match {
       case bExpression: BinaryExpression => s"${bExpression.left.sql} ${prettyName(strRegexExp).toUpperCase} ${bExpression.right.sql}"
-      case _ => throw new RuntimeException("expression not supported") //TODO
+      case _ => throw new UnsupportedOperationException("expression not supported") //TODO
     }
     case c@Concat(children) => s"${prettyName(c)}(${children.map(_.sql(aliasContext)).mkString(", ")})"
     case c@ConcatWs(children) => s"concat_ws(${children.map(_.sql(aliasContext)).mkString(", ")})"
@@ -153,6 +155,67 @@ object ExpressionsSQLBuilder {
 
       head + body + tail
 
+    case CaseKeyWhen(key, branches) =>
+      val branchesSQL = branches.map(_.sql(aliasContext))
+      val (cases, maybeElse) =
+        if (branches.length % 2 == 0) (branchesSQL, None) else (branchesSQL.init, Some(branchesSQL.last))
+      val body = cases.grouped(2).map { case Seq(whenExpr, thenExpr) => s"WHEN $whenExpr THEN $thenExpr" }.mkString(" ")
+      s"CASE ${key.sql(aliasContext)} $body${maybeElse.map(e => s" ELSE $e").getOrElse("")} END"
+
+    case If(predicate, trueValue, falseValue) =>
+      s"CASE WHEN ${predicate.sql(aliasContext)} THEN ${trueValue.sql(aliasContext)} ELSE ${falseValue.sql(aliasContext)} END"
+
+    case Coalesce(children) => s"coalesce(${children.map(_.sql(aliasContext)).mkString(", ")})"
+
+    case EqualNullSafe(left, right) => s"(${left.sql(aliasContext)} IS NOT DISTINCT FROM ${right.sql(aliasContext)})"
+
+    case Round(child, scale) => s"round(CAST(${child.sql(aliasContext)} AS NUMERIC), ${scale.sql(aliasContext)})"
+
+    // The optimizer aggregates small decimals as longs (DecimalAggregates)
+    case UnscaledValue(child) =>
+      s"CAST(${child.sql(aliasContext)} * 1E${child.dataType.asInstanceOf[DecimalType].scale} AS BIGINT)"
+    case MakeDecimal(child, precision, scale) =>
+      s"CAST(${child.sql(aliasContext)} / 1E$scale AS ${DecimalType(precision, scale).sql})"
+
+    case StringTrim(child) => s"trim(${child.sql(aliasContext)})"
+    case StringTrimLeft(child) => s"ltrim(${child.sql(aliasContext)})"
+    case StringTrimRight(child) => s"rtrim(${child.sql(aliasContext)})"
+
+    // Date functions
+    case CurrentDate() => "CURRENT_DATE"
+    case CurrentTimestamp() => "CURRENT_TIMESTAMP"
+    case Year(child) => extractSQL("YEAR", child, aliasContext)
+    case Quarter(child) => extractSQL("QUARTER", child, aliasContext)
+    case Month(child) => extractSQL("MONTH", child, aliasContext)
+    case WeekOfYear(child) => extractSQL("WEEK", child, aliasContext)
+    case DayOfYear(child) => extractSQL("DOY", child, aliasContext)
+    case DayOfMonth(child) => extractSQL("DAY", child, aliasContext)
+    case Hour(child) => extractSQL("HOUR", child, aliasContext)
+    case Minute(child) => extractSQL("MINUTE", child, aliasContext)
+    case Second(child) => s"CAST(floor(EXTRACT(SECOND FROM ${child.sql(aliasContext)})) AS INTEGER)"
+    case ToDate(child) => s"CAST(${child.sql(aliasContext)} AS DATE)"
+    case DateAdd(startDate, days) => s"(${startDate.sql(aliasContext)} + ${days.sql(aliasContext)})"
+    case DateSub(startDate, days) => s"(${startDate.sql(aliasContext)} - ${days.sql(aliasContext)})"
+    case DateDiff(endDate, startDate) => s"(${endDate.sql(aliasContext)} - ${startDate.sql(aliasContext)})"
+    case AddMonths(startDate, months) =>
+      // Like Spark, the last day of a month is moved to the last day of the resulting month
+      val (startDateSQL, monthsSQL) = (startDate.sql(aliasContext), months.sql(aliasContext))
+      s"""CASE WHEN $startDateSQL = ${lastDaySQL(startDateSQL)}
+         |THEN CAST(date_trunc('month', $startDateSQL) + ($monthsSQL + 1) * INTERVAL '1 month' - INTERVAL '1 day' AS DATE)
+         |ELSE CAST($startDateSQL + $monthsSQL * INTERVAL '1 month' AS DATE) END""".stripMargin.replace("\n", " ")
+    case LastDay(startDate) =>
+      lastDaySQL(startDate.sql(aliasContext))
+    case TruncDate(date, Literal(format: UTF8String, StringType)) =>
+      val field = format.toString.toLowerCase match {
+        case "year" | "yyyy" | "yy" => "year"
+        case "month" | "mon" | "mm" => "month"
+        case other => throw new UnsupportedOperationException(s"Unsupported trunc format $other")
+      }
+      s"CAST(date_trunc('$field', ${date.sql(aliasContext)}) AS DATE)"
+    case unsupported @ (_: DateFormatClass | _: FromUnixTime | _: UnixTimestamp) =>
+      // Their formats are Java date patterns
+      throw new UnsupportedOperationException(s"Expression ${unsupported.prettyString} not supported")
+
     case AggregateExpression(aggregateFunction, _, isDistinct) =>
       aggregateFunction.sql(isDistinct)
 
@@ -179,9 +242,15 @@ object ExpressionsSQLBuilder {
       val childrenSQL = ternaryExp.children.map(_.sql(aliasContext)).mkString(", ")
       s"${prettyName(ternaryExp)}($childrenSQL)"
 
-    case expression => throw new RuntimeException(s"Expression ${expression.prettyString} not supported") // TODO improve exception message
+    case expression => throw new UnsupportedOperationException(s"Expression ${expression.prettyString} not supported") // TODO improve exception message
   }
 
+  private def extractSQL(field: String, child: Expression, aliasContext: AliasContext): String =
+    s"CAST(EXTRACT($field FROM ${child.sql(aliasContext)}) AS INTEGER)"
+
+  private def lastDaySQL(dateSQL: String): String =
+    s"CAST(date_trunc('month', $dateSQL) + INTERVAL '1 month' - INTERVAL '1 day' AS DATE)"
+
 
   def namedExpressionToSQL(namedExpression: NamedExpression, aliasContext: AliasContext): String =
   partFunctionNamedExpressionToSQL(aliasContext)(namedExpression)
@@ -200,10 +269,10 @@ object ExpressionsSQLBuilder {
   implicit class JoinTypeWithSQL(joinType: JoinType){
     def sql = joinType match {
       case Inner => "INNER"
-      case FullOuter => "LEFT OUTER"
-      case LeftOuter => "RIGHT OUTER"
-      case RightOuter => "FULL OUTER"
-      case LeftSemi => "LEFT SEMI"
+      case LeftOuter => "LEFT OUTER"
+      case RightOuter => "RIGHT OUTER"
+      case FullOuter => "FULL OUTER"
+      case LeftSemi => throw new UnsupportedOperationException("Left semi joins are translated into EXISTS")
     }
   }
 
@@ -216,13 +285,9 @@ object ExpressionsSQLBuilder {
 
   implicit class DataTypeWithSQL(dataType: DataType) {
     def sql: String = dataType match {
-      case MapType(keyType, valueType, _) => s"MAP<${keyType.sql}, ${valueType.sql}>"
-      case StructType(fields) =>
-        val fieldTypes = fields.map(f => s"${f.name}: ${f.dataType.sql}")
-        s"STRUCT<${fieldTypes.mkString(", ")}>"
       case udt: UserDefinedType[_] => udt.sqlType.sql
-      case ArrayType(elementType, _) => s"ARRAY<${elementType.sql}>"
-      case _ => dataType.simpleString.toUpperCase
+      case ByteType => "SMALLINT"
+      case _ => PostgresqlUtils.getPostgresqlType(dataType)
     }
   }
 
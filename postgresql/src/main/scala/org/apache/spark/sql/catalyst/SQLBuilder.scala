@@ -21,10 +21,9 @@ package org.apache.spark.sql.catalyst
 import java.util.concurrent.atomic.AtomicLong
 
 import org.apache.spark.Logging
-import org.apache.spark.sql.catalyst.expressions.{Alias, Attribute, Expression, NamedExpression, SortOrder}
-import org.apache.spark.sql.catalyst.optimizer.ProjectCollapsing
+import org.apache.spark.sql.catalyst.expressions.{Alias, AttributeReference, ExprId, Expression, NamedExpression, SortOrder}
+import org.apache.spark.sql.catalyst.plans.LeftSemi
 import org.apache.spark.sql.catalyst.plans.logical._
-import org.apache.spark.sql.catalyst.rules.{Rule, RuleExecutor}
 import org.apache.spark.sql.execution.datasources.LogicalRelation
 import org.apache.spark.sql.execution.datasources.jdbc.PostgresqlXDRelation
 
@@ -34,17 +33,22 @@ import org.apache.spark.sql.execution.datasources.jdbc.PostgresqlXDRelation
   * all resolved logical plan are convertible.  They either don't have corresponding SQL
   * representations (e.g. logical plans that operate on local Scala collections), or are simply not
   * supported by this builder (yet).
+  *
+  * Every logical plan is translated into a SELECT whose columns are named after the expression ids of the
+  * plan output (`gen_attr_<exprId>`), and which is nested as a derived table (`gen_subquery_<n>`) of the SELECT of
+  * its parent. So attributes never need qualifiers, self-joins don't produce ambiguous columns and any plan can be
+  * the child of any other. PostgreSQL flattens the derived tables, so its planner still sees the whole query.
   */
 //spark code: With some changes to adapt postgresql dialect
 class SQLBuilder(logicalPlan: LogicalPlan) extends Logging {
 
   import org.apache.spark.sql.catalyst.ExpressionsSQLBuilder._
+  import SQLBuilder._
 
   def toSQL: Option[String] = {
-    val canonicalizedPlan = Canonicalizer.execute(logicalPlan)
     val maybeSQL = try {
-      toSQL(canonicalizedPlan)
-    } catch { case cause: UnsupportedOperationException =>
+      toSQL(logicalPlan)
+    } catch { case cause @ (_: UnsupportedOperationException | _: IllegalArgumentException) =>
       logInfo(s"Failed to build SQL query string because: ${cause.getMessage}")
       None
     }
@@ -53,10 +57,8 @@ class SQLBuilder(logicalPlan: LogicalPlan) extends Logging {
       logDebug(
         s"""Built SQL query string successfully from given logical plan:
             |
-           |# Original logical plan:
+            |# Original logical plan:
             |${logicalPlan.treeString}
-            |# Canonicalized logical plan:
-            |${canonicalizedPlan.treeString}
             |# Built SQL query string:
             |${maybeSQL.get}
          """.stripMargin)
@@ -64,188 +66,139 @@ class SQLBuilder(logicalPlan: LogicalPlan) extends Logging {
       logDebug(
         s"""Failed to build SQL query string from given logical plan:
             |
-           |# Original logical plan:
+            |# Original logical plan:
             |${logicalPlan.treeString}
-            |# Canonicalized logical plan:
-            |${canonicalizedPlan.treeString}
          """.stripMargin)
     }
 
     maybeSQL
   }
 
-  private def projectToSQL(
-                            projectList: Seq[NamedExpression],
-                            child: LogicalPlan,
-                            isDistinct: Boolean): Option[String] = {
-    for {
-      childSQL <- toSQL(child)
-      listSQL = projectList.map(_.sql).mkString(", ")
-      maybeFrom = child match {
-        case OneRowRelation => " "
-        case _ => " FROM "
-      }
-      distinct = if (isDistinct) " DISTINCT " else " "
-    } yield s"SELECT$distinct$listSQL$maybeFrom$childSQL"
-  }
+  private def toSQL(node: LogicalPlan): Option[String] = node match {
 
-  private def aggregateToSQL(
-                              groupingExprs: Seq[Expression],
-                              aggExprs: Seq[Expression],
-                              child: LogicalPlan): Option[String] = {
+    // The order of a derived table is not kept by the SELECT over it, so ORDER BY (and its LIMIT) must be in the
+    // outermost SELECT, which can also refer to the columns of the derived table that are not projected
+    case Limit(limit, Project(projectList, Sort(orders, true, child))) =>
+      sortedSQL(projectListSQL(projectList), orders, Some(limit), child)
 
+    case Project(projectList, Limit(limit, Sort(orders, true, child))) =>
+      sortedSQL(projectListSQL(projectList), orders, Some(limit), child)
 
+    case Project(projectList, Sort(orders, true, child)) =>
+      sortedSQL(projectListSQL(projectList), orders, None, child)
 
-    val aggSQL = aggExprs.filter{
-      case Alias(_, nameAl) if nameAl.startsWith("havingCondition") => false
-      case _ => true
-    }.map(_.sql).mkString(", ")
-    val groupingSQL = groupingExprs.map(_.sql).mkString(", ")
-    val maybeGroupBy = if (groupingSQL.isEmpty) "" else " GROUP BY "
-    val maybeFrom = child match {
-      case OneRowRelation => " "
-      case _ => " FROM "
-    }
+    case Project(projectList, child) =>
+      from(child).map(childSQL => s"SELECT ${projectListSQL(projectList)} FROM $childSQL")
 
-    toSQL(child).map { childSQL =>
-      s"SELECT $aggSQL$maybeFrom$childSQL$maybeGroupBy$groupingSQL"
-    }
-  }
+    case Distinct(child) =>
+      from(child).map(childSQL => s"SELECT DISTINCT * FROM $childSQL")
+
+    case Aggregate(groupingExprs, aggExprs, child) =>
+      for {
+        childSQL <- from(child)
+        aggSQL = aggExprs.map(namedExpressionSQL).mkString(", ")
+        groupBy = if (groupingExprs.isEmpty) "" else groupingExprs.map(expressionSQL).mkString(" GROUP BY ", ", ", "")
+      } yield s"SELECT $aggSQL FROM $childSQL$groupBy"
 
+    // HAVING conditions are translated into a WHERE over the aggregation
+    case Filter(condition, child) =>
+      from(child).map(childSQL => s"SELECT * FROM $childSQL WHERE ${expressionSQL(condition)}")
 
+    case Limit(limit, Sort(orders, true, child)) =>
+      sortedSQL("*", orders, Some(limit), child)
 
-  private def toSQL(node: LogicalPlan): Option[String] = node match {
-    case Distinct(Project(list, child)) =>
-      projectToSQL(list, child, isDistinct = true)
+    case Limit(limit, child) =>
+      from(child).map(childSQL => s"SELECT * FROM $childSQL LIMIT ${limit.sql}")
 
-    case Project(list, child) =>
-      projectToSQL(list, child, isDistinct = false)
+    case Sort(orders, true, child) =>
+      sortedSQL("*", orders, None, child)
 
-    case Aggregate(groupingExprs, aggExprs, child) =>
-      val newChild = child match {
-        case Project(pList, pChild) => pChild
-        case _ => child
-      }
-      aggregateToSQL(groupingExprs, aggExprs, newChild)
+    case Sort(_, false, _) =>
+      throw new UnsupportedOperationException("Sorting within partitions is not supported")
 
-    case Limit(limit, child) =>
-      for {
-        childSQL <- toSQL(child)
-        limitSQL = limit.sql
-      } yield s"$childSQL LIMIT $limitSQL"
+    case Union(left, right) => setOperationToSQL(left, right, "UNION ALL")
 
-    case Filter(condition, child) =>
+    case Intersect(left, right) => setOperationToSQL(left, right, "INTERSECT")
+
+    // EXCEPT removes the duplicated rows of the left side, whereas Spark keeps them
+    case Except(left, right) if (left.outputSet intersect right.outputSet).isEmpty =>
       for {
-        childSQL <- toSQL(child)
-        whereOrHavingCondition = child match {
-          case _: Aggregate => s"HAVING ${condition.sql(AliasContext(aliasSupported = false, Some(child)))}"
-          case _ => s"WHERE ${condition.sql(AliasContext(aliasSupported = false, Some(child)))}"
+        leftSQL <- from(left)
+        rightSQL <- from(right)
+        equalRows = left.output zip right.output map { case (leftAttribute, rightAttribute) =>
+          s"${normalizedName(leftAttribute.exprId)} IS NOT DISTINCT FROM ${normalizedName(rightAttribute.exprId)}"
         }
-      } yield s"$childSQL $whereOrHavingCondition"
+      } yield s"SELECT * FROM $leftSQL WHERE NOT EXISTS (SELECT 1 FROM $rightSQL WHERE ${equalRows.mkString(" AND ")})"
 
-    case Union(left, right) =>
+    case Join(left, right, LeftSemi, condition) =>
       for {
-        leftSQL <- toSQL(left)
-        rightSQL <- toSQL(right)
-      } yield s"$leftSQL UNION ALL $rightSQL"
-
-    case Subquery(alias, child) =>
-      toSQL(child).map(childSQL => s"($childSQL) AS $alias")
+        leftSQL <- from(left)
+        rightSQL <- from(right)
+        conditionSQL = condition.map(c => s" WHERE ${expressionSQL(c)}").getOrElse("")
+      } yield s"SELECT * FROM $leftSQL WHERE EXISTS (SELECT 1 FROM $rightSQL$conditionSQL)"
 
     case Join(left, right, joinType, condition) =>
       for {
-        leftSQL <- toSQL(left)
-        rightSQL <- toSQL(right)
-        joinTypeSQL = joinType.sql
-        conditionSQL = condition.map(" ON " + _.sql).getOrElse("")
-      } yield s"$leftSQL $joinTypeSQL JOIN $rightSQL$conditionSQL"
-
-    case LogicalRelation( pr: PostgresqlXDRelation, _) =>
-      val tableName = pr.table // TODO support alias => alias.map(a => s" AS `$a`").getOrElse("")
-      Some(tableName)
-
-    case Sort(orders, _, RepartitionByExpression(partitionExprs, child, _)) // TODO postgres dialect
-      if orders.map(_.child) == partitionExprs =>
-      for {
-        childSQL <- toSQL(child)
-        partitionExprsSQL = partitionExprs.map(_.sql).mkString(", ")
-      } yield s"$childSQL CLUSTER BY $partitionExprsSQL"
+        leftSQL <- from(left)
+        rightSQL <- from(right)
+      } yield condition match {
+        case Some(c) => s"SELECT * FROM $leftSQL ${joinType.sql} JOIN $rightSQL ON ${expressionSQL(c)}"
+        case None => s"SELECT * FROM $leftSQL CROSS JOIN $rightSQL"
+      }
 
-    case Sort(orders, global, child) => // TODO postgres dialect
-      for {
-        childSQL <- toSQL(child)
-        ordersSQL = orders.map { case SortOrder(e, dir) => s"${e.sql} ${dir.sql}" }.mkString(", ")
-        orderOrSort = if (global) "ORDER" else "SORT"
-      } yield s"$childSQL $orderOrSort BY $ordersSQL"
+    case Subquery(_, child) =>
+      toSQL(child)
 
-    case RepartitionByExpression(partitionExprs, child, _) => // TODO postgres dialect
-      for {
-        childSQL <- toSQL(child)
-        partitionExprsSQL = partitionExprs.map(_.sql).mkString(", ")
-      } yield s"$childSQL DISTRIBUTE BY $partitionExprsSQL"
+    case relation @ LogicalRelation(pr: PostgresqlXDRelation, _) =>
+      val columnsSQL = relation.output map { attribute =>
+        s"${quoteIdentifier(attribute.name)} AS ${normalizedName(attribute.exprId)}"
+      }
+      Some(s"SELECT ${if (columnsSQL.isEmpty) "1" else columnsSQL.mkString(", ")} FROM ${pr.table}")
 
     case OneRowRelation =>
-      Some("")
+      Some("SELECT 1")
 
     case _ => None
   }
 
-  object Canonicalizer extends RuleExecutor[LogicalPlan] {
-    override protected val batches: Seq[Batch] = Seq(
-      Batch("Canonicalizer", FixedPoint(100),
-        // The `WidenSetOperationTypes` analysis rule may introduce extra `Project`s over
-        // `Aggregate`s to perform type casting.  This rule merges these `Project`s into
-        // `Aggregate`s.
-        ProjectCollapsing,
-
-        // Used to handle other auxiliary `Project`s added by analyzer (e.g.
-        // `ResolveAggregateFunctions` rule)
-        RecoverScopingInfo
-      )
-    )
-
-
-    object RecoverScopingInfo extends Rule[LogicalPlan] {
-      override def apply(tree: LogicalPlan): LogicalPlan = tree transform {
-        // This branch handles aggregate functions within HAVING clauses.  For example:
-        //
-        //   SELECT key FROM src GROUP BY key HAVING max(value) > "val_255"
-        //
-        // This kind of query results in query plans of the following form because of analysis rule
-        // `ResolveAggregateFunctions`:
-        //
-        //   Project ...
-        //    +- Filter ...
-        //        +- Aggregate ...
-        //            +- MetastoreRelation default, src, None
-        case plan @ Project(_, filter@Filter(_, agg: Aggregate)) => filter
-
-        case plan @ Project(_,
-        _: Subquery | _: Filter | _: Join | _: LogicalRelation | OneRowRelation | _: Limit
-        ) => plan
-
-        case plan: Project =>
-          wrapChildWithSubquery(plan)
-      }
+  private def setOperationToSQL(left: LogicalPlan, right: LogicalPlan, operator: String): Option[String] =
+    for {
+      leftSQL <- toSQL(left)
+      rightSQL <- toSQL(right)
+    } yield s"($leftSQL) $operator ($rightSQL)"
+
+  // The SQL of a plan as a derived table
+  private def from(child: LogicalPlan): Option[String] =
+    toSQL(child).map(childSQL => s"($childSQL) AS $newSubqueryName")
+
+  private def sortedSQL(
+      listSQL: String, orders: Seq[SortOrder], limit: Option[Expression], child: LogicalPlan): Option[String] =
+    from(child) map { childSQL =>
+      val ordersSQL = orders.map { case SortOrder(e, dir) => s"${expressionSQL(e)} ${dir.sql}" }.mkString(", ")
+      s"SELECT $listSQL FROM $childSQL ORDER BY $ordersSQL${limit.map(l => s" LIMIT ${l.sql}").getOrElse("")}"
+    }
 
-      def wrapChildWithSubquery(project: Project): Project = project match {
-        case Project(projectList, child) =>
-          val alias = SQLBuilder.newSubqueryName
-          val childAttributes = child.outputSet
-          val aliasedProjectList = projectList.map(_.transform {
-            case a: Attribute if childAttributes.contains(a) =>
-              a.withQualifiers(alias :: Nil)
-          }.asInstanceOf[NamedExpression])
+  private def projectListSQL(projectList: Seq[NamedExpression]): String =
+    if (projectList.isEmpty) "1" else projectList.map(namedExpressionSQL).mkString(", ")
 
-          Project(aliasedProjectList, Subquery(alias, child))
-      }
-    }
+  private def namedExpressionSQL(expression: NamedExpression): String = expression match {
+    case alias: Alias => s"${expressionSQL(alias.child)} AS ${normalizedName(alias.exprId)}"
+    case other => s"${expressionSQL(other)} AS ${normalizedName(other.exprId)}"
   }
+
+  private def expressionSQL(expression: Expression): String = normalize(expression).sql
+
+  private def normalize(expression: Expression): Expression = expression transform {
+    case attribute: AttributeReference => attribute.withName(normalizedName(attribute.exprId)).withQualifiers(Nil)
+  }
+
 }
 
 object SQLBuilder {
   private val nextSubqueryId = new AtomicLong(0)
   private def newSubqueryName: String = s"gen_subquery_${nextSubqueryId.getAndIncrement()}"
-}
 
+  private def normalizedName(exprId: ExprId): String = s"gen_attr_${exprId.id}"
 
+  def quoteIdentifier(name: String): String = "\"" + name.replace("\"", "\"\"") + "\""
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2015 Stratio (http://stratio.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.spark.sql.execution.datasources.jdbc
+
+import java.lang.management.ManagementFactory
+import java.sql.Connection
+import java.util.Properties
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import java.util.function.{Function => JFunction}
+import javax.management.{JMX, ObjectName}
+
+import com.zaxxer.hikari.{HikariConfig, HikariDataSource, HikariPoolMXBean}
+
+import scala.collection.JavaConversions._
+import scala.util.Try
+
+/**
+  * Pooled datasources shared, within a JVM, by every session and task connecting to the same PostgreSQL url with the
+  * same connection properties. Closing a connection obtained from the pool gives it back to the pool.
+  *
+  * Pools can be tuned with the following options:
+  *   - `poolMaxSize`: Maximum number of connections (10 by default).
+  *   - `poolMinIdle`: Minimum number of idle connections kept open (1 by default).
+  *   - `poolConnectionTimeout`: Milliseconds to wait for a connection before failing (30000 by default).
+  *   - `poolIdleTimeout`: Milliseconds after which an idle connection is closed (600000 by default).
+  *   - `poolValidationQuery`: Query used to validate connections. JDBC4 `isValid` is used if not provided.
+  *
+  * The rest of options (e.g: `user`, `password` or `prepareThreshold`, the number of executions after which the driver
+  * switches to server-side prepared statements) are passed to the driver. As pooled connections are long-lived, the
+  * statements prepared by the driver are cached across queries.
+  *
+  * The pools are registered as MXBeans (`com.zaxxer.hikari:type=Pool (crossdata-postgresql-<n>)`) to be monitored.
+  */
+object PostgresqlConnectionPool {
+
+  val PoolMaxSize = "poolMaxSize"
+  val PoolMinIdle = "poolMinIdle"
+  val PoolConnectionTimeout = "poolConnectionTimeout"
+  val PoolIdleTimeout = "poolIdleTimeout"
+  val PoolValidationQuery = "poolValidationQuery"
+
+  val DefaultPoolMaxSize = 10
+  val DefaultPoolMinIdle = 1
+
+  private val PoolOptions = Set(PoolMaxSize, PoolMinIdle, PoolConnectionTimeout, PoolIdleTimeout, PoolValidationQuery)
+
+  // Options which don't affect the connections themselves so they are neither driver properties nor part of the pool key
+  private val NonConnectionOptions = Set(
+    PostgresqlUtils.URL, PostgresqlUtils.DRIVER, "dbtable", "schema", "primary_key",
+    "partitionColumn", "lowerBound", "upperBound", "numPartitions", "fetchsize",
+    PostgresqlPartitioner.AutoPartition, PostgresqlPartitioner.PartitionTargetRows,
+    PostgresqlCopy.CopyInsert, PostgresqlCopy.CopyScan
+  )
+
+  private case class PoolKey(url: String, connectionProperties: Map[String, String])
+
+  private val dataSources = new ConcurrentHashMap[PoolKey, HikariDataSource]()
+
+  private val poolIds = new AtomicLong(0)
+
+  def getConnection(url: String, properties: Properties): Connection = dataSource(url, properties).getConnection
+
+  /**
+    * Serializable connection factory which can be shipped to the executors: each executor uses its own pools.
+    */
+  def connectionFactory(url: String, properties: Properties): () => Connection = {
+    val props = properties.stringPropertyNames().map(name => name -> properties.getProperty(name)).toMap
+    () => {
+      val executorProps = new Properties()
+      props foreach { case (name, value) => executorProps.setProperty(name, value) }
+      getConnection(url, executorProps)
+    }
+  }
+
+  def poolCount: Int = dataSources.size
+
+  def totalConnections: Int = dataSources.values.map(dataSource => poolMXBean(dataSource).getTotalConnections).sum
+
+  def closeAll(): Unit = dataSources.keySet() foreach { key =>
+    Option(dataSources.remove(key)) foreach (_.close())
+  }
+
+  private def dataSource(url: String, properties: Properties): HikariDataSource = {
+    val options = properties.stringPropertyNames().map(name => name -> properties.getProperty(name)).toMap
+    val connectionProperties = options filter { case (option, _) =>
+      !PoolOptions.contains(option) && !NonConnectionOptions.contains(option)
+    }
+
+    dataSources.computeIfAbsent(PoolKey(url, connectionProperties), new JFunction[PoolKey, HikariDataSource] {
+      override def apply(key: PoolKey): HikariDataSource = new HikariDataSource(poolConfig(key, options))
+    })
+  }
+
+  // HikariCP 2.4 only exposes the state of a pool through its MXBean
+  private def poolMXBean(dataSource: HikariDataSource): HikariPoolMXBean = JMX.newMXBeanProxy(
+    ManagementFactory.getPlatformMBeanServer,
+    new ObjectName(s"com.zaxxer.hikari:type=Pool (${dataSource.getPoolName})"),
+    classOf[HikariPoolMXBean]
+  )
+
+  private def poolConfig(key: PoolKey, options: Map[String, String]): HikariConfig = {
+    def intOption(name: String): Option[Int] = options.get(name).flatMap(value => Try(value.toInt).toOption)
+
+    val config = new HikariConfig()
+    config.setPoolName(s"crossdata-postgresql-${poolIds.getAndIncrement()}")
+    config.setRegisterMbeans(true)
+    config.setJdbcUrl(key.url)
+    config.setDriverClassName(options.getOrElse(PostgresqlUtils.DRIVER, PostgresqlUtils.driverClassName))
+    key.connectionProperties foreach { case (name, value) => config.addDataSourceProperty(name, value) }
+
+    config.setMaximumPoolSize(intOption(PoolMaxSize) getOrElse DefaultPoolMaxSize)
+    config.setMinimumIdle(intOption(PoolMinIdle) getOrElse DefaultPoolMinIdle)
+    intOption(PoolConnectionTimeout) foreach (timeout => config.setConnectionTimeout(timeout.toLong))
+    intOption(PoolIdleTimeout) foreach (timeout => config.setIdleTimeout(timeout.toLong))
+    options.get(PoolValidationQuery) foreach config.setConnectionTestQuery
+
+    config
+  }
+
+}
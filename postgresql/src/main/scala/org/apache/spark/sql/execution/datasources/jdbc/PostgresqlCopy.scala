@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2015 Stratio (http://stratio.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.spark.sql.execution.datasources.jdbc
+
+import java.nio.charset.StandardCharsets.UTF_8
+import java.sql.{Connection, Date}
+import java.util.Properties
+
+import org.apache.spark.sql.catalyst.{InternalRow, SQLBuilder}
+import org.apache.spark.sql.catalyst.expressions.SpecificMutableRow
+import org.apache.spark.sql.catalyst.util.DateTimeUtils
+import org.apache.spark.sql.types._
+import org.apache.spark.sql.{DataFrame, Row}
+import org.apache.spark.unsafe.types.UTF8String
+import org.apache.spark.{Logging, TaskContext}
+import org.postgresql.PGConnection
+import org.postgresql.copy.CopyOut
+
+import scala.util.Try
+
+/**
+  * Bulk load and unload of PostgreSQL tables through the COPY protocol:
+  *   - Inserts are streamed to `COPY table (columns) FROM STDIN` in CSV format, instead of being executed as batches of
+  *     INSERT statements. It can be disabled with `copyInsert` 'false'.
+  *   - Scans read the rows from `COPY (query) TO STDOUT` in text format, instead of converting a ResultSet. It is only
+  *     used for schemas of boolean, numeric, string and date columns, and it can be disabled with `copyScan` 'false'.
+  */
+object PostgresqlCopy extends Logging {
+
+  val CopyInsert = "copyInsert"
+  val CopyScan = "copyScan"
+
+  // Number of characters sent to the server in each message of a COPY FROM
+  val CopyInBufferSize = 65536
+
+  def isEnabled(option: String, properties: Properties): Boolean =
+    Try(properties.getProperty(option).toBoolean).getOrElse(true)
+
+  /**
+    * Appends the rows of a DataFrame to a table, truncating it first if `overwrite` is set. Each partition is copied by
+    * a different task. The values of each row are copied to the `columns` of the table in the same position, whatever
+    * the names of the DataFrame columns are.
+    */
+  def insert(
+              data: DataFrame,
+              table: String,
+              columns: Seq[String],
+              url: String,
+              properties: Properties,
+              overwrite: Boolean): Unit = {
+    if (overwrite) {
+      val connection = PostgresqlConnectionPool.getConnection(url, properties)
+      try {
+        val statement = connection.createStatement()
+        try statement.execute(s"TRUNCATE TABLE $table") finally statement.close()
+      } finally {
+        connection.close()
+      }
+    }
+
+    val getConnection = PostgresqlConnectionPool.connectionFactory(url, properties)
+    val columnList = columns.take(data.schema.length).map(SQLBuilder.quoteIdentifier).mkString(", ")
+    val sql = s"COPY $table ($columnList) FROM STDIN WITH (FORMAT csv)"
+    val schema = data.schema
+    data.foreachPartition(rows => copyIn(getConnection, sql, schema, rows))
+  }
+
+  def copyIn(getConnection: () => Connection, sql: String, schema: StructType, rows: Iterator[Row]): Unit = {
+    val connection = getConnection()
+    try {
+      val copy = connection.unwrap(classOf[PGConnection]).getCopyAPI.copyIn(sql)
+      try {
+        val encoders = schema.fields.map(field => csvEncoder(field.dataType))
+        val buffer = new StringBuilder
+
+        def flush(): Unit = {
+          val bytes = buffer.toString.getBytes(UTF_8)
+          copy.writeToCopy(bytes, 0, bytes.length)
+          buffer.clear()
+        }
+
+        rows foreach { row =>
+          var i = 0
+          while (i < encoders.length) {
+            if (i > 0) buffer.append(',')
+            if (!row.isNullAt(i)) buffer.append(encoders(i)(row.get(i)))
+            i += 1
+          }
+          buffer.append('\n')
+          if (buffer.length >= CopyInBufferSize) flush()
+        }
+
+        if (buffer.nonEmpty) flush()
+        copy.endCopy()
+      } finally {
+        if (copy.isActive) copy.cancelCopy()
+      }
+    } finally {
+      connection.close() // Gives the connection back to the pool
+    }
+  }
+
+  // CSV representation of the non-null values of a type. Unquoted empty values are NULLs
+  private def csvEncoder(dataType: DataType): Any => String = dataType match {
+    case StringType => value => csvQuote(value.toString)
+    case _: ArrayType => value => csvQuote(textValue(dataType)(value))
+    case _ => textValue(dataType)
+  }
+
+  private def csvQuote(value: String): String = "\"" + value.replace("\"", "\"\"") + "\""
+
+  // Text representation of the values of a type accepted by the PostgreSQL input functions
+  private def textValue(dataType: DataType): Any => String = dataType match {
+    case _: DecimalType => value => value match {
+      case decimal: java.math.BigDecimal => decimal.toPlainString
+      case other => other.toString
+    }
+    case BinaryType => value => value.asInstanceOf[Array[Byte]].map("%02x".format(_)).mkString("\\x", "", "")
+    case ArrayType(elementType: ArrayType, _) =>
+      val element = textValue(elementType)
+      value => value.asInstanceOf[Seq[Any]].map(v => if (v == null) "NULL" else element(v)).mkString("{", ",", "}")
+    case ArrayType(elementType, _) =>
+      val element = textValue(elementType)
+      value => value.asInstanceOf[Seq[Any]].map { v =>
+        if (v == null) "NULL" else "\"" + element(v).replace("\\", "\\\\").replace("\"", "\\\"") + "\""
+      }.mkString("{", ",", "}")
+    case BooleanType | ByteType | ShortType | IntegerType | LongType | FloatType | DoubleType | StringType |
+         DateType | TimestampType => _.toString
+    case _ => throw new IllegalArgumentException(s"Unsupported type in postgresql: $dataType")
+  }
+
+  /**
+    * Whether the rows of a schema can be read from the text format of COPY TO.
+    */
+  def supportsCopyOut(schema: StructType): Boolean = schema.fields forall { field =>
+    field.dataType match {
+      case LongType => !field.metadata.contains("binarylong")
+      case BooleanType | IntegerType | FloatType | DoubleType | _: DecimalType | StringType | DateType => true
+      case _ => false
+    }
+  }
+
+  /**
+    * Rows returned by `COPY (query) TO STDOUT`. The copy is cancelled and the connection given back to the pool when the
+    * task completes, even if not every row has been read.
+    */
+  def copyOut(getConnection: () => Connection,
+              query: String,
+              schema: StructType,
+              context: TaskContext): Iterator[InternalRow] = new Iterator[InternalRow] {
+
+    private val connection = getConnection()
+    private var copy: CopyOut = _
+    private var closed = false
+    private var nextLine: Array[Byte] = _
+
+    context.addTaskCompletionListener(_ => close())
+
+    try {
+      copy = connection.unwrap(classOf[PGConnection]).getCopyAPI.copyOut(s"COPY ($query) TO STDOUT")
+    } catch {
+      case e: Exception =>
+        close()
+        throw e
+    }
+
+    private val decoders = schema.fields.map(field => textDecoder(field.dataType))
+    private val mutableRow = new SpecificMutableRow(schema.fields.map(_.dataType))
+
+    override def hasNext: Boolean = {
+      if (nextLine == null && !closed) {
+        nextLine = copy.readFromCopy()
+        if (nextLine == null) close()
+      }
+      nextLine != null
+    }
+
+    override def next(): InternalRow = {
+      if (!hasNext) throw new NoSuchElementException("End of stream")
+
+      val line = new String(nextLine, 0, nextLine.length - 1, UTF_8) // Without the trailing newline
+      nextLine = null
+
+      val fields = line.split("\t", -1)
+      var i = 0
+      while (i < decoders.length) {
+        val field = fields(i)
+        if (field == "\\N") mutableRow.setNullAt(i)
+        else decoders(i)(mutableRow, i, if (field.indexOf('\\') < 0) field else unescape(field))
+        i += 1
+      }
+      mutableRow
+    }
+
+    private def close(): Unit = if (!closed) {
+      closed = true
+      try {
+        if (copy != null && copy.isActive) copy.cancelCopy()
+      } catch {
+        case e: Exception => logWarning("Exception cancelling copy", e)
+      }
+      try {
+        connection.close()
+      } catch {
+        case e: Exception => logWarning("Exception closing connection", e)
+      }
+    }
+  }
+
+  private type TextDecoder = (SpecificMutableRow, Int, String) => Unit
+
+  private def textDecoder(dataType: DataType): TextDecoder = dataType match {
+    case BooleanType => (row, i, value) => row.setBoolean(i, value == "t")
+    case IntegerType => (row, i, value) => row.setInt(i, value.toInt)
+    case LongType => (row, i, value) => row.setLong(i, value.toLong)
+    case FloatType => (row, i, value) => row.setFloat(i, value.toFloat)
+    case DoubleType => (row, i, value) => row.setDouble(i, value.toDouble)
+    case DecimalType.Fixed(p, s) => (row, i, value) => row.update(i, Decimal(new java.math.BigDecimal(value), p, s))
+    case StringType => (row, i, value) => row.update(i, UTF8String.fromString(value))
+    case DateType => (row, i, value) => row.setInt(i, DateTimeUtils.fromJavaDate(Date.valueOf(value)))
+    case _ => throw new IllegalArgumentException(s"Unsupported type ${dataType.simpleString}")
+  }
+
+  // Decodes the backslash escape sequences written by COPY TO in text format
+  private def unescape(value: String): String = {
+    val sb = new StringBuilder(value.length)
+    var i = 0
+    while (i < value.length) {
+      val c = value.charAt(i)
+      if (c == '\\' && i < value.length - 1) {
+        sb.append(value.charAt(i + 1) match {
+          case 'b' => '\b'
+          case 'f' => '\f'
+          case 'n' => '\n'
+          case 'r' => '\r'
+          case 't' => '\t'
+          case 'v' => '\u000b'
+          case other => other
+        })
+        i += 2
+      } else {
+        sb.append(c)
+        i += 1
+      }
+    }
+    sb.toString
+  }
+
+}
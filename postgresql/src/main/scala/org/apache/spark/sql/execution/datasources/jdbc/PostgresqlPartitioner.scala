@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2015 Stratio (http://stratio.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.spark.sql.execution.datasources.jdbc
+
+import java.sql.Connection
+
+import org.apache.spark.{Logging, Partition}
+
+import scala.util.Try
+
+/**
+  * Derives the partitions of a table scan from the statistics gathered by PostgreSQL (ANALYZE), so that tables without
+  * an explicit `partitionColumn` are read in parallel:
+  *   - The number of partitions is the estimated number of rows (`pg_class.reltuples`) divided by
+  *     `partitionTargetRows` (1000000 by default).
+  *   - The partitions are ranges of the numeric or date column whose values are most correlated with the physical order
+  *     of the rows, taking the bounds from its equi-depth histogram (`pg_stats.histogram_bounds`).
+  *   - If no column has a histogram, the table is read in a single partition: other splits (e.g. ranges of `ctid`
+  *     before PostgreSQL 14, or the modulo of a hash) would make every partition scan the whole table.
+  *
+  * Automatic partitioning can be disabled with `autoPartition` 'false'.
+  */
+object PostgresqlPartitioner extends Logging {
+
+  val AutoPartition = "autoPartition"
+  val PartitionTargetRows = "partitionTargetRows"
+
+  val DefaultPartitionTargetRows = 1000000L
+
+  private val RangeColumnTypes = Seq(
+    "smallint", "integer", "bigint", "numeric", "real", "double precision",
+    "date", "timestamp without time zone", "timestamp with time zone"
+  )
+
+  private val NumericColumnTypes = RangeColumnTypes.take(6)
+
+  case class ColumnHistogram(column: String, dataType: String, bounds: Seq[String])
+
+  private val SinglePartition: Array[Partition] = Array(JDBCPartition(null, 0))
+
+  /**
+    * Partitions of a table scan. The scan is not partitioned if it is disabled, the table is a subquery, it has no
+    * statistics, they can't be read or no column has a histogram.
+    */
+  def partitions(table: String, parameters: Map[String, String]): Array[Partition] = {
+    val enabled = Try(parameters(AutoPartition).toBoolean).getOrElse(true)
+    val targetRows = Try(parameters(PartitionTargetRows).toLong).getOrElse(DefaultPartitionTargetRows)
+
+    if (!enabled || table.trim.startsWith("(")) SinglePartition
+    else Try {
+      PostgresqlUtils.withClientDo(parameters) { (connection, _) =>
+        tablePartitions(connection, table, math.max(1L, targetRows))
+      }
+    } recover { case exception =>
+      logWarning(s"Cannot compute the partitions of $table, it will be read in a single partition", exception)
+      SinglePartition
+    } get
+  }
+
+  private def tablePartitions(connection: Connection, table: String, targetRows: Long): Array[Partition] = {
+    val rows = tableRows(connection, table)
+    val numPartitions = math.min(Int.MaxValue, math.ceil(rows / targetRows).toLong).toInt
+
+    if (numPartitions <= 1) SinglePartition
+    else histogram(connection, table) map (histogramPartitions(_, numPartitions)) getOrElse {
+      logInfo(s"No column of $table has a histogram to split it, it will be read in a single partition")
+      SinglePartition
+    }
+  }
+
+  private def tableRows(connection: Connection, table: String): Double = {
+    val statement = connection.prepareStatement("SELECT reltuples FROM pg_class WHERE oid = ?::regclass")
+    try {
+      statement.setString(1, table)
+      val rs = statement.executeQuery()
+      if (rs.next()) rs.getDouble(1) else 0
+    } finally {
+      statement.close()
+    }
+  }
+
+  private def histogram(connection: Connection, table: String): Option[ColumnHistogram] = {
+    val statement = connection.prepareStatement(
+      s"""SELECT s.attname, c.data_type, s.histogram_bounds::text
+         |FROM pg_stats s JOIN information_schema.columns c
+         |ON c.table_schema = s.schemaname AND c.table_name = s.tablename AND c.column_name = s.attname
+         |WHERE s.schemaname || '.' || s.tablename = (SELECT n.nspname || '.' || r.relname
+         |  FROM pg_class r JOIN pg_namespace n ON n.oid = r.relnamespace WHERE r.oid = ?::regclass)
+         |AND s.histogram_bounds IS NOT NULL
+         |AND c.data_type IN (${RangeColumnTypes.map(dataType => s"'$dataType'").mkString(", ")})
+         |ORDER BY abs(s.correlation) DESC NULLS LAST
+         |LIMIT 1""".stripMargin)
+    try {
+      statement.setString(1, table)
+      val rs = statement.executeQuery()
+      if (rs.next()) Some(ColumnHistogram(rs.getString(1), rs.getString(2), parseArray(rs.getString(3)))) else None
+    } finally {
+      statement.close()
+    }
+  }
+
+  /**
+    * Ranges of the column between the histogram bounds which split it in `numPartitions` parts with the same number of
+    * rows. The first and last ranges are open so that no row is left out.
+    */
+  def histogramPartitions(histogram: ColumnHistogram, numPartitions: Int): Array[Partition] = {
+    val bounds = histogram.bounds
+    val splitBounds =
+      if (bounds.length < 2) Seq.empty
+      else (1 until numPartitions).map(idx => bounds(idx * (bounds.length - 1) / numPartitions)).distinct
+
+    if (splitBounds.isEmpty) SinglePartition
+    else {
+      val column = "\"" + histogram.column.replace("\"", "\"\"") + "\""
+      val values = splitBounds map { bound =>
+        if (NumericColumnTypes.contains(histogram.dataType)) bound
+        else s"'${bound.replace("'", "''")}'::${histogram.dataType}"
+      }
+
+      val clauses = s"$column < ${values.head} OR $column IS NULL" +:
+        values.sliding(2).collect { case Seq(lower, upper) => s"$column >= $lower AND $column < $upper" }.toSeq :+
+        s"$column >= ${values.last}"
+
+      clauses.zipWithIndex.map { case (clause, idx) => JDBCPartition(clause, idx): Partition }.toArray
+    }
+  }
+
+  // Parses the text representation of a one-dimensional PostgreSQL array, e.g: {1,5,"2016-01-01 10:00:00"}
+  def parseArray(array: String): Seq[String] =
+    """"((?:[^"\\]|\\.)*)"|([^,{}]+)""".r.findAllMatchIn(array).map { element =>
+      Option(element.group(1)).map(_.replaceAll("""\\(.)""", "$1")).getOrElse(element.group(2))
+    }.toSeq
+
+}
@@ -114,7 +114,7 @@ object PostgresqlRDD extends Logging {
     */
   def resolveTable(url: String, table: String, properties: Properties): StructType = {
     val dialect = JdbcDialects.get(url)
-    val conn: Connection = JdbcUtils.createConnectionFactory(url, properties)()
+    val conn: Connection = PostgresqlConnectionPool.getConnection(url, properties)
     try {
       val statement = conn.prepareStatement(s"SELECT * FROM $table WHERE 1=0")
       try {
@@ -251,7 +251,7 @@ object PostgresqlRDD extends Logging {
     val quotedColumns = requiredColumns.map(colName => dialect.quoteIdentifier(colName))
     new PostgresqlRDD(
       sc,
-      JdbcUtils.createConnectionFactory(url, properties),
+      PostgresqlConnectionPool.connectionFactory(url, properties),
       pruneSchema(schema, requiredColumns),
       fqTable,
       quotedColumns,
@@ -354,11 +354,25 @@ class PostgresqlRDD(
     case _ => throw new IllegalArgumentException(s"Unsupported type ${dt.simpleString}")
   }
 
+  /**
+    * Whether the rows are read through the COPY protocol instead of a ResultSet.
+    */
+  private val copyScan: Boolean =
+    PostgresqlCopy.isEnabled(PostgresqlCopy.CopyScan, properties) && PostgresqlCopy.supportsCopyOut(schema)
+
+  override def compute(thePart: Partition, context: TaskContext): Iterator[InternalRow] =
+    if (copyScan) {
+      val query = s"SELECT $columnList FROM $fqTable ${getWhereClause(thePart.asInstanceOf[JDBCPartition])}"
+      PostgresqlCopy.copyOut(getConnection, query, schema, context)
+    } else {
+      resultSetIterator(thePart, context)
+    }
+
   /**
     * Runs the SQL query against the JDBC driver.
     *
     */
-  override def compute(thePart: Partition, context: TaskContext): Iterator[InternalRow] =
+  private def resultSetIterator(thePart: Partition, context: TaskContext): Iterator[InternalRow] =
     new Iterator[InternalRow] {
       var closed = false
       var finished = false
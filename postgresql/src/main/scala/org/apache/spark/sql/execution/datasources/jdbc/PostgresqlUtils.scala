@@ -32,25 +32,21 @@ object PostgresqlUtils {
   val driverClassName: String = "org.postgresql.Driver"
 
   def withClientDo[T](parameters: Map[String, String])(f: (Connection, Statement) => T): T = {
-//  TODO use using inside withclientDo
-//    using (buildConnection(parameters)) { connection =>
-//      using(connection.createStatement()){ statement =>
-//         f(connection, statement)
-//      }
-//    }
-//
     val connection = buildConnection(parameters)
-    val statement = connection.createStatement()
     try {
-      f(connection, statement)
+      val statement = connection.createStatement()
+      try {
+        f(connection, statement)
+      } finally {
+        statement.close()
+      }
     } finally {
-      connection.close()
-      statement.close()
+      connection.close() // Gives the connection back to the pool
     }
   }
 
   def resolveSchema(url: String, table: String, properties: Properties): StructType =
-    JDBCRDD.resolveTable(url, table, properties)
+    PostgresqlRDD.resolveTable(url, table, properties)
 
 
   private def buildConnection(parameters: Map[String, String]): Connection = {
@@ -58,7 +54,7 @@ object PostgresqlUtils {
     val url: String = parameters.getOrElse(URL, sys.error(s"Option $URL not specified"))
     val properties = mapToPropertiesWithDriver(parameters)
 
-    JdbcUtils.createConnectionFactory(url, properties)()
+    PostgresqlConnectionPool.getConnection(url, properties)
   }
 
   def getRequiredProperty(propertyName: String,  parameters: Map[String, String]): String =
@@ -83,7 +79,7 @@ object PostgresqlUtils {
     if (sb.length < 2) "" else sb.substring(2)
   }
 
-  private def getPostgresqlType(dataType: DataType): String = dataType match {
+  def getPostgresqlType(dataType: DataType): String = dataType match {
     case StringType => "TEXT"
     case BinaryType => "BYTEA"
     case BooleanType => "BOOLEAN"
@@ -28,22 +28,28 @@ import org.apache.spark.sql.catalyst.plans.logical._
 import org.apache.spark.sql.execution.datasources.LogicalRelation
 import org.apache.spark.sql.sources.{BaseRelation, Filter}
 import org.apache.spark.sql.types.StructType
-import org.apache.spark.sql.{Row, SQLContext}
+import org.apache.spark.sql.{DataFrame, Row, SQLContext}
 import org.apache.spark.sql.execution.datasources.jdbc.PostgresqlUtils._
 
 
+/**
+  * @param scanPartitions the partitions of the Spark scans. They are evaluated the first time a scan is built, so the
+  *                       relations only executed natively don't pay for them.
+  */
 class PostgresqlXDRelation( url: String,
                             table: String,
-                            parts: Array[Partition],
+                            scanPartitions: => Array[Partition],
                             properties: Properties = new Properties(),
                             @transient override val sqlContext: SQLContext,
                             userSchema: Option[StructType] = None)
-  extends JDBCRelation(url, table, parts)(sqlContext)
+  extends JDBCRelation(url, table, Array.empty)(sqlContext)
     with NativeScan
     with SparkLoggerComponent {
 
   override val schema: StructType = userSchema.getOrElse(resolveSchema(url, table, properties))
 
+  private lazy val partitions: Array[Partition] = scanPartitions
+
   override def buildScan(requiredColumns: Array[String], filters: Array[Filter]): RDD[Row] = {
     // Rely on a type erasure hack to pass RDD[InternalRow] back as RDD[Row]
     PostgresqlRDD.scanTable(
@@ -54,9 +60,16 @@ class PostgresqlXDRelation( url: String,
       table,
       requiredColumns,
       filters,
-      parts).asInstanceOf[RDD[Row]]
+      partitions).asInstanceOf[RDD[Row]]
   }
 
+  override def insert(data: DataFrame, overwrite: Boolean): Unit =
+    if (PostgresqlCopy.isEnabled(PostgresqlCopy.CopyInsert, properties)) {
+      PostgresqlCopy.insert(data, table, schema.fieldNames, url, properties, overwrite)
+    } else {
+      super.insert(data, overwrite)
+    }
+
   override def buildScan(optimizedLogicalPlan: LogicalPlan): Option[Array[Row]] =
     throw new RuntimeException("This method should not be called. Sql needed")
 
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2015 Stratio (http://stratio.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.crossdata.connector.postgresql
+
+import org.apache.spark.sql.crossdata.ExecutionType._
+import org.apache.spark.sql.crossdata.test.SharedXDContextWithDataTest.SparkTable
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+
+/**
+  * Checks that the queries translated by the SQLBuilder return the same results natively and in Spark.
+  */
+@RunWith(classOf[JUnitRunner])
+class PostgresqlConformanceIT extends PostgresqlWithSharedContext {
+
+  val eventsTable = "events"
+
+  override def saveTestData: Unit = {
+    super.saveTestData
+    val statement = client.get._2
+    statement.execute(
+      s"CREATE TABLE $postgresqlSchema.$eventsTable (id integer PRIMARY KEY, student integer, day date, happened timestamp)")
+    (1 to 20) foreach { id =>
+      statement.execute(
+        s"""INSERT INTO $postgresqlSchema.$eventsTable VALUES
+            |($id, ${id % 10 + 1}, DATE '2016-01-01' + ${id * 17}, TIMESTAMP '2016-01-01 08:00:00' + INTERVAL '${id * 97} minutes')
+            |""".stripMargin.replaceAll("\n", " "))
+    }
+  }
+
+  override def sparkRegisterTableSQL: Seq[SparkTable] = super.sparkRegisterTableSQL :+
+    SparkTable(s"CREATE TEMPORARY TABLE $postgresqlSchema.$eventsTable", Map("url" -> url, "dbtable" -> s"$postgresqlSchema.$eventsTable"))
+
+  val students = s"$postgresqlSchema.$Table"
+  val marks = s"$postgresqlSchema.$aggregationTable"
+  val events = s"$postgresqlSchema.$eventsTable"
+
+  val unorderedQueries = Seq(
+    "projections and filters" ->
+      s"SELECT id, age + 1, upper(name) FROM $students WHERE enrolled = true AND age > 12",
+    "joins with aliases" ->
+      s"SELECT s.name, m.mark FROM $students s JOIN $marks m ON s.id = m.id WHERE m.mark > 3",
+    "outer joins" ->
+      s"SELECT s.id, m.country FROM $students s LEFT OUTER JOIN $marks m ON s.id = m.id + 5",
+    "self joins" ->
+      s"SELECT a.id, b.id FROM $students a JOIN $students b ON a.age = b.age - 1",
+    "subqueries" ->
+      s"SELECT t.name, t.older FROM (SELECT name, age > 15 AS older FROM $students WHERE id < 8) t WHERE t.older = false",
+    "CASE expressions" ->
+      s"SELECT id, CASE WHEN age < 14 THEN 'young' WHEN age < 17 THEN 'teen' ELSE 'old' END FROM $students",
+    "UNION ALL" ->
+      s"SELECT id FROM $students WHERE id < 5 UNION ALL SELECT id FROM $marks WHERE id > 15",
+    "UNION" ->
+      s"SELECT DISTINCT id FROM (SELECT id FROM $students UNION ALL SELECT id FROM $marks WHERE id < 5) u",
+    "aggregations with HAVING" ->
+      s"SELECT country, count(*), sum(id) FROM $marks GROUP BY country HAVING count(*) > 1",
+    "aggregations over joins" ->
+      s"SELECT s.enrolled, max(m.mark) FROM $students s JOIN $marks m ON s.id = m.id GROUP BY s.enrolled",
+    "EXCEPT keeping the duplicated rows" ->
+      s"SELECT country FROM $marks EXCEPT SELECT name FROM $students",
+    "date functions" ->
+      s"""SELECT id, year(day), month(day), dayofmonth(day), hour(happened), minute(happened),
+         |date_add(day, 3), datediff(day, to_date(happened)) FROM $events""".stripMargin,
+    "months added to the last day of a month" ->
+      s"""SELECT id, add_months(day, id - 10), add_months(last_day(day), id - 10),
+         |add_months(CAST('2016-01-31' AS DATE), id) FROM $events""".stripMargin,
+    "filters on dates" ->
+      s"SELECT student, count(*) FROM $events WHERE day > CAST('2016-03-01' AS DATE) GROUP BY student"
+  )
+
+  val orderedQueries = Seq(
+    "ORDER BY" ->
+      s"SELECT id, name FROM $students ORDER BY age DESC",
+    "ORDER BY a column which is not projected with LIMIT" ->
+      s"SELECT name FROM $students WHERE id > 2 ORDER BY id DESC LIMIT 4",
+    "ORDER BY with LIMIT" ->
+      s"SELECT id FROM $students WHERE enrolled = false ORDER BY name LIMIT 3",
+    "ORDER BY an aggregation" ->
+      s"SELECT country, avg(mark) AS average FROM $marks GROUP BY country ORDER BY average",
+    "ORDER BY over joins" ->
+      s"SELECT s.id, m.mark FROM $students s JOIN $marks m ON s.id = m.id ORDER BY m.mark DESC, s.id LIMIT 5"
+  )
+
+  unorderedQueries foreach { case (description, query) =>
+    "The Postgresql SQLBuilder" should s"return the same results as Spark for $description" in {
+      assumeEnvironmentIsUpAndRunning
+
+      val nativeResult = sql(query).collect(Native)
+      nativeResult should contain theSameElementsAs sql(query).collect(Spark)
+    }
+  }
+
+  orderedQueries foreach { case (description, query) =>
+    it should s"return the same results in the same order as Spark for $description" in {
+      assumeEnvironmentIsUpAndRunning
+
+      sql(query).collect(Native) should be (sql(query).collect(Spark))
+    }
+  }
+
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2015 Stratio (http://stratio.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.crossdata.connector.postgresql
+
+import org.apache.spark.sql.crossdata.ExecutionType._
+import org.apache.spark.sql.execution.datasources.jdbc.{PostgresqlConnectionPool, PostgresqlUtils}
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+
+import scala.concurrent.ExecutionContext.Implicits.global
+import scala.concurrent.duration._
+import scala.concurrent.{Await, Future}
+
+@RunWith(classOf[JUnitRunner])
+class PostgresqlConnectionPoolIT extends PostgresqlWithSharedContext {
+
+  "The Postgresql connection pool" should "serve more concurrent requests than pooled connections" in {
+    assumeEnvironmentIsUpAndRunning
+
+    val options = Map("url" -> url, PostgresqlConnectionPool.PoolMaxSize -> "2")
+
+    val counts = (1 to 20) map { _ =>
+      Future {
+        PostgresqlUtils.withClientDo(options) { (_, statement) =>
+          val rs = statement.executeQuery(s"SELECT count(*) FROM $postgresqlSchema.$Table")
+          rs.next()
+          rs.getInt(1)
+        }
+      }
+    }
+
+    Await.result(Future.sequence(counts), 1 minute) should contain only 10
+  }
+
+  it should "be used by both native and Spark executions" in {
+    assumeEnvironmentIsUpAndRunning
+
+    PostgresqlConnectionPool.closeAll()
+
+    Seq(Native, Spark) foreach { executionType =>
+      sql(s"SELECT id FROM $postgresqlSchema.$Table").collect(executionType) should have length 10
+      PostgresqlConnectionPool.poolCount shouldBe 1
+    }
+
+    PostgresqlConnectionPool.totalConnections should (be > 0 and be <= PostgresqlConnectionPool.DefaultPoolMaxSize)
+  }
+
+}
@@ -15,7 +15,9 @@
  */
 package com.stratio.crossdata.connector.postgresql
 
-import org.apache.spark.sql.Row
+import org.apache.spark.sql.crossdata.ExecutionType._
+import org.apache.spark.sql.execution.datasources.jdbc.PostgresqlCopy
+import org.apache.spark.sql.{Row, SaveMode}
 import org.junit.runner.RunWith
 import org.scalatest.junit.JUnitRunner
 
@@ -87,5 +89,38 @@ class PostgresqlInsertTableIT extends PostgresqlInsertCollection {
     )
   }
 
+  it should "copy rows with special characters and read them back through COPY and ResultSet scans" in {
+    val comment = "tab\there, \"quoted\", back\\slash\nnew line"
+    val data = _xdContext.createDataFrame(Seq((40, 41, comment, true, ""), (41, 42, null, false, "Copy")))
+      .toDF("id", "age", "comment", "enrolled", "name")
+    data.write.format(SourceProvider).mode(SaveMode.Append).options(defaultOptions).save()
+
+    val resultSetTable = "copyStudentsResultSet"
+    sql(
+      s"""|CREATE TEMPORARY TABLE $resultSetTable
+          |USING $SourceProvider
+          |OPTIONS (
+          |url '$url',
+          |dbtable '$postgresqlSchema.$Table',
+          |${PostgresqlCopy.CopyScan} 'false'
+          |)""".stripMargin)
+
+    //EXPECTATION
+    val expected = Seq(Row(40, 41, comment, true, ""), Row(41, 42, null, false, "Copy"))
+    Seq(s"$postgresqlSchema.$Table", resultSetTable) foreach { table =>
+      val results = sql(s"select id, age, comment, enrolled, name from $table where id=40 or id=41").collect(Spark)
+      results should contain theSameElementsAs expected
+    }
+  }
+
+  it should "copy the values by position whatever the names of the DataFrame columns" in {
+    val data = _xdContext.createDataFrame(Seq((50, 51, "Comment 50", true, "Name 50")))
+    data.write.format(SourceProvider).mode(SaveMode.Append).options(defaultOptions).save()
+
+    //EXPECTATION
+    val results = sql(s"select id, age, comment, enrolled, name from $postgresqlSchema.$Table where id=50").collect(Spark)
+    results should contain only Row(50, 51, "Comment 50", true, "Name 50")
+  }
+
 }
 
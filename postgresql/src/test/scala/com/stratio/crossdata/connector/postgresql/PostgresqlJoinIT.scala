@@ -30,8 +30,6 @@ class PostgresqlJoinIT extends PostgresqlWithSharedContext {
     result should have length 10
   }
 
-  // SQLBuilder does not support table alias, so in this case direct query is executed.as second attempt.
-
   it should s"support a JOIN with alias natively" in {
     assumeEnvironmentIsUpAndRunning
 
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2015 Stratio (http://stratio.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.crossdata.connector.postgresql
+
+import java.util.Properties
+
+import org.apache.spark.sql.crossdata.ExecutionType._
+import org.apache.spark.sql.execution.datasources.jdbc.{PostgresqlPartitioner, PostgresqlUtils, PostgresqlXDRelation}
+import org.apache.spark.sql.sources.Filter
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+
+@RunWith(classOf[JUnitRunner])
+class PostgresqlPartitionerIT extends PostgresqlWithSharedContext {
+
+  "The Postgresql partitioner" should "split an analyzed table according to the target partition size" in {
+    assumeEnvironmentIsUpAndRunning
+
+    val options = Map("url" -> url, PostgresqlPartitioner.PartitionTargetRows -> "3")
+    PostgresqlUtils.withClientDo(options) { (_, statement) =>
+      statement.execute(s"ANALYZE $postgresqlSchema.$Table")
+    }
+
+    PostgresqlPartitioner.partitions(s"$postgresqlSchema.$Table", options).length should be > 1
+    PostgresqlPartitioner.partitions(
+      s"$postgresqlSchema.$Table", options + (PostgresqlPartitioner.AutoPartition -> "false")
+    ) should have length 1
+  }
+
+  it should "not split an analyzed table without histograms of numeric or date columns" in {
+    assumeEnvironmentIsUpAndRunning
+
+    val textTable = s"$postgresqlSchema.comments"
+    val options = Map("url" -> url, PostgresqlPartitioner.PartitionTargetRows -> "3")
+    PostgresqlUtils.withClientDo(options) { (_, statement) =>
+      statement.execute(s"CREATE TABLE $textTable (comment text)")
+      statement.execute(s"INSERT INTO $textTable SELECT 'comment ' || i FROM generate_series(1, 10) i")
+      statement.execute(s"ANALYZE $textTable")
+    }
+
+    try {
+      PostgresqlPartitioner.partitions(textTable, options) should have length 1
+    } finally {
+      PostgresqlUtils.withClientDo(options)((_, statement) => statement.execute(s"DROP TABLE $textTable"))
+    }
+  }
+
+  it should "read every row of a table scanned in several partitions" in {
+    assumeEnvironmentIsUpAndRunning
+
+    val partitionedTable = "partitionedStudents"
+    sql(
+      s"""|CREATE TEMPORARY TABLE $partitionedTable
+          |USING $SourceProvider
+          |OPTIONS (
+          |url '$url',
+          |dbtable '$postgresqlSchema.$Table',
+          |${PostgresqlPartitioner.PartitionTargetRows} '3'
+          |)""".stripMargin)
+
+    val result = sql(s"SELECT id FROM $partitionedTable").collect(Spark)
+    result.map(_.getInt(0)) should contain theSameElementsAs (1 to 10)
+  }
+
+  it should "compute the partitions of a relation only when a Spark scan is built" in {
+    assumeEnvironmentIsUpAndRunning
+
+    val options = Map("url" -> url, PostgresqlPartitioner.PartitionTargetRows -> "3")
+    var computations = 0
+    val relation = new PostgresqlXDRelation(url, s"$postgresqlSchema.$Table", {
+      computations += 1
+      PostgresqlPartitioner.partitions(s"$postgresqlSchema.$Table", options)
+    }, new Properties(), xdContext)
+
+    computations shouldBe 0
+
+    relation.buildScan(Array("id"), Array.empty[Filter]).count() shouldBe 10
+    relation.buildScan(Array("id"), Array.empty[Filter]).count() shouldBe 10
+    computations shouldBe 1
+  }
+
+}
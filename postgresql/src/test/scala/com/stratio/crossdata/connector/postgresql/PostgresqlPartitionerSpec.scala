@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2015 Stratio (http://stratio.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.crossdata.connector.postgresql
+
+import com.stratio.crossdata.test.BaseXDTest
+import org.apache.spark.sql.execution.datasources.jdbc.PostgresqlPartitioner.ColumnHistogram
+import org.apache.spark.sql.execution.datasources.jdbc.{JDBCPartition, PostgresqlPartitioner}
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+
+@RunWith(classOf[JUnitRunner])
+class PostgresqlPartitionerSpec extends BaseXDTest {
+
+  "PostgresqlPartitioner" should "split a numeric column by the bounds of its histogram" in {
+    val histogram = ColumnHistogram("id", "integer", Seq("1", "25", "50", "75", "100"))
+
+    val clauses = PostgresqlPartitioner.histogramPartitions(histogram, 4) map (_.asInstanceOf[JDBCPartition].whereClause)
+
+    clauses should be (Array(
+      "\"id\" < 25 OR \"id\" IS NULL",
+      "\"id\" >= 25 AND \"id\" < 50",
+      "\"id\" >= 50 AND \"id\" < 75",
+      "\"id\" >= 75"
+    ))
+  }
+
+  it should "quote and cast the bounds of a date column" in {
+    val histogram = ColumnHistogram("day", "date", Seq("2016-01-01", "2016-06-01", "2016-12-31"))
+
+    val clauses = PostgresqlPartitioner.histogramPartitions(histogram, 2) map (_.asInstanceOf[JDBCPartition].whereClause)
+
+    clauses should be (Array(
+      "\"day\" < '2016-06-01'::date OR \"day\" IS NULL",
+      "\"day\" >= '2016-06-01'::date"
+    ))
+  }
+
+  it should "not split a column whose histogram has a single value" in {
+    val histogram = ColumnHistogram("id", "integer", Seq("1"))
+
+    PostgresqlPartitioner.histogramPartitions(histogram, 4) should have length 1
+  }
+
+  it should "parse the text representation of the histogram bounds" in {
+    PostgresqlPartitioner.parseArray("""{1,5,"2016-01-01 10:00:00","a \"quoted\" value"}""") should be (
+      Seq("1", "5", "2016-01-01 10:00:00", "a \"quoted\" value")
+    )
+  }
+
+}
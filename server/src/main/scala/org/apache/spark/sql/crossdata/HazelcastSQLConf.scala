@@ -20,22 +20,46 @@ import java.util.Map.Entry
 import com.hazelcast.core.IMap
 import com.stratio.crossdata.util.CacheInvalidator
 
-class HazelcastSQLConf(hazelcastMap: IMap[String, String], cacheInvalidator: CacheInvalidator) extends XDSQLConf {
+/**
+  * Session settings stored in a Hazelcast map.
+  *
+  * The map is created (by `createMap`, from the defaults) when a setting is changed for the first time. Until then,
+  * the session settings are the read-only `defaults`, which are shared with other sessions.
+  */
+class HazelcastSQLConf(
+                        existingMap: Option[IMap[String, String]],
+                        defaults: () => java.util.Map[String, String],
+                        createMap: java.util.Map[String, String] => IMap[String, String],
+                        cacheInvalidator: CacheInvalidator
+                      ) extends XDSQLConf {
 
   import HazelcastSQLConf._
 
+  def this(hazelcastMap: IMap[String, String], cacheInvalidator: CacheInvalidator) =
+    this(Some(hazelcastMap), () => hazelcastMap, _ => hazelcastMap, cacheInvalidator)
+
+  @volatile private var hazelcastMap: Option[IMap[String, String]] = existingMap
+  private val hazelcastMapLock = new Object
+
+  private def readableSettings: java.util.Map[String, String] = hazelcastMap getOrElse defaults()
+
+  private def writableSettings: java.util.Map[String, String] = hazelcastMap getOrElse hazelcastMapLock.synchronized {
+    hazelcastMap getOrElse {
+      val newMap = createMap(defaults())
+      hazelcastMap = Some(newMap)
+      newMap
+    }
+  }
+
   private var enabledInvalidation = true
 
   private val invalidator: () => CacheInvalidator =
     () => if(enabledInvalidation) cacheInvalidator else disabledInvalidator
 
-  def invalidateLocalCache: Unit = localMap.clear
+  def invalidateLocalCache: Unit = settings.invalidateSnapshot()
 
-  private val localMap =  java.util.Collections.synchronizedMap(new java.util.HashMap[String, String]())
-
-  override protected[spark] val settings = {
-    new ChainedJavaMapWithWriteInvalidation[String, String](Seq(localMap, hazelcastMap), invalidator)
-  }
+  override protected[spark] val settings =
+    new SnapshotJavaMapWithWriteInvalidation[String, String](readableSettings _, writableSettings _, invalidator)
 
   override def enableCacheInvalidation(enable: Boolean): XDSQLConf = {
     enabledInvalidation = enable
@@ -50,83 +74,66 @@ object HazelcastSQLConf {
     override def invalidateCache: Unit = ()
   }
 
-  private case class NullBuilder[T]() {
-    private var pNull: T = _
-    lazy val nullval = pNull
-  }
-
-  class ChainedJavaMapWithWriteInvalidation[K,V](
-                                                  private val delegatedMaps: Seq[java.util.Map[K,V]],
-                                                  private val invalidator: () => CacheInvalidator
-                                                )
-
-    extends java.util.Map[K,V] {
-
-    require(!delegatedMaps.isEmpty)
-
-    import scala.collection.JavaConversions._
+  /**
+    * Java map whose reads are served from a local snapshot of a distributed map. The snapshot is taken
+    * with a single bulk read the first time it is needed and kept until [[invalidateSnapshot]] is called
+    * (i.e: when other peer publishes a change), so reading settings during a query doesn't require network hops.
+    * Writes are applied to both the snapshot and the distributed map and trigger the cache invalidation.
+    */
+  class SnapshotJavaMapWithWriteInvalidation[K,V](
+                                                   private val readableMap: () => java.util.Map[K,V],
+                                                   private val writableMap: () => java.util.Map[K,V],
+                                                   private val invalidator: () => CacheInvalidator
+                                                 ) extends java.util.Map[K,V] {
+
+    @volatile private var snapshot: Option[java.util.Map[K,V]] = None
+
+    def invalidateSnapshot(): Unit = synchronized {
+      snapshot = None
+    }
 
-    override def values(): java.util.Collection[V] = (Set.empty[V] /: delegatedMaps) {
-      case (values, delegatedMap) => values ++ delegatedMap.values
+    private def localSnapshot: java.util.Map[K,V] = snapshot getOrElse synchronized {
+      snapshot getOrElse {
+        val newSnapshot = new java.util.concurrent.ConcurrentHashMap[K,V](readableMap())
+        snapshot = Some(newSnapshot)
+        newSnapshot
+      }
     }
 
-    override def get(key: scala.Any): V = delegatedMaps.view.map(_.get(key)).find(_ != null).getOrElse {
-      NullBuilder[V]().nullval
+    private def write[T](op: java.util.Map[K,V] => T): T = {
+      val res = synchronized {
+        snapshot foreach op
+        op(writableMap())
+      }
+      invalidator().invalidateCache
+      res
     }
 
-    override def entrySet(): java.util.Set[Entry[K, V]] = delegatedMaps.last.entrySet()
-    /**
-      * Note that this implementation assumes each level is contained by the next one, being the last one
-      * continent of every single preceding one. Otherwise, it'd be better to do something like:
-      *
-      * (Set.empty[Entry[K,V]] /: delegatedMaps) {
-      *     case (values, delegatedMap) => values ++ delegatedMap.entrySet()
-      * }
-      */
+    override def values(): java.util.Collection[V] = localSnapshot.values()
 
+    override def get(key: scala.Any): V = localSnapshot.get(key)
 
-    override def put(key: K, value: V): V = {
-      invalidator().invalidateCache
-      (Option.empty[V] /: delegatedMaps) {
-        case (prev, delegatedMap) =>
-          val newRes = delegatedMap.put(key, value)
-          prev orElse Option(newRes)
-      } getOrElse(NullBuilder[V]().nullval)
-    }
+    override def entrySet(): java.util.Set[Entry[K, V]] = localSnapshot.entrySet()
 
-    override def clear(): Unit = {
-      invalidator().invalidateCache
-      delegatedMaps foreach(_.clear)
-    }
+    // Setting a value again is not a change: e.g. building a session sets the settings it already has by default
+    override def put(key: K, value: V): V =
+      if (Option(localSnapshot.get(key)) contains value) value else write(_.put(key, value))
 
-    override def size(): Int = delegatedMaps.maxBy(_.size).size
+    override def clear(): Unit = write(_.clear())
 
-    override def remove(key: scala.Any): V = {
-      invalidator().invalidateCache
-      delegatedMaps.map(_.remove(key)).head
-    }
+    override def size(): Int = localSnapshot.size()
 
-    override def containsKey(key: scala.Any): Boolean = delegatedMaps.view exists (_.containsKey(key))
+    override def remove(key: scala.Any): V = write(_.remove(key))
 
-    override def containsValue(value: scala.Any): Boolean = delegatedMaps.view exists (_.containsValue(value))
+    override def containsKey(key: scala.Any): Boolean = localSnapshot.containsKey(key)
 
-    override def isEmpty: Boolean = delegatedMaps forall (_.isEmpty)
+    override def containsValue(value: scala.Any): Boolean = localSnapshot.containsValue(value)
 
-    override def putAll(m: java.util.Map[_ <: K, _ <: V]): Unit = {
-      invalidator().invalidateCache
-      delegatedMaps foreach (_.putAll(m))
-    }
+    override def isEmpty: Boolean = localSnapshot.isEmpty
 
-    override def keySet(): java.util.Set[K] = delegatedMaps.last.keySet()
+    override def putAll(m: java.util.Map[_ <: K, _ <: V]): Unit = write(_.putAll(m))
 
-    /**
-      * Note that this implementation assumes each level is contained by the next one, being the last one
-      * continent of every single preceding one. Otherwise, it'd be better to do something like:
-      *
-      * (Set.empty[K] /: delegatedMaps) {
-      *   case (keys, delegatedMap) => keys ++ delegatedMap.keySet()
-      * }
-      */
+    override def keySet(): java.util.Set[K] = localSnapshot.keySet()
 
   }
 
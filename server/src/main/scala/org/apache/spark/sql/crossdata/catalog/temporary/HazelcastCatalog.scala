@@ -25,23 +25,56 @@ import org.apache.spark.sql.crossdata.catalog.interfaces.{XDCatalogCommon, XDTem
 import org.apache.spark.sql.crossdata.util.CreateRelationUtil
 
 
+object HazelcastCatalog {
+
+  type TableMap = IMap[TableIdentifierNormalized, CrossdataTable]
+  type ViewMap = IMap[ViewIdentifierNormalized, String]
+
+}
+
+/**
+  * Temporary catalog backed by a pair of Hazelcast maps.
+  *
+  * Maps are only created, through `createMaps`, when the first table or view is saved. Until then, the catalog is
+  * empty and no distributed resources are needed for it.
+  */
 class HazelcastCatalog(
-                        private val tables: IMap[TableIdentifierNormalized, CrossdataTable],
-                        private val views: IMap[TableIdentifierNormalized, String]
+                        existingMaps: Option[(HazelcastCatalog.TableMap, HazelcastCatalog.ViewMap)],
+                        createMaps: () => (HazelcastCatalog.TableMap, HazelcastCatalog.ViewMap)
                       )(implicit val catalystConf: CatalystConf) extends XDTemporaryCatalog with Serializable {
 
+  import HazelcastCatalog._
+
+  def this(tables: HazelcastCatalog.TableMap, views: HazelcastCatalog.ViewMap)(implicit catalystConf: CatalystConf) =
+    this(Some((tables, views)), () => (tables, views))(catalystConf)
+
+  @volatile private var maps: Option[(TableMap, ViewMap)] = existingMaps
+
+  private def readableTables: Option[TableMap] = maps.map(_._1)
+  private def readableViews: Option[ViewMap] = maps.map(_._2)
+
+  private def writableMaps: (TableMap, ViewMap) = maps getOrElse synchronized {
+    maps getOrElse {
+      val newMaps = createMaps()
+      maps = Some(newMaps)
+      newMaps
+    }
+  }
+
+  private def tables: TableMap = writableMaps._1
+  private def views: ViewMap = writableMaps._2
 
   override def relation(tableIdent: TableIdentifierNormalized)(implicit sqlContext: SQLContext): Option[LogicalPlan] =
     {
-      Option(tables.get(tableIdent)) map (CreateRelationUtil.createLogicalRelation(sqlContext, _))
+      readableTables flatMap (tables => Option(tables.get(tableIdent))) map (CreateRelationUtil.createLogicalRelation(sqlContext, _))
     } orElse {
-      Option(views.get(tableIdent)) map (sqlContext.sql(_).logicalPlan)
+      readableViews flatMap (views => Option(views.get(tableIdent))) map (sqlContext.sql(_).logicalPlan)
     }
 
 
   override def allRelations(databaseName: Option[StringNormalized]): Seq[TableIdentifierNormalized] = {
     import scala.collection.JavaConversions._
-    val tableIdentSeq = (tables ++ views).keys.toSeq
+    val tableIdentSeq = maps.toSeq flatMap { case (tables, views) => (tables ++ views).keys }
     databaseName.map { dbName =>
       tableIdentSeq.filter {
         case TableIdentifierNormalized(_, Some(dIdent)) => dIdent == dbName.normalizedString
@@ -66,14 +99,14 @@ class HazelcastCatalog(
   }
 
   override def dropTable(tableIdentifier: TableIdentifierNormalized): Unit =
-    tables remove tableIdentifier
+    readableTables foreach (_ remove tableIdentifier)
 
   override def dropView(viewIdentifier: ViewIdentifierNormalized): Unit =
-    views remove viewIdentifier
+    readableViews foreach (_ remove viewIdentifier)
 
-  override def dropAllViews(): Unit = views clear()
+  override def dropAllViews(): Unit = readableViews foreach (_ clear())
 
-  override def dropAllTables(): Unit = tables clear()
+  override def dropAllTables(): Unit = readableTables foreach (_ clear())
 
   override def isAvailable: Boolean = true
 
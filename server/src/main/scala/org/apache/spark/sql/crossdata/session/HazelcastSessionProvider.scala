@@ -15,8 +15,11 @@
  */
 package org.apache.spark.sql.crossdata.session
 
-import com.hazelcast.config.{XmlConfigBuilder, Config => HzConfig}
-import com.hazelcast.core.Hazelcast
+import java.util.UUID
+import java.util.concurrent.{ConcurrentHashMap, TimeUnit}
+
+import com.hazelcast.config.{InMemoryFormat, MapConfig, NearCacheConfig, XmlConfigBuilder, Config => HzConfig}
+import com.hazelcast.core.{Hazelcast, IMap}
 import com.stratio.crossdata.util.CacheInvalidator
 import com.typesafe.config.{Config, ConfigFactory}
 import org.apache.log4j.Logger
@@ -28,6 +31,7 @@ import org.apache.spark.sql.crossdata.catalog.utils.CatalogUtils
 import org.apache.spark.sql.crossdata.config.CoreConfig._
 import org.apache.spark.sql.crossdata.session.XDSessionProvider.SessionID
 
+import scala.concurrent.duration.Duration
 import scala.util.{Failure, Success, Try}
 
 object HazelcastSessionProvider {
@@ -35,6 +39,46 @@ object HazelcastSessionProvider {
   val SqlConfMapId = "sqlconfmap"
   val HazelcastCatalogMapId = "hazelcatalogmap"
   val HazelcastConfigMapId = "hazelconfigmap"
+  val HazelcastSessionsMapId = "hazelsessionsmap"
+  val SessionMapPrefix = "xdsession-"
+
+  val NearCacheEnabledKey = "config.hazelcast.near-cache.enabled"
+  val NearCacheMaxSizeKey = "config.hazelcast.near-cache.max-size"
+  val NearCacheMaxIdleKey = "config.hazelcast.near-cache.max-idle"
+
+  val SessionsCacheMaxSizeKey = "config.sessions.cache.max-size"
+  val SessionsCacheMaxIdleKey = "config.sessions.cache.max-idle"
+
+  def sessionMapName(mapId: UUID): String = s"$SessionMapPrefix$mapId"
+
+  /**
+    * Adds near caches to the maps backing the sessions (unless they were already configured by the user) so
+    * resolving a session, its temporary catalogs or its settings is served locally at every peer. Hazelcast
+    * keeps the near caches consistent by invalidating their entries on change.
+    */
+  def withNearCaches(hzConfig: HzConfig, serverConfig: Config): HzConfig = {
+    val enabled = Try(serverConfig.getBoolean(NearCacheEnabledKey)).getOrElse(true)
+    if (enabled) {
+      val maxSize = Try(serverConfig.getInt(NearCacheMaxSizeKey)).getOrElse(NearCacheConfig.DEFAULT_MAX_SIZE)
+      val maxIdleSeconds = Try(serverConfig.getDuration(NearCacheMaxIdleKey, TimeUnit.SECONDS).toInt).getOrElse(
+        NearCacheConfig.DEFAULT_MAX_IDLE_SECONDS
+      )
+
+      Seq(HazelcastCatalogMapId, HazelcastConfigMapId, HazelcastSessionsMapId, s"$SessionMapPrefix*") filterNot {
+        hzConfig.getMapConfigs containsKey _
+      } foreach { mapName =>
+        val nearCacheConfig = new NearCacheConfig()
+          .setInMemoryFormat(InMemoryFormat.OBJECT)
+          .setInvalidateOnChange(true)
+          .setCacheLocalEntries(true)
+          .setMaxSize(maxSize)
+          .setMaxIdleSeconds(maxIdleSeconds)
+          .setEvictionPolicy("LRU")
+        hzConfig.addMapConfig(new MapConfig(mapName).setNearCacheConfig(nearCacheConfig))
+      }
+    }
+    hzConfig
+  }
 
   def checkNotNull[T]: T => Try[T] =
     a => Option(a).map(Success(_)).getOrElse(Failure(new RuntimeException(s"Map not found")))
@@ -49,15 +93,19 @@ class HazelcastSessionProvider(sc: SparkContext,
 
   import HazelcastSessionProvider._
 
-  private val sessionsCache: collection.mutable.Map[SessionID, XDSession] =
-    new collection.mutable.HashMap[SessionID, XDSession] with collection.mutable.SynchronizedMap[SessionID, XDSession] // TODO insecure map
+  private val sessionsCache: SessionRegistry[XDSession] = new SessionRegistry[XDSession](
+    Try(serverConfig.getInt(SessionsCacheMaxSizeKey)).getOrElse(SessionRegistry.DefaultMaxSize),
+    Try(serverConfig.getDuration(SessionsCacheMaxIdleKey, TimeUnit.MILLISECONDS)).map(
+      Duration(_, TimeUnit.MILLISECONDS)
+    ).getOrElse(SessionRegistry.DefaultMaxIdle)
+  )
 
   private val sessionsCacheInvalidator =
     (sessionId: Option[SessionID]) => Some {
       new CacheInvalidator {
         override def invalidateCache: Unit = sessionId match {
           case None => sessionsCache clear()
-          case Some(sid) => sessionsCache -= sid
+          case Some(sid) => sessionsCache remove sid
         }
       }
     }
@@ -74,13 +122,19 @@ class HazelcastSessionProvider(sc: SparkContext,
 
   private val sharedState = new XDSharedState(sc, sqlConf, externalCatalog, streamingCatalog, securityManager)
 
-  protected val hInstance = Hazelcast.newHazelcastInstance(hzConfig)
+  protected val hInstance = Hazelcast.newHazelcastInstance(withNearCaches(hzConfig, serverConfig))
+
+  // Open sessions and their users. Any other session resource is created on demand
+  private val openSessions: IMap[SessionID, String] = hInstance.getMap(HazelcastSessionsMapId)
+  private val localSessionUsers = new ConcurrentHashMap[SessionID, String]()
 
-  protected val sessionIDToSQLProps = new HazelcastSessionConfigManager(hInstance, sessionsCacheInvalidator)
+  protected val sessionIDToSQLProps =
+    new HazelcastSessionConfigManager(hInstance, sessionsCacheInvalidator, sessionDefaultSettings)
   protected val sessionIDToTempCatalogs = new HazelcastSessionCatalogManager(
     hInstance,
     sharedState.sqlConf,
-    sessionsCacheInvalidator
+    sessionsCacheInvalidator,
+    catalogConfig
   )
 
   def getHzMembers = hInstance.getCluster.getMembers
@@ -89,40 +143,52 @@ class HazelcastSessionProvider(sc: SparkContext,
 
   def getClusterState = hInstance.getCluster
 
+  /**
+    * Opening a session doesn't create any distributed resource: Until the session registers its first temporary table or
+    * changes any of its settings, it shares the server's read-only configuration and has empty temporary catalogs.
+    */
   override def newSession(sessionID: SessionID, userId: String): Try[XDSession] =
     Try {
+      localSessionUsers.put(sessionID, userId)
+      // The session is registered while its local resources are built, but it isn't reported as open until the
+      // registration completes: otherwise a peer could fail to find it when the client sends its next request there
+      val registration = openSessions.putAsync(sessionID, userId)
+
       val tempCatalogs = sessionIDToTempCatalogs.newResource(sessionID)
-      // Add the user to the shared map
-      sharedState.sqlConf.setConfString(XDSQLConf.UserIdPropertyKey, userId)
-      val xdsqlConf = sessionIDToSQLProps.newResource(sessionID, Some(sharedState.sqlConf))
+      val xdsqlConf = sessionIDToSQLProps.newResource(sessionID)
 
       val session = buildSession(sessionID, xdsqlConf, tempCatalogs, Some(userCoreConfig))
-      sessionsCache += sessionID -> session
+      sessionsCache.put(sessionID, session)
 
+      registration.get()
       session
     }
 
   override def closeSession(sessionID: SessionID): Try[Unit] =
     for {
-      _ <- checkNotNull(sessionIDToSQLProps.deleteSessionResource(sessionID))
+      _ <- checkSessionIsOpen(sessionID)
+      _ <- sessionIDToSQLProps.deleteSessionResource(sessionID)
       _ <- sessionIDToTempCatalogs.deleteSessionResource(sessionID)
     } yield {
-      sessionsCache -= sessionID
+      openSessions delete sessionID
+      localSessionUsers remove sessionID
+      sessionsCache remove sessionID
     }
 
 
   // TODO take advantage of common utils pattern?
-  override def session(sessionID: SessionID): Try[XDSession] = {
-    sessionsCache.get(sessionID).map(Success(_)).getOrElse {
-      for {
-        tempCatalogMap <- sessionIDToTempCatalogs.getResource(sessionID)
-        configMap <- sessionIDToSQLProps.getResource(sessionID)
-        sess <- Try(buildSession(sessionID, configMap, tempCatalogMap))
-      } yield {
-        sess
+  override def session(sessionID: SessionID): Try[XDSession] =
+    Try {
+      sessionsCache.getOrElseUpdate(sessionID) {
+        val sessionResources = for {
+          _ <- checkSessionIsOpen(sessionID)
+          tempCatalogMap <- sessionIDToTempCatalogs.getResource(sessionID)
+          configMap <- sessionIDToSQLProps.getResource(sessionID)
+        } yield (configMap, tempCatalogMap)
+        val (configMap, tempCatalogMap) = sessionResources.get
+        buildSession(sessionID, configMap, tempCatalogMap)
       }
     }
-  }
 
 
   override def close(): Unit = {
@@ -131,6 +197,27 @@ class HazelcastSessionProvider(sc: SparkContext,
   }
 
 
+  private def sessionUser(sessionID: SessionID): Option[String] =
+    Option(localSessionUsers.get(sessionID)) orElse Option(openSessions.get(sessionID))
+
+  private def checkSessionIsOpen(sessionID: SessionID): Try[String] =
+    sessionUser(sessionID).map(Success(_)) getOrElse {
+      Failure(new RuntimeException(s"Session with sessionID=$sessionID not found"))
+    }
+
+  // Settings of the sessions which haven't changed any of them: the server ones, the spark.sql.* ones of the
+  // SparkContext (which every SQLContext sets when it is built) plus the session user
+  private def sessionDefaultSettings(sessionID: SessionID): java.util.Map[String, String] = {
+    val serverSettings = sharedState.sqlConf.settings
+    val settings = serverSettings.synchronized(new java.util.HashMap[String, String](serverSettings))
+    sc.getConf.getAll foreach {
+      case (key, value) if key startsWith "spark.sql" => settings.put(key, value)
+      case _ =>
+    }
+    sessionUser(sessionID) foreach (settings.put(XDSQLConf.UserIdPropertyKey, _))
+    java.util.Collections.unmodifiableMap(settings)
+  }
+
   private def buildSession(
                             sessionID: SessionID,
                             sqlConf: XDSQLConf,
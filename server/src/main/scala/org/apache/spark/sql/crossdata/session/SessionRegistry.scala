@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2015 Stratio (http://stratio.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.spark.sql.crossdata.session
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+import org.apache.spark.sql.crossdata.session.XDSessionProvider.SessionID
+
+import scala.collection.JavaConversions._
+import scala.concurrent.duration._
+
+object SessionRegistry {
+
+  val DefaultMaxSize = 10000
+  val DefaultMaxIdle: Duration = 1 hour
+
+}
+
+/**
+  * Lock-free local registry of session resources.
+  *
+  * A single entry is registered per session (see [[getOrElseUpdate]]) and entries are evicted when they haven't been
+  * accessed for `maxIdle` or, once the registry exceeds `maxSize` entries, following a LRU policy. Evicting an entry
+  * only releases its local copy: it will be rebuilt from the distributed session resources the next time it is needed.
+  */
+class SessionRegistry[V](maxSize: Int = SessionRegistry.DefaultMaxSize,
+                         maxIdle: Duration = SessionRegistry.DefaultMaxIdle,
+                         clock: () => Long = () => System.currentTimeMillis()) {
+
+  require(maxSize > 0, "The session registry must be able to hold at least one session")
+
+  private class Entry(val value: V) {
+    @volatile var lastAccess: Long = clock()
+  }
+
+  private val entries = new ConcurrentHashMap[SessionID, Entry]()
+
+  private val sweepInterval: Long = if (maxIdle.isFinite) (maxIdle.toMillis / 2) max 1L else Long.MaxValue
+  private val lastSweep = new AtomicLong(clock())
+
+  def get(sessionID: SessionID): Option[V] =
+    Option(entries.get(sessionID)) filter { entry =>
+      val alive = !isIdle(entry)
+      if (alive) entry.lastAccess = clock() else entries.remove(sessionID, entry)
+      alive
+    } map (_.value)
+
+  /**
+    * Returns the value registered for `sessionID`, building and registering it if it was absent. The value is built
+    * without holding any lock (builders may reach remote resources), so concurrent callers for the same absent session
+    * may build it more than once, but all of them get the first value that was registered. If the builder throws,
+    * nothing is registered and the exception is propagated.
+    */
+  def getOrElseUpdate(sessionID: SessionID)(builder: => V): V =
+    get(sessionID) getOrElse {
+      val newEntry = new Entry(builder)
+      val entry = Option(entries.putIfAbsent(sessionID, newEntry)) getOrElse {
+        afterInsertion()
+        newEntry
+      }
+      entry.value
+    }
+
+  def put(sessionID: SessionID, value: V): Unit = {
+    entries.put(sessionID, new Entry(value))
+    afterInsertion()
+  }
+
+  def remove(sessionID: SessionID): Option[V] = Option(entries.remove(sessionID)) map (_.value)
+
+  def clear(): Unit = entries.clear()
+
+  def size: Int = entries.size()
+
+  def contains(sessionID: SessionID): Boolean = get(sessionID).isDefined
+
+  /**
+    * Drops every entry which hasn't been accessed for `maxIdle`.
+    */
+  def evictIdle(): Unit = {
+    lastSweep.set(clock())
+    entries.entrySet() foreach { e =>
+      if (isIdle(e.getValue)) entries.remove(e.getKey, e.getValue)
+    }
+  }
+
+  private def isIdle(entry: Entry): Boolean =
+    maxIdle.isFinite && clock() - entry.lastAccess > maxIdle.toMillis
+
+  private def afterInsertion(): Unit = {
+    val last = lastSweep.get()
+    if (clock() - last >= sweepInterval && lastSweep.compareAndSet(last, clock())) evictIdle()
+    if (entries.size() > maxSize) evictLeastRecentlyUsed()
+  }
+
+  // Evictions make room for a 10% of the registry capacity so that the LRU scan is amortized among insertions
+  private def evictLeastRecentlyUsed(): Unit = {
+    val exceeding = entries.size() - (maxSize - maxSize / 10)
+    if (exceeding > 0) {
+      val byAccess = entries.entrySet().toSeq.map(e => (e.getKey, e.getValue, e.getValue.lastAccess))
+      byAccess.sortBy(_._3).take(exceeding) foreach { case (sessionID, entry, _) =>
+        entries.remove(sessionID, entry)
+      }
+    }
+  }
+
+}
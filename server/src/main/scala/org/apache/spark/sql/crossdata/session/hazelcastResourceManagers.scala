@@ -16,9 +16,12 @@
 package org.apache.spark.sql.crossdata.session
 
 import java.util.UUID
+import java.util.concurrent.ConcurrentHashMap
+import java.util.function.{Function => JFunction}
 
 import com.hazelcast.core.{HazelcastInstance, IMap, Message, MessageListener}
 import com.stratio.crossdata.util.CacheInvalidator
+import com.typesafe.config.{Config, ConfigFactory}
 import org.apache.spark.sql.SQLConf
 import org.apache.spark.sql.catalyst.CatalystConf
 import XDSessionProvider.SessionID
@@ -26,11 +29,12 @@ import org.apache.spark.sql.crossdata.catalog.TableIdentifierNormalized
 import org.apache.spark.sql.crossdata.catalog.XDCatalog.{CrossdataTable, ViewIdentifierNormalized}
 import org.apache.spark.sql.crossdata.catalog.interfaces.XDTemporaryCatalog
 import HazelcastCacheInvalidator.{CacheInvalidationEvent, ResourceInvalidation, ResourceInvalidationForAllSessions}
-import org.apache.spark.sql.crossdata.catalog.temporary.{HashmapCatalog, HazelcastCatalog, XDTemporaryCatalogWithInvalidation}
+import org.apache.spark.sql.crossdata.catalog.temporary.HazelcastCatalog.{TableMap, ViewMap}
+import org.apache.spark.sql.crossdata.catalog.temporary.{HazelcastCatalog, XDTemporaryCatalogWithInvalidation}
+import org.apache.spark.sql.crossdata.catalog.utils.CatalogUtils
 import org.apache.spark.sql.crossdata.{HazelcastSQLConf, XDSQLConf}
 
-import scala.collection.mutable
-import scala.util.{Success, Try}
+import scala.util.Try
 
 
 
@@ -38,6 +42,8 @@ import scala.util.{Success, Try}
 trait HazelcastSessionResourceManager[V] extends MessageListener[CacheInvalidationEvent]
   with SessionResourceManager[V] {
 
+  import HazelcastSessionProvider.sessionMapName
+
   protected val topicName: String
   protected val hInstance: HazelcastInstance
 
@@ -57,9 +63,17 @@ trait HazelcastSessionResourceManager[V] extends MessageListener[CacheInvalidati
 
   protected def createRandomMap[K, V]: (IMap[K, V], UUID) = {
     val randomUUID = UUID.randomUUID()
-    (hInstance.getMap[K, V](randomUUID.toString), randomUUID)
+    (hInstance.getMap[K, V](sessionMapName(randomUUID)), randomUUID)
   }
 
+  /**
+    * Atomically gets the local resource cached for a session, building it just once if it was absent.
+    */
+  protected def getOrBuild[T](cache: ConcurrentHashMap[SessionID, T], key: SessionID)(builder: => T): T =
+    cache.computeIfAbsent(key, new JFunction[SessionID, T] {
+      override def apply(sessionID: SessionID): T = builder
+    })
+
   protected def resourceInvalidator(sessionID: SessionID): CacheInvalidator =
     new HazelcastCacheInvalidator(sessionID, invalidationTopic)
 
@@ -75,7 +89,8 @@ trait HazelcastSessionResourceManager[V] extends MessageListener[CacheInvalidati
 class HazelcastSessionCatalogManager(
                                       override protected val hInstance: HazelcastInstance,
                                       catalystConf: CatalystConf,
-                                      sessionInvalidator: Option[SessionID] => Option[CacheInvalidator] = (_ => None)
+                                      sessionInvalidator: Option[SessionID] => Option[CacheInvalidator] = (_ => None),
+                                      catalogConfig: Config = ConfigFactory.empty()
                                     ) extends HazelcastSessionResourceManager[Seq[XDTemporaryCatalog]] {
 
   import HazelcastSessionProvider._
@@ -87,73 +102,85 @@ class HazelcastSessionCatalogManager(
 
   invalidationTopic
 
-  private val sessionIDToMapCatalog: mutable.Map[SessionID, XDTemporaryCatalogWithInvalidation] = mutable.Map.empty
+  private val sessionIDToMapCatalog = new ConcurrentHashMap[SessionID, XDTemporaryCatalogWithInvalidation]()
   private val sessionIDToTableViewID: IMap[SessionID, (TableMapUUID, ViewMapUUID)] = hInstance.getMap(HazelcastCatalogMapId)
 
-  // Returns the seq of XDTempCatalog for the new session
+  // Returns the seq of XDTempCatalog for the new session. Its Hazelcast maps are not created until they are written
 
 
   //NOTE: THIS METHOD SHOULD NEVER BE CALLED TWICE WITH THE SAME ID. IT SHOULDN'T HAPPEN BUT SOME PROTECTION IS STILL TODO
   override def newResource(key: SessionID, from: Option[Seq[XDTemporaryCatalog]] = None): Seq[XDTemporaryCatalog] = {
 
     // AddMapCatalog for local/cache interaction
-    val localCatalog = addNewMapCatalog(key)
+    val localCatalog = newMapCatalog(key)
+    sessionIDToMapCatalog.put(key, localCatalog)
 
-    publishInvalidation(key)
-
-    val (tableMap, tableMapUUID) = createRandomMap[TableIdentifierNormalized, CrossdataTable]
-    val (viewMap, viewMapUUID) = createRandomMap[ViewIdentifierNormalized, String]
-    val hazelcastCatalog = new HazelcastCatalog(tableMap, viewMap)(catalystConf)
-    sessionIDToTableViewID.set(key, (tableMapUUID, viewMapUUID))
-
-    Seq(localCatalog, hazelcastCatalog)
+    // No invalidation is published: no peer can have cached resources of a brand-new session
+    Seq(localCatalog, hazelcastCatalog(key, None))
   }
 
-  override def getResource(key: SessionID): Try[Seq[XDTemporaryCatalog]] =
-    for {
-      (tableUUID, viewUUID) <- checkNotNull(sessionIDToTableViewID.get(key))
-      hazelcastTables <- checkNotNull(hInstance.getMap[TableIdentifierNormalized, CrossdataTable](tableUUID.toString))
-      hazelcastViews <- checkNotNull(hInstance.getMap[ViewIdentifierNormalized, String](viewUUID.toString))
-    } yield {
-      val hazelcastCatalog = new HazelcastCatalog(hazelcastTables, hazelcastViews)(catalystConf)
-      val mapCatalog = sessionIDToMapCatalog.getOrElse(key, addNewMapCatalog(key)) // local catalog could not exist
-      Seq(mapCatalog, hazelcastCatalog)
-    }
+  override def getResource(key: SessionID): Try[Seq[XDTemporaryCatalog]] = Try {
+    val mapCatalog = getOrBuild(sessionIDToMapCatalog, key)(newMapCatalog(key)) // local catalog could not exist
+    Seq(mapCatalog, hazelcastCatalog(key, Option(sessionIDToTableViewID.get(key)) map catalogMaps))
+  }
 
-  override def deleteSessionResource(key: SessionID): Try[Unit] =
-    for {
-      (tableUUID, viewUUID) <- checkNotNull(sessionIDToTableViewID.get(key))
-      hazelcastTables <- checkNotNull(hInstance.getMap(tableUUID.toString))
-      hazelcastViews <- checkNotNull(hInstance.getMap(viewUUID.toString))
-    } yield {
-      hazelcastViews clear()
-      hazelcastTables clear()
-      sessionIDToTableViewID remove key
-      sessionIDToMapCatalog remove key
-      publishInvalidation(key)
+  override def deleteSessionResource(key: SessionID): Try[Unit] = Try {
+    Option(sessionIDToTableViewID.remove(key)) map catalogMaps foreach { case (hazelcastTables, hazelcastViews) =>
+      hazelcastViews destroy()
+      hazelcastTables destroy()
     }
+    Option(sessionIDToMapCatalog remove key) foreach releaseMapCatalog
+    publishInvalidation(key)
+  }
 
   override def clearAllSessionsResources(): Unit = {
     import scala.collection.JavaConversions._
-    sessionIDToTableViewID.values().foreach { case (tableUUID, viewUUID) =>
-      hInstance.getMap(tableUUID.toString).clear()
-      hInstance.getMap(viewUUID.toString).clear()
+    sessionIDToTableViewID.values() map catalogMaps foreach { case (hazelcastTables, hazelcastViews) =>
+      hazelcastViews destroy()
+      hazelcastTables destroy()
     }
+    sessionIDToMapCatalog.values() foreach releaseMapCatalog
     sessionIDToMapCatalog.clear()
     sessionIDToTableViewID.clear()
     publishInvalidation()
   }
 
-  private def addNewMapCatalog(sessionID: SessionID): XDTemporaryCatalogWithInvalidation = {
-    val localCatalog = new XDTemporaryCatalogWithInvalidation(
-      new HashmapCatalog(catalystConf),
-      resourceInvalidator(sessionID)
+  private def hazelcastCatalog(key: SessionID, maps: Option[(TableMap, ViewMap)]): HazelcastCatalog =
+    new HazelcastCatalog(maps, () => createCatalogMaps(key))(catalystConf)
+
+  private def catalogMaps(mapIds: (TableMapUUID, ViewMapUUID)): (TableMap, ViewMap) = {
+    val (tableUUID, viewUUID) = mapIds
+    (
+      hInstance.getMap[TableIdentifierNormalized, CrossdataTable](sessionMapName(tableUUID)),
+      hInstance.getMap[ViewIdentifierNormalized, String](sessionMapName(viewUUID))
     )
+  }
 
-    sessionIDToMapCatalog.put(sessionID, localCatalog)
-    localCatalog
+  /**
+    * Creates the Hazelcast maps of a session catalog. Should other peer have created them concurrently, theirs are used.
+    */
+  private def createCatalogMaps(key: SessionID): (TableMap, ViewMap) = {
+    val (tableMap, tableMapUUID) = createRandomMap[TableIdentifierNormalized, CrossdataTable]
+    val (viewMap, viewMapUUID) = createRandomMap[ViewIdentifierNormalized, String]
+    val maps = Option(sessionIDToTableViewID.putIfAbsent(key, (tableMapUUID, viewMapUUID))) map { winnerIds =>
+      tableMap destroy()
+      viewMap destroy()
+      catalogMaps(winnerIds)
+    } getOrElse ((tableMap, viewMap))
+    publishInvalidation(key)
+    maps
   }
 
+  // Releases the relations spilled by a closed session. Other peers have nothing to invalidate for its local catalog
+  private def releaseMapCatalog(mapCatalog: XDTemporaryCatalogWithInvalidation): Unit =
+    mapCatalog.underlying.dropAllTables()
+
+  private def newMapCatalog(sessionID: SessionID): XDTemporaryCatalogWithInvalidation =
+    new XDTemporaryCatalogWithInvalidation(
+      CatalogUtils.temporaryCatalog(catalystConf, catalogConfig),
+      resourceInvalidator(sessionID)
+    )
+
   override def invalidateLocalCaches(key: SessionID): Unit = {
     sessionIDToMapCatalog remove key
     sessionInvalidator(Some(key)).foreach(_.invalidateCache)
@@ -168,72 +195,83 @@ class HazelcastSessionCatalogManager(
 
 class HazelcastSessionConfigManager(
                                      override protected val hInstance: HazelcastInstance,
-                                     sessionInvalidator: Option[SessionID] => Option[CacheInvalidator] = (_ => None)
+                                     sessionInvalidator: Option[SessionID] => Option[CacheInvalidator] = (_ => None),
+                                     defaultSettings: SessionID => java.util.Map[String, String] =
+                                       (_ => java.util.Collections.emptyMap[String, String]())
                                    ) extends HazelcastSessionResourceManager[SQLConf] {
 
   import HazelcastSessionProvider._
 
   private val sessionId2ConfigMapId: IMap[SessionID, UUID] = hInstance.getMap(HazelcastConfigMapId)
-  private val sessionId2Config: mutable.Map[SessionID, HazelcastSQLConf] = mutable.Map.empty
+  private val sessionId2Config = new ConcurrentHashMap[SessionID, HazelcastSQLConf]()
 
   override protected val topicName: String = "session-rec-config"
 
   invalidationTopic
 
   //NOTE: THIS METHOD SHOULD NEVER BE CALLED TWICE WITH THE SAME ID
+  // The Hazelcast map of the new configuration is not created until the first setting change
   override def newResource(key: SessionID, from: Option[SQLConf] = None): XDSQLConf = {
-    val (hzConfigMap, id) = createRandomMap[String, String]
-    val conf = new HazelcastSQLConf(hzConfigMap, resourceInvalidator(key))
-
-    sessionId2ConfigMapId.set(key, id)
-    sessionId2Config += key -> conf
-
-    from.foreach(baseConf => hzConfigMap.putAll(baseConf.settings))
-
-    publishInvalidation(key)
+    val conf = sessionConf(key, None, from)
+    sessionId2Config.put(key, conf)
 
+    // No invalidation is published: no peer can have cached resources of a brand-new session
     conf
   }
 
-  override def getResource(key: SessionID): Try[XDSQLConf] = sessionId2Config.get(key).map(Success(_)) getOrElse {
-    for (
-      configId <- checkNotNull(sessionId2ConfigMapId.get(key));
-      configMap <- checkNotNull(hInstance.getMap[String, String](configId.toString))
-    ) yield {
-      val conf = new HazelcastSQLConf(configMap, resourceInvalidator(key))
-      sessionId2Config += key -> conf
-      conf
+  override def getResource(key: SessionID): Try[XDSQLConf] = Try {
+    getOrBuild(sessionId2Config, key) {
+      sessionConf(key, Option(sessionId2ConfigMapId.get(key)) map configMap)
     }
   }
 
-  override def deleteSessionResource(key: SessionID): Try[Unit] = {
+  override def deleteSessionResource(key: SessionID): Try[Unit] = Try {
     sessionId2Config.remove(key)
-    for (
-      configId <- checkNotNull(sessionId2ConfigMapId.get(key));
-      configMap <- checkNotNull(hInstance.getMap[String, String](configId.toString))
-    ) yield {
-      configMap clear()
-      sessionId2ConfigMapId remove key
-      publishInvalidation(key)
-    }
+    Option(sessionId2ConfigMapId.remove(key)) map configMap foreach (_ destroy())
+    publishInvalidation(key)
   }
 
 
   override def clearAllSessionsResources(): Unit = {
     import scala.collection.JavaConversions._
     sessionId2Config clear()
-    sessionId2ConfigMapId.values foreach (configId => hInstance.getMap(configId.toString) clear)
+    sessionId2ConfigMapId.values map configMap foreach (_ destroy())
     sessionId2ConfigMapId clear()
     publishInvalidation()
   }
 
+  private def sessionConf(key: SessionID, map: Option[IMap[String, String]], from: Option[SQLConf] = None) =
+    new HazelcastSQLConf(
+      map,
+      () => from.map(_.settings) getOrElse defaultSettings(key),
+      createConfigMap(key),
+      resourceInvalidator(key)
+    )
+
+  private def configMap(configId: UUID): IMap[String, String] = hInstance.getMap[String, String](sessionMapName(configId))
+
+  /**
+    * Creates the Hazelcast map of a session configuration. Should other peer have created it concurrently, theirs is used.
+    */
+  private def createConfigMap(key: SessionID)(initialSettings: java.util.Map[String, String]): IMap[String, String] = {
+    val (hzConfigMap, id) = createRandomMap[String, String]
+    hzConfigMap.putAll(initialSettings)
+    Option(sessionId2ConfigMapId.putIfAbsent(key, id)) map { winnerId =>
+      hzConfigMap destroy()
+      configMap(winnerId)
+    } getOrElse hzConfigMap
+  }
+
   override def invalidateAllLocalCaches: Unit = {
+    import scala.collection.JavaConversions._
     sessionId2Config.values.foreach(_.invalidateLocalCache)
+    sessionId2Config.clear()
     sessionInvalidator(None).foreach(_.invalidateCache)
   }
 
+  // Configurations are dropped so that they are rebuilt with the Hazelcast map other peer could have created
   override def invalidateLocalCaches(key: SessionID): Unit = {
-    sessionId2Config.get(key).foreach(_.invalidateLocalCache)
+    Option(sessionId2Config.remove(key)).foreach(_.invalidateLocalCache)
     sessionInvalidator(Some(key)).foreach(_.invalidateCache)
   }
 
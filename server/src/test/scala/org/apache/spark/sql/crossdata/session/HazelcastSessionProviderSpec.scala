@@ -153,6 +153,67 @@ class HazelcastSessionProviderSpec extends SharedXDContextTest {
     hazelcastSessionProvider.close()
   }
 
+  it should "not create distributed maps until a session changes a setting or registers a temporary table" in {
+
+    class InspectedHazelcastSessionProvider extends HazelcastSessionProvider(xdContext.sc, ConfigFactory.empty()) {
+      def sessionMaps: Int = {
+        import scala.collection.JavaConversions._
+        hInstance.getDistributedObjects.count(_.getName startsWith HazelcastSessionProvider.SessionMapPrefix)
+      }
+    }
+
+    val hazelcastSessionProvider = new InspectedHazelcastSessionProvider
+    val initialSessionMaps = hazelcastSessionProvider.sessionMaps
+
+    val session = createNewSession(hazelcastSessionProvider)
+    session.conf.getConfString("spark.sql.parquet.filterPushdown", "true")
+    hazelcastSessionProvider.sessionMaps shouldBe initialSessionMaps
+
+    session.conf.setConfString("spark.sql.parquet.filterPushdown", "false")
+    hazelcastSessionProvider.sessionMaps shouldBe initialSessionMaps + 1
+
+    val tableIdent = TableIdentifier("tab")
+    import org.apache.spark.sql.crossdata.catalog.interfaces.XDCatalogCommon._
+    session.catalog.registerTable(tableIdent, LocalRelation(), Some(CrossdataTable(tableIdent.normalize(xdContext.catalog.conf), None, "fakedatasource")))
+    hazelcastSessionProvider.sessionMaps shouldBe initialSessionMaps + 3
+
+    hazelcastSessionProvider.close()
+  }
+
+  it should "open and close hundreds of sessions concurrently" in {
+
+    import scala.concurrent.ExecutionContext.Implicits.global
+    import scala.concurrent.duration._
+    import scala.concurrent.{Await, Future}
+
+    val hazelcastSessionProvider = new HazelcastSessionProvider(xdContext.sc, ConfigFactory.empty())
+
+    // Every session is a SQLContext which attaches its own tab to the Spark UI, so their number is kept moderate.
+    // SessionRegistrySpec stresses the registry itself with thousands of concurrent sessions
+    val sessionsLifecycle = (1 to 500) map { _ =>
+      Future {
+        val sessionId = UUID.randomUUID()
+        val newSession = hazelcastSessionProvider.newSession(sessionId, UserId).get
+        hazelcastSessionProvider.session(sessionId).get should be theSameInstanceAs newSession
+        hazelcastSessionProvider.closeSession(sessionId).isSuccess
+      }
+    }
+
+    Await.result(Future.sequence(sessionsLifecycle), 2 minutes) should contain only true
+
+    hazelcastSessionProvider.close()
+  }
+
+  it should "configure near caches for the maps backing the sessions" in {
+    import HazelcastSessionProvider._
+
+    val hzConfig = withNearCaches(new HZConfig(), ConfigFactory.empty())
+
+    Seq(HazelcastCatalogMapId, HazelcastConfigMapId, sessionMapName(UUID.randomUUID())) foreach { mapName =>
+      hzConfig.getMapConfig(mapName).getNearCacheConfig should not be null
+    }
+  }
+
   testInvalidation("provide a new session instance after its invalidation by a SQLConf change")(
     // This changes a setting  value using a second hazelcast peer
     _.setConf("spark.sql.parquet.filterPushdown", "false")
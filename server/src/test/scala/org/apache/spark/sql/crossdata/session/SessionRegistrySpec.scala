@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2015 Stratio (http://stratio.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.spark.sql.crossdata.session
+
+import java.util.UUID
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.{CountDownLatch, Executors}
+
+import com.stratio.crossdata.test.BaseXDTest
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+
+import scala.concurrent.duration._
+import scala.concurrent.{Await, ExecutionContext, Future}
+import scala.util.Try
+
+@RunWith(classOf[JUnitRunner])
+class SessionRegistrySpec extends BaseXDTest {
+
+  "SessionRegistry" should "return the same session to every concurrent caller" in {
+    val registry = new SessionRegistry[AnyRef]()
+    val sessionID = UUID.randomUUID()
+
+    withThreadPool(16) { implicit ec =>
+      val startSignal = new CountDownLatch(1)
+      val lookups = (1 to 64) map { _ =>
+        Future {
+          startSignal.await()
+          registry.getOrElseUpdate(sessionID)(new Object)
+        }
+      }
+      startSignal.countDown()
+      val sessions = Await.result(Future.sequence(lookups), 30 seconds)
+      sessions foreach (_ should be theSameInstanceAs registry.get(sessionID).get)
+    }
+  }
+
+  it should "not block the registry while a session is being built" in {
+    val registry = new SessionRegistry[String]()
+    val sessionID = UUID.randomUUID()
+    val buildStarted = new CountDownLatch(1)
+    val releaseBuild = new CountDownLatch(1)
+
+    withThreadPool(2) { implicit ec =>
+      val lookup = Future {
+        registry.getOrElseUpdate(sessionID) {
+          buildStarted.countDown()
+          releaseBuild.await()
+          "built"
+        }
+      }
+      buildStarted.await()
+      Await.result(Future(registry.put(sessionID, "registered")), 30 seconds)
+      releaseBuild.countDown()
+      Await.result(lookup, 30 seconds) shouldBe "registered"
+    }
+  }
+
+  it should "not register a session whose construction has failed" in {
+    val registry = new SessionRegistry[String]()
+    val sessionID = UUID.randomUUID()
+
+    Try(registry.getOrElseUpdate(sessionID)(throw new RuntimeException("Map not found"))).isFailure shouldBe true
+    registry.contains(sessionID) shouldBe false
+  }
+
+  it should "evict sessions which have been idle for too long" in {
+    val now = new AtomicLong(0L)
+    val registry = new SessionRegistry[String](maxIdle = 10 seconds, clock = () => now.get)
+    val (idleSession, activeSession) = (UUID.randomUUID(), UUID.randomUUID())
+
+    registry.put(idleSession, "idle")
+    registry.put(activeSession, "active")
+
+    now.set(6000L)
+    registry.get(activeSession) shouldBe Some("active")
+
+    now.set(12000L)
+    registry.evictIdle()
+
+    registry.get(idleSession) shouldBe None
+    registry.get(activeSession) shouldBe Some("active")
+  }
+
+  it should "evict the least recently used sessions when it exceeds its bound" in {
+    val now = new AtomicLong(0L)
+    val registry = new SessionRegistry[Int](maxSize = 100, clock = () => now.get)
+    val sessions = (1 to 101) map { i =>
+      now.incrementAndGet()
+      val sessionID = UUID.randomUUID()
+      registry.put(sessionID, i)
+      sessionID
+    }
+
+    registry.size should be <= 100
+    registry.contains(sessions.head) shouldBe false
+    registry.contains(sessions.last) shouldBe true
+  }
+
+  it should "remain consistent when thousands of sessions are opened and closed concurrently" in {
+    val registry = new SessionRegistry[UUID](maxSize = 5000)
+    val nSessions = 20000
+
+    withThreadPool(32) { implicit ec =>
+      val sessionsLifecycle = (1 to nSessions) map { i =>
+        Future {
+          val sessionID = UUID.randomUUID()
+          registry.getOrElseUpdate(sessionID)(sessionID) shouldBe sessionID
+          registry.get(sessionID) foreach (_ shouldBe sessionID)
+          if (i % 2 == 0) registry.remove(sessionID)
+          sessionID
+        }
+      }
+      Await.result(Future.sequence(sessionsLifecycle), 1 minute) should have length nSessions
+    }
+
+    registry.size should be <= 5000
+  }
+
+  private def withThreadPool[T](nThreads: Int)(f: ExecutionContext => T): T = {
+    val executor = Executors.newFixedThreadPool(nThreads)
+    try f(ExecutionContext.fromExecutor(executor)) finally executor.shutdown()
+  }
+
+}
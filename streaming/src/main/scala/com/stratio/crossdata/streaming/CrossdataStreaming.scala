@@ -17,6 +17,7 @@ package com.stratio.crossdata.streaming
 
 import com.stratio.crossdata.streaming.constants.ApplicationConstants._
 import com.stratio.crossdata.streaming.helpers.{CrossdataStatusHelper, CrossdataStreamingHelper}
+import com.stratio.crossdata.streaming.kafka.KafkaInput
 import org.apache.spark.SparkConf
 import org.apache.spark.sql.crossdata.config.StreamingConstants._
 import org.apache.spark.sql.crossdata.daos.DAOConstants._
@@ -69,8 +70,10 @@ class CrossdataStreaming(ephemeralTableName: String,
     }
   }
 
-  private[streaming] def configToSparkConf(ephemeralTable: EphemeralTableModel): SparkConf =
-    new SparkConf().setAll(setPrefixSpark(ephemeralTable.options.sparkOptions))
+  private[streaming] def configToSparkConf(ephemeralTable: EphemeralTableModel): SparkConf = {
+    val kafkaSparkOptions = new KafkaInput(ephemeralTable.options.kafkaOptions).getSparkProperties
+    new SparkConf().setAll(kafkaSparkOptions ++ setPrefixSpark(ephemeralTable.options.sparkOptions))
+  }
 
   private[streaming] def setPrefixSpark(sparkConfig: Map[String, String]): Map[String, String] =
     sparkConfig.map { case entry@(key, value) =>
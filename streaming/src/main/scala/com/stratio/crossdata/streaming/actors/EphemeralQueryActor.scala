@@ -24,7 +24,12 @@ import org.apache.spark.sql.crossdata.models.EphemeralQueryModel
 
 import scala.util.Try
 
-class EphemeralQueryActor(zookeeperConfiguration: Map[String, String]) extends Actor
+/**
+ * Keeps the ephemeral queries stored in ZooKeeper, updated by the changes notified by the listener. Every update is
+ * pushed to `onQueriesChange`, so that the queries can be read without asking the actor.
+ */
+class EphemeralQueryActor(zookeeperConfiguration: Map[String, String],
+                          onQueriesChange: Seq[EphemeralQueryModel] => Unit = _ => ()) extends Actor
 with EphemeralQueriesMapDAO {
 
   lazy val memoryMap = Map(ZookeeperPrefixName -> zookeeperConfiguration)
@@ -42,6 +47,8 @@ with EphemeralQueriesMapDAO {
     case AddListener if !listenerAdded =>
       doAddListener()
       become(receive(listenerAdded = true))
+    case SetQueries(queries) =>
+      doSetQueries(queries)
   }
 
   private def doGetQueries(): Unit = {
@@ -49,9 +56,17 @@ with EphemeralQueriesMapDAO {
   }
 
   private def doAddListener(): Unit = {
-    repository.addEntityListener(dao.entity, _ => streamingQueries = dao.getAll())
+    val queryActor = self
+    repository.addEntityListener(dao.entity, _ => queryActor ! SetQueries(dao.getAll()))
+    // The queries could have changed before the listener was added
+    doSetQueries(dao.getAll())
     sender ! ListenerResponse(true)
   }
+
+  private def doSetQueries(queries: List[EphemeralQueryModel]): Unit = {
+    streamingQueries = queries
+    onQueriesChange(queries)
+  }
 }
 
 object EphemeralQueryActor {
@@ -60,6 +75,8 @@ object EphemeralQueryActor {
 
   case object AddListener
 
+  case class SetQueries(streamingQueries: List[EphemeralQueryModel])
+
   case class ListenerResponse(added : Boolean)
 
   case class EphemeralQueriesResponse(streamingQueries: Seq[EphemeralQueryModel])
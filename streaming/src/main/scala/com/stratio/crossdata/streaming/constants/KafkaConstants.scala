@@ -24,7 +24,9 @@ object KafkaConstants {
   val DefaultConsumerPort = "2181"
   val DefaultProducerPort = "9092"
   val DefaultHost = "127.0.0.1"
-  val DefaultSerializer = "kafka.serializer.StringEncoder"
+  val DefaultSerializer = "org.apache.kafka.common.serialization.StringSerializer"
+  val BinarySerializer = "org.apache.kafka.common.serialization.ByteArraySerializer"
+  val SchemaTopicSuffix = "-schema"
 
   /**
    * Kafka Spark consumer keys
@@ -32,25 +34,47 @@ object KafkaConstants {
   val ZookeeperConnectionKey = "zookeeper.connect"
   val GroupIdKey = "group.id"
 
+  /**
+   * Spark direct stream consumer keys
+   */
+  val MaxRatePerPartitionKey = "maxRatePerPartition"
+  val BackpressureKey = "backpressure"
+
+  val consumerSparkProperties = Map(
+    MaxRatePerPartitionKey -> "spark.streaming.kafka.maxRatePerPartition",
+    BackpressureKey -> "spark.streaming.backpressure.enabled")
+
   /**
    * Kafka native producer keys
    */
-  val SerializerKey = "serializer.class"
+  val BootstrapServersKey = "bootstrap.servers"
+  val KeySerializerKey = "key.serializer"
+  val ValueSerializerKey = "value.serializer"
   val BrokerListKey = "metadata.broker.list"
   val PartitionKey = "partition"
 
   val RequiredAckKey = "requiredAcks"
   val CompressionCodecKey = "compressionCodec"
-  val ProducerTypeKey = "producerType"
-  val BatchSizeKey = "batchSize"
+  val BatchSizeBytesKey = "batchSizeBytes"
+  val LingerKey = "lingerMs"
+  val BufferMemoryKey = "bufferMemory"
   val MaxRetriesKey = "maxRetries"
   val ClientIdKey = "clientId"
 
   val producerProperties = Map(
-    RequiredAckKey -> "request.required.acks",
-    CompressionCodecKey -> "compression.codec",
-    ProducerTypeKey -> "producer.type",
-    BatchSizeKey -> "batch.num.messages",
-    MaxRetriesKey -> "message.send.max.retries",
+    RequiredAckKey -> "acks",
+    CompressionCodecKey -> "compression.type",
+    BatchSizeBytesKey -> "batch.size",
+    LingerKey -> "linger.ms",
+    BufferMemoryKey -> "buffer.memory",
+    MaxRetriesKey -> "retries",
     ClientIdKey -> "client.id")
+
+  /**
+   * Producer keys of the legacy synchronous producer that the asynchronous producer cannot honor
+   */
+  val BatchSizeKey = "batchSize"
+
+  val ignoredProducerProperties = Map(
+    BatchSizeKey -> s"it was a number of messages, use $BatchSizeBytesKey to set the size in bytes of the batches")
 }
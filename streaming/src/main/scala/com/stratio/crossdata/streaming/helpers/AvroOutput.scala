@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2015 Stratio (http://stratio.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.crossdata.streaming.helpers
+
+import java.io.ByteArrayOutputStream
+import java.nio.{ByteBuffer, ByteOrder}
+
+import com.stratio.crossdata.streaming.constants.KafkaConstants
+import com.stratio.crossdata.streaming.kafka.KafkaProducer
+import org.apache.avro.Schema.Type
+import org.apache.avro.generic.{GenericData, GenericDatumWriter, GenericRecord}
+import org.apache.avro.io.{BinaryEncoder, EncoderFactory}
+import org.apache.avro.{Schema, SchemaNormalization}
+import org.apache.spark.sql.Row
+import org.apache.spark.sql.crossdata.models.KafkaOptionsModel
+import org.apache.spark.sql.types._
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+/**
+ * Avro output of the ephemeral queries. Each message is a row in the Avro single object encoding: the marker C3 01, the
+ * 64-bit fingerprint of the schema (little endian) and the row in Avro binary format, without field names. The schema
+ * is sent once, in JSON, to the schema topic of the output topic (`topic-schema`) keyed by its fingerprint in hex.
+ *
+ * Dates and timestamps are written as milliseconds since the epoch and decimals as strings.
+ */
+private[streaming] object AvroOutput {
+
+  val Marker = Array[Byte](0xC3.toByte, 0x01)
+
+  // Schemas sent to the schema topics by this driver
+  private val publishedSchemas = mutable.Set[(String, Long)]()
+
+  def avroSchema(structType: StructType, recordName: String): Schema = recordSchema(structType, avroName(recordName))
+
+  def fingerprint(schema: Schema): Long = SchemaNormalization.parsingFingerprint64(schema)
+
+  /**
+   * Sends the schema of an output topic to its schema topic, unless it was already sent.
+   */
+  def publishSchema(topic: String, schema: Schema, kafkaOptions: KafkaOptionsModel): Unit = {
+    val schemaFingerprint = fingerprint(schema)
+    val published = publishedSchemas.synchronized(publishedSchemas contains ((topic, schemaFingerprint)))
+
+    if (!published) {
+      KafkaProducer.putAll(s"$topic${KafkaConstants.SchemaTopicSuffix}",
+        Iterator(schema.toString),
+        kafkaOptions,
+        Option(schemaFingerprint.toHexString))
+      publishedSchemas.synchronized(publishedSchemas += ((topic, schemaFingerprint)))
+    }
+  }
+
+  /**
+   * Encoder of the rows of a schema. It reuses its buffers, so it must be used by a single thread.
+   */
+  def encoder(structType: StructType, schema: Schema): Row => Array[Byte] = {
+    val toRecord = recordConverter(structType, schema)
+    val writer = new GenericDatumWriter[GenericRecord](schema)
+    val header = Marker ++ ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(fingerprint(schema)).array()
+    val out = new ByteArrayOutputStream()
+    var binaryEncoder: BinaryEncoder = null
+
+    row => {
+      out.reset()
+      out.write(header)
+      binaryEncoder = EncoderFactory.get().binaryEncoder(out, binaryEncoder)
+      writer.write(toRecord(row), binaryEncoder)
+      binaryEncoder.flush()
+      out.toByteArray
+    }
+  }
+
+  // Avro names can only contain letters, digits and underscores, and can't start with a digit
+  private[streaming] def avroName(name: String): String = {
+    val validName = name.replaceAll("[^A-Za-z0-9_]", "_")
+    if (validName.isEmpty || validName.head.isDigit) s"_$validName" else validName
+  }
+
+  private def recordSchema(structType: StructType, name: String): Schema = {
+    val fields = structType.fields map { field =>
+      val fieldName = avroName(field.name)
+      new Schema.Field(fieldName, fieldSchema(field.dataType, field.nullable, s"${name}_$fieldName"), null, null)
+    }
+    val record = Schema.createRecord(name, null, null, false)
+    record.setFields(fields.toList.asJava)
+    record
+  }
+
+  private def fieldSchema(dataType: DataType, nullable: Boolean, name: String): Schema = {
+    val schema = dataType match {
+      case BooleanType => Schema.create(Type.BOOLEAN)
+      case ByteType | ShortType | IntegerType => Schema.create(Type.INT)
+      case LongType | DateType | TimestampType => Schema.create(Type.LONG)
+      case FloatType => Schema.create(Type.FLOAT)
+      case DoubleType => Schema.create(Type.DOUBLE)
+      case StringType | _: DecimalType => Schema.create(Type.STRING)
+      case BinaryType => Schema.create(Type.BYTES)
+      case ArrayType(elementType, containsNull) => Schema.createArray(fieldSchema(elementType, containsNull, name))
+      case MapType(_, valueType, valueContainsNull) => Schema.createMap(fieldSchema(valueType, valueContainsNull, name))
+      case structType: StructType => recordSchema(structType, name)
+      case _ => throw new IllegalArgumentException(s"Unsupported type in avro: $dataType")
+    }
+
+    if (nullable) Schema.createUnion(List(Schema.create(Type.NULL), schema).asJava) else schema
+  }
+
+  private def recordConverter(structType: StructType, schema: Schema): Row => GenericRecord = {
+    val converters = structType.fields.zip(schema.getFields.asScala) map { case (field, avroField) =>
+      converter(field.dataType, nonNullSchema(avroField.schema))
+    }
+
+    row => {
+      val record = new GenericData.Record(schema)
+      var i = 0
+      while (i < converters.length) {
+        record.put(i, if (row.isNullAt(i)) null else converters(i)(row.get(i)))
+        i += 1
+      }
+      record
+    }
+  }
+
+  // Converter of the non-null values of a type to the values written by the GenericDatumWriter
+  private def converter(dataType: DataType, schema: Schema): Any => Any = dataType match {
+    case ByteType => value => value.asInstanceOf[Byte].toInt
+    case ShortType => value => value.asInstanceOf[Short].toInt
+    case DateType | TimestampType => value => value.asInstanceOf[java.util.Date].getTime
+    case _: DecimalType => value => value match {
+      case decimal: java.math.BigDecimal => decimal.toPlainString
+      case other => other.toString
+    }
+    case BinaryType => value => ByteBuffer.wrap(value.asInstanceOf[Array[Byte]])
+    case ArrayType(elementType, _) =>
+      val element = nullSafe(converter(elementType, nonNullSchema(schema.getElementType)))
+      value => value.asInstanceOf[Seq[Any]].map(element).asJava
+    case MapType(_, valueType, _) =>
+      val mapValue = nullSafe(converter(valueType, nonNullSchema(schema.getValueType)))
+      value => value.asInstanceOf[Map[Any, Any]].map { case (k, v) => (k.toString, mapValue(v)) }.asJava
+    case structType: StructType =>
+      val record = recordConverter(structType, schema)
+      value => record(value.asInstanceOf[Row])
+    case _ => identity
+  }
+
+  private def nullSafe(converter: Any => Any): Any => Any = value => if (value == null) null else converter(value)
+
+  private def nonNullSchema(schema: Schema): Schema =
+    if (schema.getType == Type.UNION) schema.getTypes.asScala.filterNot(_.getType == Type.NULL).head else schema
+
+}
@@ -37,6 +37,8 @@ object CrossdataStatusHelper extends SparkLoggerComponent {
   implicit val timeout: Timeout = Timeout(2.seconds)
 
   private var ephemeralQueryActor: Option[ActorRef] = None
+  // Queries pushed by the query actor every time they change in ZooKeeper
+  @volatile private var ephemeralQueries: Option[Seq[EphemeralQueryModel]] = None
   private var ephemeralStatusActor: Option[ActorRef] = None
 
   def initStatusActor(streamingContext: StreamingContext,
@@ -64,15 +66,18 @@ object CrossdataStatusHelper extends SparkLoggerComponent {
 
     createEphemeralQueryActor(zookeeperConfiguration)
 
-    ephemeralQueryActor.fold(Seq.empty[EphemeralQueryModel]) { queryActorRef =>
-      val futureResult = queryActorRef ? GetQueries
-      Await.result(futureResult, timeout.duration) match {
-        case EphemeralQueriesResponse(queries) =>
-          queries.filter(streamingQueryModel => streamingQueryModel.ephemeralTableName == ephemeralTableName)
-        case _ =>
-          Seq.empty
+    // The actor is only asked until it has pushed the queries for the first time
+    val queries = ephemeralQueries getOrElse {
+      ephemeralQueryActor.fold(Seq.empty[EphemeralQueryModel]) { queryActorRef =>
+        val futureResult = queryActorRef ? GetQueries
+        Await.result(futureResult, timeout.duration) match {
+          case EphemeralQueriesResponse(streamingQueries) => streamingQueries
+          case _ => Seq.empty
+        }
       }
     }
+
+    queries.filter(streamingQueryModel => streamingQueryModel.ephemeralTableName == ephemeralTableName)
   }
 
   def setEphemeralStatus(status: EphemeralExecutionStatus.Value,
@@ -98,7 +103,10 @@ object CrossdataStatusHelper extends SparkLoggerComponent {
     synchronized {
       if (ephemeralQueryActor.isEmpty) {
         Try (
-          actorSystem.actorOf(Props(new EphemeralQueryActor(zookeeperConfiguration)),EphemeralQueryActorName)
+          actorSystem.actorOf(
+            Props(new EphemeralQueryActor(zookeeperConfiguration, queries => ephemeralQueries = Option(queries))),
+            EphemeralQueryActorName
+          )
         ) match {
           case Success(actorRef) =>
             ephemeralQueryActor = Option(actorRef)
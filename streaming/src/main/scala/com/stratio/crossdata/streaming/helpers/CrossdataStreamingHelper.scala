@@ -20,6 +20,7 @@ import com.stratio.common.utils.components.logger.impl.SparkLoggerComponent
 import com.stratio.crossdata.streaming.constants.KafkaConstants._
 import com.stratio.crossdata.streaming.kafka.{KafkaInput, KafkaProducer}
 import com.typesafe.config.{Config, ConfigFactory}
+import org.apache.avro.Schema
 import org.apache.spark.rdd.RDD
 import org.apache.spark.sql.DataFrame
 import org.apache.spark.sql.crossdata.XDContext
@@ -49,7 +50,21 @@ object CrossdataStreamingHelper extends SparkLoggerComponent {
 
     val kafkaOptions = ephemeralTable.options.kafkaOptions
     val kafkaInput = new KafkaInput(kafkaOptions)
-    val kafkaDStream = toWindowDStream(kafkaInput.createStream(streamingContext), ephemeralTable.options)
+    val eventsDStream = toTimedDStream(kafkaInput.createStream(streamingContext))
+    // The direct stream doesn't store the events, the storage level applies to the batches kept by the window
+    val kafkaDStream = toWindowDStream(eventsDStream, ephemeralTable.options)
+      .persist(kafkaInput.storageLevel(kafkaOptions.storageLevel))
+
+    // The panes of the incremental queries are aggregated before the queries of the batch are executed, because the
+    // output operations of a batch are executed in order
+    val incrementalAggregations = new IncrementalAggregations(ephemeralTable)
+    val eventTimeWindows = ephemeralTable.options.eventTime.map(new EventTimeWindows(ephemeralTable, _))
+    eventsDStream.foreachRDD { (rdd, time) =>
+      val ephemeralQueries = CrossdataStatusHelper.queriesFromEphemeralTable(zookeeperConf, ephemeralTable.name)
+      val xdContext = XDContext.getOrCreate(rdd.context, parseCatalogConfig(crossdataCatalogConf))
+      eventTimeWindows.foreach(_.addBatch(rdd, time.milliseconds, xdContext))
+      incrementalAggregations.addBatch(rdd, time.milliseconds, ephemeralQueries, xdContext)
+    }
 
     // DStream.foreachRDD is a method that is executed in the Spark Driver if and when an output action is not called
     // over a RDD. Thus, the value countdowns can be used inside.
@@ -60,25 +75,31 @@ object CrossdataStreamingHelper extends SparkLoggerComponent {
       if (rdd.take(1).length > 0) {
         val ephemeralQueries = CrossdataStatusHelper.queriesFromEphemeralTable(zookeeperConf, ephemeralTable.name)
 
-        if (ephemeralQueries.nonEmpty) {
-          ephemeralQueries.foreach( ephemeralQuery => {
-            val alias = ephemeralQuery.alias
-            if(!countdowns.contains(alias)){
-              countdowns.put(alias, (ephemeralQuery.window / sparkStreamingWindow))
+        eventTimeWindows match {
+          case Some(windows) =>
+            windows.retainQueries(ephemeralQueries)
+            val queryWindows = ephemeralQueries flatMap { ephemeralQuery =>
+              windows.closedWindows(ephemeralQuery).map(window => (ephemeralQuery, window))
             }
-            countdowns.put(alias, countdowns.get(alias).getOrElse(0)-1)
-            logDebug(s"Countdowns: ${countdowns.mkString(", ")}")
-
-            countdowns.get(alias) foreach {
-              case 0 => {
-                countdowns.put(alias, (ephemeralQuery.window / sparkStreamingWindow))
-                logInfo(s"Executing streaming query $alias")
-                executeQuery(rdd, ephemeralQuery, ephemeralTable, kafkaOptions, zookeeperConf, crossdataCatalogConf)
-              }
-              case countdown =>
-                logDebug(s"Current countdown for $alias: $countdown")
+            if (queryWindows.nonEmpty) {
+              executeEventTimeQueries(rdd, queryWindows, windows, ephemeralTable, kafkaOptions, crossdataCatalogConf)
+            }
+
+          case None =>
+            val queriesToExecute = dueQueries(ephemeralQueries, countdowns, sparkStreamingWindow)
+
+            val (incrementalQueries, otherQueries) = queriesToExecute.partition(incrementalAggregations.isIncremental)
+
+            incrementalQueries foreach { ephemeralQuery =>
+              logInfo(s"Executing incremental streaming query ${ephemeralQuery.alias}")
+              executeIncrementalQuery(rdd, ephemeralQuery, incrementalAggregations, ephemeralTable, kafkaOptions,
+                crossdataCatalogConf)
+            }
+
+            // The events of each window are parsed once and shared by all the queries executed over that window
+            otherQueries.groupBy(_.window) foreach { case (window, windowQueries) =>
+              executeQueries(rdd, window, windowQueries, ephemeralTable, kafkaOptions, crossdataCatalogConf)
             }
-          })
         }
       }
     }
@@ -90,44 +111,145 @@ object CrossdataStreamingHelper extends SparkLoggerComponent {
     Try(ConfigFactory.parseMap(catalogConf)).toOption
   }
 
-  private def executeQuery(rdd: RDD[(Long, String)],
-                           ephemeralQuery: EphemeralQueryModel,
-                           ephemeralTable: EphemeralTableModel,
-                           kafkaOptions: KafkaOptionsModel,
-                           zookeeperConf: Map[String, String],
-                           catalogConf: Map[String, String]): Unit = {
+  /**
+   * Updates the countdowns of the queries and returns the ones whose countdown has finished in this batch.
+   */
+  private[streaming] def dueQueries(ephemeralQueries: Seq[EphemeralQueryModel],
+                                    countdowns: collection.mutable.Map[String, Int],
+                                    sparkStreamingWindow: Int): Seq[EphemeralQueryModel] =
+    ephemeralQueries.filter { ephemeralQuery =>
+      val alias = ephemeralQuery.alias
+      if(!countdowns.contains(alias)){
+        countdowns.put(alias, (ephemeralQuery.window / sparkStreamingWindow))
+      }
+      countdowns.put(alias, countdowns.get(alias).getOrElse(0)-1)
+      logDebug(s"Countdowns: ${countdowns.mkString(", ")}")
+
+      countdowns(alias) match {
+        case 0 =>
+          countdowns.put(alias, (ephemeralQuery.window / sparkStreamingWindow))
+          true
+        case countdown =>
+          logDebug(s"Current countdown for $alias: $countdown")
+          false
+      }
+    }
+
+  private def executeQueries(rdd: RDD[(Long, String)],
+                             window: Int,
+                             ephemeralQueries: Seq[EphemeralQueryModel],
+                             ephemeralTable: EphemeralTableModel,
+                             kafkaOptions: KafkaOptionsModel,
+                             catalogConf: Map[String, String]): Unit = {
     val sqlTableName = ephemeralTable.name
-    val query = ephemeralQuery.sql
-    val kafkaOptionsMerged = mergeKafkaOptions(ephemeralQuery, kafkaOptions)
     val xdContext = XDContext.getOrCreate(rdd.context, parseCatalogConfig(catalogConf))
     // TODO add sampling ratio
     val dfReader = xdContext.read
     val dfReaderWithschema = ephemeralTable.schema.map(dfReader.schema).getOrElse(dfReader)
-    val df = dfReaderWithschema.json(filterRddWithWindow(rdd, ephemeralQuery.window))
-    //df.cache()
-    if (df.head(1).length > 0) {
-      df.registerTempTable(sqlTableName)
-      Try {
-        val dataFrame = xdContext.sql(query)
-        val topic = ephemeralQuery.alias
-
-        ephemeralTable.options.outputFormat match {
-          case EphemeralOutputFormat.JSON => saveToKafkaInJSONFormat(dataFrame, topic, kafkaOptionsMerged)
-          case _ => saveToKafkaInRowFormat(dataFrame, topic, kafkaOptionsMerged)
+    val df = dfReaderWithschema.json(filterRddWithWindow(rdd, window))
+    // The events are cached in columnar format, so that the check below and every query read them once parsed
+    df.cache()
+    try {
+      if (df.head(1).length > 0) {
+        df.registerTempTable(sqlTableName)
+        try {
+          ephemeralQueries foreach { ephemeralQuery =>
+            logInfo(s"Executing streaming query ${ephemeralQuery.alias}")
+            executeQuery(xdContext, df, ephemeralQuery, ephemeralTable, kafkaOptions)
+          }
+        } finally {
+          xdContext.dropTempTable(sqlTableName)
         }
-      } match {
-        case Failure(throwable) =>
-          logger.warn(
-            s"""|There are problems executing the ephemeral query: $query
-                |with Schema: ${df.printSchema()}
-                |and the first row is: ${df.show(1)}
-                |Exception message: ${throwable.getMessage}
-                |Exception stackTrace: ${throwable.getStackTraceString}
-           """.stripMargin
-          )
-        case _ =>
       }
-      xdContext.dropTempTable(sqlTableName)
+    } finally {
+      df.unpersist(blocking = false)
+    }
+  }
+
+  private def executeEventTimeQueries(rdd: RDD[(Long, String)],
+                                      queryWindows: Seq[(EphemeralQueryModel, (Long, Long))],
+                                      eventTimeWindows: EventTimeWindows,
+                                      ephemeralTable: EphemeralTableModel,
+                                      kafkaOptions: KafkaOptionsModel,
+                                      catalogConf: Map[String, String]): Unit = {
+    val sqlTableName = ephemeralTable.name
+    val xdContext = XDContext.getOrCreate(rdd.context, parseCatalogConfig(catalogConf))
+    // The events of the batches have already been parsed when they arrived. Otherwise the events received during the
+    // max window are parsed once for all the closed windows
+    val (df, parsedEvents) = eventTimeWindows.windowedEvents.map((_, false)) getOrElse {
+      (eventTimeWindows.parseEvents(rdd, xdContext).cache(), true)
+    }
+    try {
+      queryWindows foreach { case (ephemeralQuery, window @ (start, end)) =>
+        val windowDf = eventTimeWindows.windowEvents(df, window)
+        if (windowDf.head(1).length > 0) {
+          windowDf.registerTempTable(sqlTableName)
+          try {
+            logInfo(s"Executing streaming query ${ephemeralQuery.alias} over the event time window [$start, $end)")
+            executeQuery(xdContext, windowDf, ephemeralQuery, ephemeralTable, kafkaOptions)
+          } finally {
+            xdContext.dropTempTable(sqlTableName)
+          }
+        }
+      }
+    } finally {
+      if (parsedEvents) df.unpersist(blocking = false)
+    }
+  }
+
+  private def executeIncrementalQuery(rdd: RDD[(Long, String)],
+                                      ephemeralQuery: EphemeralQueryModel,
+                                      incrementalAggregations: IncrementalAggregations,
+                                      ephemeralTable: EphemeralTableModel,
+                                      kafkaOptions: KafkaOptionsModel,
+                                      catalogConf: Map[String, String]): Unit = {
+    val xdContext = XDContext.getOrCreate(rdd.context, parseCatalogConfig(catalogConf))
+    saveQueryResult(incrementalAggregations.result(ephemeralQuery, xdContext), ephemeralQuery, ephemeralTable,
+      kafkaOptions) match {
+      case Failure(throwable) =>
+        logger.warn(
+          s"""|There are problems executing the incremental ephemeral query: ${ephemeralQuery.sql}
+              |Exception message: ${throwable.getMessage}
+              |Exception stackTrace: ${throwable.getStackTraceString}
+         """.stripMargin
+        )
+      case _ =>
+    }
+  }
+
+  private def executeQuery(xdContext: XDContext,
+                           df: DataFrame,
+                           ephemeralQuery: EphemeralQueryModel,
+                           ephemeralTable: EphemeralTableModel,
+                           kafkaOptions: KafkaOptionsModel): Unit = {
+    val query = ephemeralQuery.sql
+    saveQueryResult(xdContext.sql(query), ephemeralQuery, ephemeralTable, kafkaOptions) match {
+      case Failure(throwable) =>
+        logger.warn(
+          s"""|There are problems executing the ephemeral query: $query
+              |with Schema: ${df.printSchema()}
+              |and the first row is: ${df.show(1)}
+              |Exception message: ${throwable.getMessage}
+              |Exception stackTrace: ${throwable.getStackTraceString}
+         """.stripMargin
+        )
+      case _ =>
+    }
+  }
+
+  private def saveQueryResult(dataFrame: => DataFrame,
+                              ephemeralQuery: EphemeralQueryModel,
+                              ephemeralTable: EphemeralTableModel,
+                              kafkaOptions: KafkaOptionsModel): Try[Unit] = {
+    val kafkaOptionsMerged = mergeKafkaOptions(ephemeralQuery, kafkaOptions)
+    Try {
+      val topic = ephemeralQuery.alias
+
+      ephemeralTable.options.outputFormat match {
+        case EphemeralOutputFormat.JSON => saveToKafkaInJSONFormat(dataFrame, topic, kafkaOptionsMerged)
+        case EphemeralOutputFormat.AVRO => saveToKafkaInAvroFormat(dataFrame, topic, kafkaOptionsMerged)
+        case _ => saveToKafkaInRowFormat(dataFrame, topic, kafkaOptionsMerged)
+      }
     }
   }
 
@@ -144,20 +266,34 @@ object CrossdataStreamingHelper extends SparkLoggerComponent {
       else None
     }
 
-  private[streaming] def toWindowDStream(inputStream: DStream[(String, String)],
-                                         ephemeralOptions: EphemeralOptionsModel): DStream[(Long, String)] =
-  // TODO window per query?
+  private[streaming] def toTimedDStream(inputStream: DStream[(String, String)]): DStream[(Long, String)] =
     inputStream.mapPartitions { iterator =>
       val dateTime = DateTime.now.getMillis
       iterator.map { case (_, kafkaEvent) => (dateTime, kafkaEvent) }
-    }.window(Seconds(ephemeralOptions.maxWindow), Seconds(ephemeralOptions.atomicWindow))
+    }
+
+  private[streaming] def toWindowDStream(inputStream: DStream[(Long, String)],
+                                         ephemeralOptions: EphemeralOptionsModel): DStream[(Long, String)] =
+  // TODO window per query?
+    inputStream.window(Seconds(ephemeralOptions.maxWindow), Seconds(ephemeralOptions.atomicWindow))
 
   private[streaming] def saveToKafkaInJSONFormat(dataFrame: DataFrame, topic: String, kafkaOptions: KafkaOptionsModel): Unit =
     dataFrame.toJSON.foreachPartition(values =>
-      values.foreach(value => KafkaProducer.put(topic, value, kafkaOptions, kafkaOptions.partitionOutput)))
+      KafkaProducer.putAll(topic, values, kafkaOptions, kafkaOptions.partitionOutput))
 
   private[streaming] def saveToKafkaInRowFormat(dataFrame: DataFrame, topic: String, kafkaOptions: KafkaOptionsModel): Unit =
     dataFrame.rdd.foreachPartition(values =>
-      values.foreach(value =>
-        KafkaProducer.put(topic, value.mkString(","), kafkaOptions, kafkaOptions.partitionOutput)))
+      KafkaProducer.putAll(topic, values.map(_.mkString(",")), kafkaOptions, kafkaOptions.partitionOutput))
+
+  private[streaming] def saveToKafkaInAvroFormat(dataFrame: DataFrame, topic: String, kafkaOptions: KafkaOptionsModel): Unit = {
+    val structType = dataFrame.schema
+    val schema = AvroOutput.avroSchema(structType, topic)
+    val schemaJson = schema.toString
+
+    AvroOutput.publishSchema(topic, schema, kafkaOptions)
+    dataFrame.rdd.foreachPartition { values =>
+      val encode = AvroOutput.encoder(structType, new Schema.Parser().parse(schemaJson))
+      KafkaProducer.putAllBytes(topic, values.map(encode), kafkaOptions, kafkaOptions.partitionOutput)
+    }
+  }
 }
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2015 Stratio (http://stratio.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.crossdata.streaming.helpers
+
+import org.apache.spark.Logging
+import org.apache.spark.rdd.RDD
+import org.apache.spark.sql.crossdata.XDContext
+import org.apache.spark.sql.crossdata.models.{EphemeralQueryModel, EphemeralTableModel, EventTimeModel}
+import org.apache.spark.sql.functions._
+import org.apache.spark.sql.types._
+import org.apache.spark.sql.{Column, DataFrame}
+
+import scala.collection.mutable
+import scala.util.{Failure, Success, Try}
+
+/**
+ * Event time windows of the ephemeral queries of a table with an event time column.
+ *
+ * The watermark is the greatest event time seen minus the allowed lateness. The windows of a query are consecutive
+ * ranges of event time of the size of its window, and a window is closed, and the query executed over its events, when
+ * the watermark passes its end. The events of a window are taken from the events received in the last `maxWindow`
+ * seconds, so `maxWindow` has to cover the window of the queries plus the allowed lateness and the lag of the input.
+ *
+ * Each batch is parsed once: its events are cached for `maxWindow` seconds and used both to advance the watermark and
+ * to execute the queries.
+ */
+private[streaming] class EventTimeWindows(ephemeralTable: EphemeralTableModel, eventTime: EventTimeModel)
+  extends Logging with Serializable {
+
+  import EventTimeWindows._
+
+  private var maxEventTime: Option[Long] = None
+
+  // End of the last closed window of each query
+  private val windowEnds = mutable.Map[EphemeralQueryModel, Long]()
+
+  // Events of the batches received during the max window (None for empty batches). They are not recovered from the
+  // checkpoint
+  @transient private lazy val batches = mutable.Queue[(Long, Option[DataFrame])]()
+
+  def watermark: Option[Long] = maxEventTime.map(_ - eventTime.allowedLateness * 1000L)
+
+  /**
+   * Parses the events of a batch, keeps them for the max window and advances the watermark with their event times.
+   */
+  def addBatch(rdd: RDD[(Long, String)], time: Long, xdContext: XDContext): Unit = {
+    val expiredBatches = batches.dequeueAll { case (batchTime, _) =>
+      batchTime <= time - ephemeralTable.options.maxWindow * 1000L
+    }
+    expiredBatches foreach { case (_, df) => df.foreach(_.unpersist(blocking = false)) }
+
+    if (rdd.isEmpty()) {
+      batches.enqueue((time, None))
+    } else {
+      val df = parseEvents(rdd, xdContext)
+      df.cache()
+      batches.enqueue((time, Some(df)))
+      advanceWatermark(df)
+    }
+  }
+
+  private def advanceWatermark(df: DataFrame): Unit =
+    Try {
+      eventTimeMillis(df, eventTime.column) flatMap { eventTimeColumn =>
+        Option(df.select(max(eventTimeColumn)).head().get(0)).map(_.asInstanceOf[Long])
+      }
+    } match {
+      case Success(batchMaxEventTime) =>
+        batchMaxEventTime.foreach(addEventTime)
+      case Failure(exception) =>
+        logWarning(s"Cannot read the event time ${eventTime.column} of the ephemeral table ${ephemeralTable.name}",
+          exception)
+    }
+
+  private[streaming] def addEventTime(eventTime: Long): Unit =
+    maxEventTime = Some(maxEventTime.fold(eventTime)(math.max(_, eventTime)))
+
+  /**
+   * Windows of a query closed by the watermark since the previous call. The first windows of a query are the ones
+   * which start after the watermark when it is added.
+   */
+  def closedWindows(ephemeralQuery: EphemeralQueryModel): Seq[(Long, Long)] = watermark match {
+    case Some(currentWatermark) =>
+      val windowSize = ephemeralQuery.window * 1000L
+      val lastClosedEnd = math.floor(currentWatermark.toDouble / windowSize).toLong * windowSize
+      val previousEnd = windowEnds.getOrElse(ephemeralQuery, lastClosedEnd)
+      windowEnds.put(ephemeralQuery, math.max(previousEnd, lastClosedEnd))
+
+      (previousEnd until lastClosedEnd by windowSize) map (start => (start, start + windowSize))
+
+    case None => Seq.empty
+  }
+
+  /**
+   * Removes the state of the queries which don't exist any more.
+   */
+  def retainQueries(ephemeralQueries: Seq[EphemeralQueryModel]): Unit =
+    windowEnds.retain { case (query, _) => ephemeralQueries contains query }
+
+  /**
+   * Events received during the max window. None if the batches of the whole max window haven't been kept (e.g. after a
+   * recovery from the checkpoint) or if they have been parsed with different inferred schemas.
+   */
+  def windowedEvents: Option[DataFrame] = {
+    val options = ephemeralTable.options
+    val dfs = batches.flatMap { case (_, df) => df }
+    val wholeWindow = batches.length >= options.maxWindow / options.atomicWindow
+
+    if (wholeWindow && dfs.nonEmpty && dfs.forall(_.schema == dfs.head.schema)) Some(dfs.reduce(_ unionAll _))
+    else None
+  }
+
+  /**
+   * Parses the events of a RDD with the schema of the table, or inferring their schema if the table doesn't have one.
+   */
+  def parseEvents(rdd: RDD[(Long, String)], xdContext: XDContext): DataFrame = {
+    val dfReader = xdContext.read
+    ephemeralTable.schema.map(dfReader.schema).getOrElse(dfReader).json(rdd.map { case (_, event) => event })
+  }
+
+  /**
+   * Events of a window.
+   */
+  def windowEvents(df: DataFrame, window: (Long, Long)): DataFrame = {
+    val (start, end) = window
+    eventTimeMillis(df, eventTime.column).fold(df.limit(0)) { eventTimeColumn =>
+      df.where(eventTimeColumn >= start && eventTimeColumn < end)
+    }
+  }
+
+}
+
+private[streaming] object EventTimeWindows {
+
+  /**
+   * Milliseconds since the epoch of the event time column, which can be a timestamp or a number of milliseconds.
+   * None if the events don't have the column.
+   */
+  def eventTimeMillis(df: DataFrame, column: String): Option[Column] =
+    df.schema.fields.find(_.name == column) map { field =>
+      field.dataType match {
+        case _: NumericType => df(column).cast(LongType)
+        case _ => (df(column).cast(TimestampType).cast(DoubleType) * 1000).cast(LongType)
+      }
+    }
+
+}
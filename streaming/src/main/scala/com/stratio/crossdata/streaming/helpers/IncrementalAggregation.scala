@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2015 Stratio (http://stratio.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.crossdata.streaming.helpers
+
+import org.apache.spark.Logging
+import org.apache.spark.rdd.RDD
+import org.apache.spark.sql.catalyst.expressions._
+import org.apache.spark.sql.catalyst.expressions.aggregate._
+import org.apache.spark.sql.catalyst.plans.logical._
+import org.apache.spark.sql.crossdata.XDContext
+import org.apache.spark.sql.crossdata.catalyst.XDAggregateExpression
+import org.apache.spark.sql.crossdata.models.{EphemeralQueryModel, EphemeralTableModel}
+import org.apache.spark.sql.types._
+import org.apache.spark.sql.{DataFrame, Row}
+
+import scala.collection.mutable
+import scala.util.Try
+
+/**
+ * Incremental execution of the ephemeral queries which aggregate the events with count, sum, avg, min and max.
+ *
+ * The partial aggregates of each batch (pane) are computed once, when the batch arrives, and kept in the driver. The
+ * aggregates of a window are the combination of its panes: when a pane expires, it is subtracted from the totals of the
+ * window (counts and integral or decimal sums) or the totals are combined again from the remaining panes (floating
+ * point sums, avg, min and max). So every event is parsed and aggregated once, whatever the size of the window.
+ *
+ * A query is executed incrementally if its option `incremental` is 'true', its table has a user schema and its windows
+ * are assigned by processing time, and it has a single aggregation without DISTINCT over projections and filters of
+ * the table. Every group of every pane is kept in the driver, so the query is executed over the whole window instead
+ * as soon as a pane has more groups than the query option `incrementalMaxGroups` (10000 by default).
+ */
+private[streaming] class IncrementalAggregations(ephemeralTable: EphemeralTableModel)
+  extends Logging with Serializable {
+
+  import IncrementalAggregation._
+
+  // The state is not recovered from the checkpoint, the aggregations start again with the next batches
+  @transient private lazy val aggregations = mutable.Map[EphemeralQueryModel, Option[IncrementalAggregation]]()
+
+  def isIncremental(ephemeralQuery: EphemeralQueryModel): Boolean =
+    aggregations.get(ephemeralQuery).exists(_.isDefined)
+
+  /**
+   * Adds the pane of a batch to the aggregations of the queries and removes the expired panes.
+   */
+  def addBatch(rdd: RDD[(Long, String)],
+               time: Long,
+               ephemeralQueries: Seq[EphemeralQueryModel],
+               xdContext: XDContext): Unit = {
+
+    val processingTimeWithSchema = ephemeralTable.schema.isDefined && ephemeralTable.options.eventTime.isEmpty
+    val candidateQueries = ephemeralQueries filter { query =>
+      processingTimeWithSchema && Try(query.options(IncrementalOption).toBoolean).getOrElse(false)
+    }
+    aggregations.retain { case (query, _) => candidateQueries contains query }
+
+    val incrementalQueries = candidateQueries.filter(query => aggregations.get(query).forall(_.isDefined))
+
+    if (incrementalQueries.nonEmpty && !rdd.isEmpty()) {
+      val dfReader = xdContext.read
+      val df = ephemeralTable.schema.map(dfReader.schema).getOrElse(dfReader).json(rdd.map(_._2))
+      df.cache()
+      try {
+        df.registerTempTable(ephemeralTable.name)
+        try {
+          incrementalQueries foreach { query =>
+            Try(xdContext.sql(query.sql).queryExecution.analyzed).toOption.flatMap(decompose) match {
+              case Some(decomposition) =>
+                val aggregation = aggregations.get(query).flatten.getOrElse(new IncrementalAggregation)
+                val maxGroups = Try(query.options(IncrementalMaxGroupsOption).toInt).getOrElse(DefaultMaxGroups)
+                if (aggregation.addPane(time, decomposition, maxGroups, xdContext)) {
+                  aggregations.put(query, Some(aggregation))
+                } else {
+                  logInfo(s"The streaming query ${query.alias} has more than $maxGroups groups per batch, it will be " +
+                    "executed over the whole window")
+                  aggregations.put(query, None)
+                }
+              case None =>
+                logInfo(s"The streaming query ${query.alias} will be executed over the whole window")
+                aggregations.put(query, None)
+            }
+          }
+        } finally {
+          xdContext.dropTempTable(ephemeralTable.name)
+        }
+      } finally {
+        df.unpersist(blocking = false)
+      }
+    }
+
+    aggregations foreach { case (query, aggregation) =>
+      val window = math.min(query.window, ephemeralTable.options.maxWindow)
+      aggregation.foreach(_.expirePanes(time - window * 1000))
+    }
+  }
+
+  /**
+   * Result of an incremental query over its current window.
+   */
+  def result(ephemeralQuery: EphemeralQueryModel, xdContext: XDContext): DataFrame =
+    aggregations(ephemeralQuery).get.result(xdContext)
+
+}
+
+/**
+ * Panes of an incremental query and the combination of their partial aggregates.
+ */
+private[streaming] class IncrementalAggregation {
+
+  import IncrementalAggregation._
+
+  private var decomposition: Decomposition = _
+  private val panes = mutable.Queue[(Long, Map[Seq[Any], Array[Any]])]()
+  private val totals = mutable.Map[Seq[Any], Array[Any]]()
+
+  /**
+   * Adds the partial aggregates of a batch unless it has more than `maxGroups` groups.
+   *
+   * @return whether the pane has been added
+   */
+  def addPane(time: Long, currentDecomposition: Decomposition, maxGroups: Int, xdContext: XDContext): Boolean = {
+    decomposition = currentDecomposition
+    val aggregate = decomposition.aggregate
+    val numGroupingExpressions = aggregate.groupingExpressions.length
+
+    val groupingAliases = aggregate.groupingExpressions.zipWithIndex map { case (expression, idx) =>
+      Alias(expression, s"group$idx")()
+    }
+    val partialAliases = decomposition.partials.zipWithIndex map { case (partial, idx) =>
+      Alias(partial.function.toAggregateExpression(), s"partial$idx")()
+    }
+    val partialPlan = Aggregate(aggregate.groupingExpressions, groupingAliases ++ partialAliases, aggregate.child)
+
+    val partialRows = new DataFrame(xdContext, Limit(Literal(maxGroups + 1), partialPlan)).collect()
+
+    if (partialRows.length > maxGroups) {
+      false
+    } else {
+      val pane = partialRows map { row =>
+        val values = row.toSeq
+        (values.take(numGroupingExpressions), values.drop(numGroupingExpressions).toArray)
+      } toMap
+
+      panes.enqueue((time, pane))
+      addToTotals(pane)
+      true
+    }
+  }
+
+  /**
+   * Removes the panes of the batches up to the given time.
+   */
+  def expirePanes(time: Long): Unit = {
+    val expiredPanes = panes.dequeueAll { case (paneTime, _) => paneTime <= time }
+
+    if (expiredPanes.nonEmpty) {
+      if (decomposition.partials.forall(_.invertible)) {
+        expiredPanes foreach { case (_, pane) => subtractFromTotals(pane) }
+      } else {
+        totals.clear()
+        panes foreach { case (_, pane) => addToTotals(pane) }
+      }
+    }
+  }
+
+  /**
+   * Executes the query replacing its aggregation by the aggregates of the window.
+   */
+  def result(xdContext: XDContext): DataFrame = {
+    val aggregate = decomposition.aggregate
+    val finals = decomposition.finals
+
+    val groupAttributes = aggregate.groupingExpressions.zipWithIndex map { case (expression, idx) =>
+      AttributeReference(s"group$idx", expression.dataType, expression.nullable)()
+    }
+    val finalAttributes = finals.zipWithIndex map { case ((aggregateExpression, _), idx) =>
+      AttributeReference(s"aggregate$idx", aggregateExpression.dataType, nullable = true)()
+    }
+    val rows = totals.toSeq map { case (group, partials) =>
+      Row.fromSeq(group ++ finals.map { case (_, finalValue) => finalValue(partials) })
+    }
+    val windowRelation = LocalRelation.fromExternalRows(groupAttributes ++ finalAttributes, rows)
+
+    val outputExpressions = aggregate.aggregateExpressions map { expression =>
+      val windowExpression = expression transformDown {
+        case aggregateExpression @ XDAggregateExpression(_, _) =>
+          finalAttributes(finals.indexWhere { case (finalExpression, _) => finalExpression == aggregateExpression })
+        case groupingExpression if aggregate.groupingExpressions.exists(_.semanticEquals(groupingExpression)) =>
+          groupAttributes(aggregate.groupingExpressions.indexWhere(_.semanticEquals(groupingExpression)))
+      }
+      windowExpression match {
+        case named: NamedExpression if named.exprId == expression.exprId => named
+        case other => Alias(other, expression.name)(exprId = expression.exprId, qualifiers = expression.qualifiers)
+      }
+    }
+
+    val windowPlan = decomposition.plan transformDown {
+      case node if node fastEquals aggregate => Project(outputExpressions, windowRelation)
+    }
+    new DataFrame(xdContext, windowPlan)
+  }
+
+  private def addToTotals(pane: Map[Seq[Any], Array[Any]]): Unit =
+    pane foreach { case (group, partials) =>
+      totals.get(group) match {
+        case Some(current) =>
+          decomposition.partials.zipWithIndex foreach { case (partial, idx) =>
+            current(idx) = combine(partial.combination, current(idx), partials(idx))
+          }
+        case None =>
+          totals.put(group, partials.clone())
+      }
+    }
+
+  private def subtractFromTotals(pane: Map[Seq[Any], Array[Any]]): Unit =
+    pane foreach { case (group, partials) =>
+      totals.get(group) foreach { current =>
+        decomposition.partials.indices foreach { idx =>
+          current(idx) = subtract(current(idx), partials(idx))
+        }
+        if (current(RowCountIndex) == 0L) totals.remove(group)
+      }
+    }
+
+}
+
+private[streaming] object IncrementalAggregation {
+
+  val IncrementalOption = "incremental"
+  val IncrementalMaxGroupsOption = "incrementalMaxGroups"
+  val DefaultMaxGroups = 10000
+
+  // Position of the partial aggregate with the number of rows of each group
+  val RowCountIndex = 0
+
+  /**
+   * How the partial aggregates of several panes are combined.
+   */
+  sealed trait Combination
+  case object Addition extends Combination
+  case object Minimum extends Combination
+  case object Maximum extends Combination
+
+  case class PartialAggregate(function: AggregateFunction, combination: Combination) {
+    // Floating point additions can't be undone: rounding errors accumulate and infinite values turn into NaN
+    def invertible: Boolean = combination == Addition && (function.dataType match {
+      case LongType | _: DecimalType => true
+      case _ => false
+    })
+  }
+
+  /**
+   * Aggregation of an analyzed query decomposed in the partial aggregates of each pane and the final aggregates of the
+   * query, computed from the combined partial aggregates.
+   */
+  case class Decomposition(plan: LogicalPlan,
+                           aggregate: Aggregate,
+                           partials: Seq[PartialAggregate],
+                           finals: Seq[(Expression, Array[Any] => Any)])
+
+  def decompose(plan: LogicalPlan): Option[Decomposition] =
+    plan collect { case aggregate: Aggregate => aggregate } match {
+      case Seq(aggregate) if isRowWise(aggregate.child) =>
+
+        val partials = mutable.ArrayBuffer(PartialAggregate(Count(Literal(1)), Addition))
+
+        def partial(function: AggregateFunction, combination: Combination): Int = {
+          partials += PartialAggregate(function, combination)
+          partials.length - 1
+        }
+
+        val aggregateExpressions = aggregate.aggregateExpressions.flatMap { expression =>
+          expression collect { case aggregateExpression @ XDAggregateExpression(_, _) => aggregateExpression }
+        } distinct
+
+        val finals = aggregateExpressions map {
+          case aggregateExpression @ XDAggregateExpression(Count(children), false) =>
+            val count = partial(Count(children), Addition)
+            Some((aggregateExpression, (values: Array[Any]) => values(count)))
+
+          case aggregateExpression @ XDAggregateExpression(Sum(child), false) =>
+            val sum = partial(Sum(child), Addition)
+            val count = partial(Count(child), Addition)
+            Some((aggregateExpression, (values: Array[Any]) => if (values(count) == 0L) null else values(sum)))
+
+          case aggregateExpression @ XDAggregateExpression(Average(child), false)
+            if aggregateExpression.dataType == DoubleType =>
+            val sum = partial(Sum(Cast(child, DoubleType)), Addition)
+            val count = partial(Count(child), Addition)
+            Some((aggregateExpression, (values: Array[Any]) =>
+              if (values(count) == 0L) null
+              else values(sum).asInstanceOf[Double] / values(count).asInstanceOf[Long]))
+
+          case aggregateExpression @ XDAggregateExpression(Min(child), false) if isComparable(child.dataType) =>
+            val min = partial(Min(child), Minimum)
+            Some((aggregateExpression, (values: Array[Any]) => values(min)))
+
+          case aggregateExpression @ XDAggregateExpression(Max(child), false) if isComparable(child.dataType) =>
+            val max = partial(Max(child), Maximum)
+            Some((aggregateExpression, (values: Array[Any]) => values(max)))
+
+          case _ => None
+        }
+
+        if (finals.forall(_.isDefined)) Some(Decomposition(plan, aggregate, partials, finals.flatten)) else None
+
+      case _ => None
+    }
+
+  // Plans whose result over several panes is the union of their results over each pane
+  private def isRowWise(plan: LogicalPlan): Boolean = plan match {
+    case Project(_, child) => isRowWise(child)
+    case Filter(_, child) => isRowWise(child)
+    case Subquery(_, child) => isRowWise(child)
+    case _: LeafNode => true
+    case _ => false
+  }
+
+  private def isComparable(dataType: DataType): Boolean = dataType match {
+    case _: NumericType | StringType | DateType | TimestampType | BooleanType => true
+    case _ => false
+  }
+
+  def combine(combination: Combination, x: Any, y: Any): Any = combination match {
+    case Addition => add(x, y)
+    case Minimum => if (x == null || (y != null && compare(y, x) < 0)) y else x
+    case Maximum => if (x == null || (y != null && compare(y, x) > 0)) y else x
+  }
+
+  private def compare(x: Any, y: Any): Int = x.asInstanceOf[Comparable[Any]].compareTo(y)
+
+  def add(x: Any, y: Any): Any = (x, y) match {
+    case (null, _) => y
+    case (_, null) => x
+    case (a: Long, b: Long) => a + b
+    case (a: Double, b: Double) => a + b
+    case (a: java.math.BigDecimal, b: java.math.BigDecimal) => a.add(b)
+  }
+
+  /**
+   * Subtracts the partial aggregate of an invertible addition. Null values are the sums of groups without values.
+   */
+  def subtract(x: Any, y: Any): Any = (x, y) match {
+    case (null, _) | (_, null) => x
+    case (a: Long, b: Long) => a - b
+    case (a: java.math.BigDecimal, b: java.math.BigDecimal) => a.subtract(b)
+  }
+
+}
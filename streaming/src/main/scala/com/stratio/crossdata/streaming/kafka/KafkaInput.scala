@@ -24,27 +24,30 @@ import org.apache.spark.streaming.dstream.DStream
 import org.apache.spark.streaming.kafka.KafkaUtils
 import KafkaConstants._
 
+/**
+ * Direct (receiver-less) Kafka input: each batch reads one Spark partition per Kafka partition, and the consumed
+ * offsets are tracked in the streaming checkpoint instead of ZooKeeper.
+ */
 class KafkaInput(options: KafkaOptionsModel) {
 
   def createStream(ssc: StreamingContext): DStream[(String, String)] = {
-    val kafkaParams = options.additionalOptions
-    val connection = Map(getConnection)
+    val kafkaParams = options.additionalOptions.filterKeys(key => !consumerSparkProperties.contains(key))
+    val brokerList = Map(getBrokerList)
     val groupId = Map(getGroupId)
 
-    KafkaUtils.createStream[String, String, StringDecoder, StringDecoder](
+    KafkaUtils.createDirectStream[String, String, StringDecoder, StringDecoder](
       ssc,
-      connection ++ groupId ++ kafkaParams,
-      getTopics,
-      storageLevel(options.storageLevel))
+      brokerList ++ groupId ++ kafkaParams,
+      getTopics.keySet)
   }
 
-  private[streaming] def getConnection : (String, String) = {
+  private[streaming] def getBrokerList : (String, String) = {
 
     val connectionChain = (
-      for(zkConnection <- options.connection.zkConnection) yield (s"${zkConnection.host}:${zkConnection.port}")
+      for(kafkaConnection <- options.connection.kafkaConnection) yield (s"${kafkaConnection.host}:${kafkaConnection.port}")
       ).mkString(",")
 
-    (ZookeeperConnectionKey, if(connectionChain.isEmpty) s"$DefaultHost:$DefaultConsumerPort" else connectionChain)
+    (BrokerListKey, if(connectionChain.isEmpty) s"$DefaultHost:$DefaultProducerPort" else connectionChain)
   }
 
   private[streaming] def getGroupId : (String, String) = (GroupIdKey, options.groupId)
@@ -57,8 +60,17 @@ class KafkaInput(options: KafkaOptionsModel) {
     }
   }
 
+  /**
+   * Spark properties of the rate limiting and backpressure of the direct stream. They have to be set in the SparkConf
+   * before the streaming context is created.
+   */
+  private[streaming] def getSparkProperties : Map[String, String] =
+    options.additionalOptions.collect {
+      case (key, value) if consumerSparkProperties.contains(key) => (consumerSparkProperties(key), value)
+    }
+
   private[streaming] def storageLevel(sparkStorageLevel: String): StorageLevel = {
     StorageLevel.fromString(sparkStorageLevel)
   }
 
-}
\ No newline at end of file
+}
@@ -18,63 +18,97 @@ package com.stratio.crossdata.streaming.kafka
 import java.util.Properties
 
 import com.stratio.crossdata.streaming.constants.KafkaConstants
-import kafka.producer.{KeyedMessage, Producer, ProducerConfig}
+import org.apache.kafka.clients.producer.{Callback, Producer, ProducerRecord, RecordMetadata, KafkaProducer => ClientProducer}
+import org.apache.spark.Logging
 import org.apache.spark.sql.crossdata.models.{ConnectionHostModel, KafkaOptionsModel}
 
 import scala.collection.mutable
 
-object KafkaProducer {
+/**
+ * Asynchronous Kafka producers of the results of the ephemeral queries. The producers are thread-safe, so there is one
+ * per connection and settings in each executor, shared by all its tasks.
+ */
+object KafkaProducer extends Logging {
 
   import KafkaConstants._
 
-  private val producers: mutable.Map[String, Producer[String, String]] = mutable.Map.empty
-
-  def put(topic: String,
-          message: String,
-          options: KafkaOptionsModel,
-          partition: Option[String] = None): Unit = {
-    val keyedMessage = kafkaMessage(topic, message, partition)
+  private val producers: mutable.Map[String, Producer[String, _]] = mutable.Map.empty
+
+  /**
+   * Sends the messages of a partition without waiting for each one, and waits until all of them are acknowledged.
+   */
+  def putAll(topic: String,
+             messages: Iterator[String],
+             options: KafkaOptionsModel,
+             partition: Option[String] = None): Unit =
+    sendAll(getProducer(options), topic, messages, partition)
+
+  /**
+   * Sends binary messages like [[putAll]].
+   */
+  def putAllBytes(topic: String,
+                  messages: Iterator[Array[Byte]],
+                  options: KafkaOptionsModel,
+                  partition: Option[String] = None): Unit =
+    sendAll(getBinaryProducer(options), topic, messages, partition)
+
+  private def sendAll[V](producer: Producer[String, V],
+                         topic: String,
+                         messages: Iterator[V],
+                         partition: Option[String]): Unit = {
+    val pendingMessages = new PendingMessages
+
+    messages foreach { message =>
+      producer.send(kafkaMessage(topic, message, partition), pendingMessages)
+      pendingMessages.sent()
+    }
 
-    sendMessage(keyedMessage, options)
+    pendingMessages.await()
   }
 
-  private[streaming] def kafkaMessage(topic: String,
-                                  message: String,
-                                  partition: Option[String]): KeyedMessage[String, String] = {
-    partition.fold(new KeyedMessage[String, String](topic, message)) { key =>
-      new KeyedMessage[String, String](topic, key, message)
+  private[streaming] def kafkaMessage[V](topic: String,
+                                         message: V,
+                                         partition: Option[String]): ProducerRecord[String, V] = {
+    partition.fold(new ProducerRecord[String, V](topic, message)) { key =>
+      new ProducerRecord[String, V](topic, key, message)
     }
   }
 
-  private[streaming] def sendMessage(message: KeyedMessage[String, String], options: KafkaOptionsModel): Unit = {
-    getProducer(options).send(message)
-  }
+  private[streaming] def getProducer(options: KafkaOptionsModel): Producer[String, String] =
+    getInstance(options, DefaultSerializer)
 
-  private[streaming] def getProducer(options: KafkaOptionsModel): Producer[String, String] = {
-    KafkaProducer.getInstance(getKey(options.connection), options)
-  }
+  private[streaming] def getBinaryProducer(options: KafkaOptionsModel): Producer[String, Array[Byte]] =
+    getInstance(options, BinarySerializer)
 
   private[streaming] def getKey(connection: ConnectionHostModel): String =
     s"ConnectionHostModel([${connection.zkConnection.map(_.toString).mkString(",")}],[${connection.kafkaConnection.map(_.toString).mkString(",")}])"
 
-  private[streaming] def getInstance(key: String, options: KafkaOptionsModel): Producer[String, String] =
-    producers.getOrElse(key, {
-      val producer = createProducer(options)
-      producers.put(key, producer)
-      producer
-    })
+  private[streaming] def getInstance[V](options: KafkaOptionsModel, valueSerializer: String): Producer[String, V] = {
+    val settings = options.additionalOptions.toSeq.sorted.mkString("[", ",", "]")
+    val key = s"${getKey(options.connection)}$valueSerializer$settings"
 
-  private[streaming] def createProducer(options: KafkaOptionsModel): Producer[String, String] = {
+    synchronized {
+      producers.getOrElse(key, {
+        val producer = new ClientProducer[String, V](producerConfig(options, valueSerializer))
+        producers.put(key, producer)
+        producer
+      }).asInstanceOf[Producer[String, V]]
+    }
+  }
+
+  private[streaming] def producerConfig(options: KafkaOptionsModel,
+                                        valueSerializer: String = DefaultSerializer): Properties = {
     val properties = new Properties()
 
-    properties.put(BrokerListKey, getBrokerList(options.connection))
-    properties.put(SerializerKey, DefaultSerializer)
+    properties.put(BootstrapServersKey, getBrokerList(options.connection))
+    properties.put(KeySerializerKey, DefaultSerializer)
+    properties.put(ValueSerializerKey, valueSerializer)
     options.additionalOptions.foreach { case (key, value) =>
       producerProperties.get(key).foreach(kafkaKey => properties.put(kafkaKey, value))
+      ignoredProducerProperties.get(key).foreach(reason => logWarning(s"Ignoring the Kafka option $key: $reason"))
     }
 
-    val producerConfig = new ProducerConfig(properties)
-    new Producer[String, String](producerConfig)
+    properties
   }
 
   private[streaming] def getBrokerList(connection: ConnectionHostModel,
@@ -88,12 +122,35 @@ object KafkaProducer {
     if (connectionStr.isEmpty) s"$defaultHost:$defaultPort" else connectionStr
   }
 
-  private[streaming] def deleteProducers(): Unit = {
-    producers.foreach { case (key, producer) =>
-      producer.close()
-      producers.remove(key)
+  private[streaming] def deleteProducers(): Unit = synchronized {
+    producers.values.foreach(_.close())
+    producers.clear()
+  }
+
+  private[streaming] def size: Int = synchronized(producers.size)
+
+  /**
+   * Number of messages sent and not acknowledged yet, and the first error of the acknowledged ones.
+   */
+  private[streaming] class PendingMessages extends Callback {
+
+    private var pending = 0L
+    private var error: Option[Exception] = None
+
+    def sent(): Unit = synchronized {
+      pending += 1
+    }
+
+    override def onCompletion(metadata: RecordMetadata, exception: Exception): Unit = synchronized {
+      pending -= 1
+      if (exception != null && error.isEmpty) error = Option(exception)
+      notifyAll()
+    }
+
+    def await(): Unit = synchronized {
+      while (pending > 0) wait()
+      error.foreach(exception => throw exception)
     }
   }
 
-  private[streaming] def size: Int = producers.size
 }
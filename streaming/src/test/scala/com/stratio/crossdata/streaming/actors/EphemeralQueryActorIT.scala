@@ -21,6 +21,7 @@ import com.stratio.crossdata.streaming.actors.EphemeralQueryActor._
 import com.stratio.crossdata.streaming.test.CommonValues
 import org.apache.curator.test.TestingServer
 import org.apache.curator.utils.CloseableUtils
+import org.apache.spark.sql.crossdata.models.EphemeralQueryModel
 import org.junit.runner.RunWith
 import org.scalatest.concurrent.TimeLimitedTests
 import org.scalatest.junit.JUnitRunner
@@ -92,5 +93,17 @@ with TimeLimitedTests {
       ephemeralQueryActor ! EphemeralQueryActor.GetQueries
       expectMsg(new EphemeralQueriesResponse(Seq()))
     }
+
+    "push the queries when the listener is added" in new CommonValues {
+
+      @volatile var pushedQueries: Option[Seq[EphemeralQueryModel]] = None
+      val ephemeralQueryActor = _system.actorOf(Props(new EphemeralQueryActor(
+        Map("connectionString" -> zookeeperConnection), queries => pushedQueries = Option(queries))))
+
+      ephemeralQueryActor ! EphemeralQueryActor.AddListener
+      expectMsg(new ListenerResponse(true))
+
+      assert(pushedQueries === Some(Seq()))
+    }
   }
 }
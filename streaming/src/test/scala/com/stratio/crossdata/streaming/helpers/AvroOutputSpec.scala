@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2015 Stratio (http://stratio.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.crossdata.streaming.helpers
+
+import java.nio.{ByteBuffer, ByteOrder}
+
+import com.stratio.crossdata.streaming.test.{BaseStreamingXDTest, CommonValues}
+import org.apache.avro.Schema
+import org.apache.avro.generic.{GenericDatumReader, GenericRecord}
+import org.apache.avro.io.DecoderFactory
+import org.apache.spark.sql.Row
+import org.apache.spark.sql.types._
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+
+import scala.collection.JavaConverters._
+
+@RunWith(classOf[JUnitRunner])
+class AvroOutputSpec extends BaseStreamingXDTest with CommonValues {
+
+  val structType = StructType(Seq(
+    StructField("name", StringType),
+    StructField("count(1)", LongType, nullable = false),
+    StructField("price", DecimalType(10, 2)),
+    StructField("tags", ArrayType(StringType)),
+    StructField("address", StructType(Seq(StructField("city", StringType))))
+  ))
+
+  val row = Row("crossdata", 5L, new java.math.BigDecimal("10.50"), Seq("a", null), Row("Madrid"))
+
+  "AvroOutput" should "convert the column names to avro names" in {
+    AvroOutput.avroName("count(1)") should be("count_1_")
+    AvroOutput.avroName("1column") should be("_1column")
+    AvroOutput.avroName("column") should be("column")
+  }
+
+  it should "create a nullable schema of the nullable columns" in {
+    val schema = AvroOutput.avroSchema(structType, "topic-test")
+
+    schema.getName should be("topic_test")
+    schema.getField("name").schema.getType should be(Schema.Type.UNION)
+    schema.getField("count_1_").schema.getType should be(Schema.Type.LONG)
+  }
+
+  it should "fail with unsupported types" in {
+    an[IllegalArgumentException] should be thrownBy
+      AvroOutput.avroSchema(StructType(Seq(StructField("null", NullType))), "topicTest")
+  }
+
+  it should "encode the rows in the single object encoding" in {
+    val schema = AvroOutput.avroSchema(structType, "topicTest")
+    val message = AvroOutput.encoder(structType, schema)(row)
+
+    message.take(2) should be(AvroOutput.Marker)
+    ByteBuffer.wrap(message, 2, 8).order(ByteOrder.LITTLE_ENDIAN).getLong should be(AvroOutput.fingerprint(schema))
+
+    val decoder = DecoderFactory.get().binaryDecoder(message, 10, message.length - 10, null)
+    val record = new GenericDatumReader[GenericRecord](schema).read(null, decoder)
+
+    record.get("name").toString should be("crossdata")
+    record.get("count_1_") should be(5L)
+    record.get("price").toString should be("10.50")
+    record.get("tags").asInstanceOf[java.util.List[AnyRef]].asScala.map(Option(_).map(_.toString)) should be(
+      Seq(Some("a"), None))
+    record.get("address").asInstanceOf[GenericRecord].get("city").toString should be("Madrid")
+  }
+
+  it should "encode null values" in {
+    val schema = AvroOutput.avroSchema(structType, "topicTest")
+    val message = AvroOutput.encoder(structType, schema)(Row(null, 1L, null, null, null))
+
+    val decoder = DecoderFactory.get().binaryDecoder(message, 10, message.length - 10, null)
+    val record = new GenericDatumReader[GenericRecord](schema).read(null, decoder)
+
+    record.get("name") should be(null)
+    record.get("address") should be(null)
+  }
+
+}
@@ -64,4 +64,17 @@ class CrossdataStreamingHelperSpec extends BaseStreamingXDTest with CommonValues
 
     result should be(expected)
   }
+
+  "Helper" should "return the queries whose window finishes in the batch" in {
+    val countdowns = collection.mutable.Map[String, Int]()
+    val queryEvery5 = queryModel.copy(alias = "every5", window = 5)
+    val queryEvery10 = queryModel.copy(alias = "every10", window = 10)
+    val queries = Seq(queryEvery5, queryEvery10)
+
+    val firstBatch = CrossdataStreamingHelper.dueQueries(queries, countdowns, 5)
+    val secondBatch = CrossdataStreamingHelper.dueQueries(queries, countdowns, 5)
+
+    firstBatch should be(Seq(queryEvery5))
+    secondBatch should be(Seq(queryEvery5, queryEvery10))
+  }
 }
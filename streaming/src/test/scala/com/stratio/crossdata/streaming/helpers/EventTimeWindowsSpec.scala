@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2015 Stratio (http://stratio.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.crossdata.streaming.helpers
+
+import com.stratio.crossdata.streaming.test.{BaseStreamingXDTest, CommonValues}
+import org.apache.spark.sql.crossdata.models.EventTimeModel
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+
+@RunWith(classOf[JUnitRunner])
+class EventTimeWindowsSpec extends BaseStreamingXDTest with CommonValues {
+
+  val eventTime = EventTimeModel("timestamp", 5)
+  val ephemeralTable = ephemeralTableModelWithoutSparkOptions.copy(
+    options = ephemeralOptionsEmptySparkOptions.copy(eventTime = Some(eventTime)))
+  val query = queryModel.copy(window = 5)
+
+  "EventTimeWindows" should "not close windows without watermark" in {
+    val windows = new EventTimeWindows(ephemeralTable, eventTime)
+
+    windows.watermark should be(None)
+    windows.closedWindows(query) should be(Seq.empty)
+  }
+
+  it should "close the windows passed by the watermark" in {
+    val windows = new EventTimeWindows(ephemeralTable, eventTime)
+
+    windows.addEventTime(17000)
+    val firstWindows = windows.closedWindows(query)
+    windows.addEventTime(31000)
+    windows.addEventTime(29000)
+    val nextWindows = windows.closedWindows(query)
+
+    windows.watermark should be(Some(26000L))
+    firstWindows should be(Seq.empty)
+    nextWindows should be(Seq((10000L, 15000L), (15000L, 20000L), (20000L, 25000L)))
+    windows.closedWindows(query) should be(Seq.empty)
+  }
+
+}
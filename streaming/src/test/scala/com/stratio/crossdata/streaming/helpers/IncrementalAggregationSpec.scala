@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2015 Stratio (http://stratio.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.crossdata.streaming.helpers
+
+import com.stratio.crossdata.streaming.helpers.IncrementalAggregation._
+import com.stratio.crossdata.streaming.test.BaseStreamingXDTest
+import org.apache.spark.sql.catalyst.expressions.aggregate.{Average, Count, Max, Sum}
+import org.apache.spark.sql.catalyst.expressions.{Alias, AttributeReference, Cast, Literal}
+import org.apache.spark.sql.catalyst.plans.logical.{Aggregate, Limit, LocalRelation}
+import org.apache.spark.sql.types.{DoubleType, IntegerType, LongType, StringType}
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+
+@RunWith(classOf[JUnitRunner])
+class IncrementalAggregationSpec extends BaseStreamingXDTest {
+
+  val name = AttributeReference("name", StringType)()
+  val price = AttributeReference("price", IntegerType)()
+  val events = LocalRelation(name, price)
+
+  "IncrementalAggregation" should "decompose an aggregation in partial aggregates" in {
+    val plan = Aggregate(Seq(name), Seq(
+      name,
+      Alias(Sum(price).toAggregateExpression(), "total")(),
+      Alias(Average(price).toAggregateExpression(), "average")(),
+      Alias(Max(price).toAggregateExpression(), "maximum")()
+    ), events)
+
+    val decomposition = decompose(plan)
+
+    decomposition should be('defined)
+    decomposition.get.partials should be(Seq(
+      PartialAggregate(Count(Literal(1)), Addition),
+      PartialAggregate(Sum(price), Addition),
+      PartialAggregate(Count(price), Addition),
+      PartialAggregate(Sum(Cast(price, DoubleType)), Addition),
+      PartialAggregate(Count(price), Addition),
+      PartialAggregate(Max(price), Maximum)
+    ))
+    decomposition.get.finals.map(_._2(Array[Any](3L, 30L, 3L, 30.0, 3L, 20))) should be(Seq(30L, 10.0, 20))
+  }
+
+  it should "not decompose distinct aggregates" in {
+    val distinctPrices = Alias(Count(price).toAggregateExpression(isDistinct = true), "prices")()
+    val plan = Aggregate(Seq(name), Seq(distinctPrices), events)
+
+    decompose(plan) should be(None)
+  }
+
+  it should "not decompose aggregations over limited events" in {
+    val prices = Alias(Count(price).toAggregateExpression(), "prices")()
+    val plan = Aggregate(Seq(name), Seq(prices), Limit(Literal(10), events))
+
+    decompose(plan) should be(None)
+  }
+
+  it should "combine and subtract partial aggregates" in {
+    combine(Addition, 2L, 3L) should be(5L)
+    combine(Addition, null, 1.5) should be(1.5)
+    combine(Minimum, "b", "a") should be("a")
+    combine(Maximum, 3, null) should be(3)
+    subtract(BigDecimal("2.5").bigDecimal, BigDecimal("1.0").bigDecimal) should be(BigDecimal("1.5").bigDecimal)
+    subtract(null, null) should be(null.asInstanceOf[Any])
+  }
+
+  it should "only subtract the integral and decimal sums" in {
+    PartialAggregate(Count(price), Addition).invertible should be(true)
+    PartialAggregate(Sum(Cast(price, LongType)), Addition).invertible should be(true)
+    PartialAggregate(Sum(Cast(price, DoubleType)), Addition).invertible should be(false)
+    PartialAggregate(Max(price), Maximum).invertible should be(false)
+  }
+
+}
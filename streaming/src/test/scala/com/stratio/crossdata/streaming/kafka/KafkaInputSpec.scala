@@ -27,16 +27,16 @@ class KafkaInputSpec extends BaseStreamingXDTest with CommonValues {
 
   "KafkaInput" should "return a correct connection" in {
     val input = new KafkaInput(kafkaOptionsModel)
-    val connection = input.getConnection
-    val expected = (ZookeeperConnectionKey, "localhost:2181")
+    val connection = input.getBrokerList
+    val expected = (BrokerListKey, "localhost:9042")
 
     connection should be(expected)
   }
 
   "KafkaInput" should "return a default connection" in {
     val input = new KafkaInput(kafkaOptionsModelEmptyConnection)
-    val connection = input.getConnection
-    val expected = (ZookeeperConnectionKey, "127.0.0.1:2181")
+    val connection = input.getBrokerList
+    val expected = (BrokerListKey, "127.0.0.1:9092")
 
     connection should be(expected)
   }
@@ -69,4 +69,15 @@ class KafkaInputSpec extends BaseStreamingXDTest with CommonValues {
 
     stLevel should be(expected)
   }
+
+  "KafkaInput" should "return the spark properties of the rate limiting and backpressure" in {
+    val options = kafkaOptionsModel.copy(additionalOptions =
+      Map(MaxRatePerPartitionKey -> "1000", BackpressureKey -> "true", "auto.offset.reset" -> "smallest"))
+    val input = new KafkaInput(options)
+    val expected = Map(
+      "spark.streaming.kafka.maxRatePerPartition" -> "1000",
+      "spark.streaming.backpressure.enabled" -> "true")
+
+    input.getSparkProperties should be(expected)
+  }
 }
@@ -16,7 +16,7 @@
 package com.stratio.crossdata.streaming.kafka
 
 import com.stratio.crossdata.streaming.test.{BaseStreamingXDTest, CommonValues}
-import kafka.producer.Producer
+import org.apache.kafka.clients.producer.Producer
 import org.junit.runner.RunWith
 import org.scalatest.junit.JUnitRunner
 
@@ -61,33 +61,66 @@ class KafkaProducerSpec extends BaseStreamingXDTest with CommonValues {
   }
 
   "KafkaProducer" should "return default producer with empty connection" in {
-    val result = KafkaProducer.getProducer(kafkaOptionsModelEmptyConnection).config.brokerList
+    val result = KafkaProducer.producerConfig(kafkaOptionsModelEmptyConnection).getProperty("bootstrap.servers")
     val expected = "127.0.0.1:9092"
 
     result should be(expected)
   }
 
   "KafkaProducer" should "return additional params" in {
-    val result = KafkaProducer.getProducer(kafkaStreamModel).config.props.containsKey("batch.num.messages")
+    val result = KafkaProducer.producerConfig(kafkaStreamModel).containsKey("batch.size")
     val expected = true
 
     result should be(expected)
   }
 
   "KafkaProducer" should "return a correct additional param" in {
-    val result = KafkaProducer.getProducer(kafkaStreamModel).config.props.getString("batch.num.messages")
-    val expected = "100"
+    val result = KafkaProducer.producerConfig(kafkaStreamModel).getProperty("batch.size")
+    val expected = "16384"
 
     result should be(expected)
   }
 
   "KafkaProducer" should "return empty params" in {
-    val result = KafkaProducer.getProducer(kafkaOptionsModel).config.props.containsKey("batch.num.messages")
+    val result = KafkaProducer.producerConfig(kafkaOptionsModel).containsKey("batch.size")
     val expected = false
 
     result should be(expected)
   }
 
+  "KafkaProducer" should "ignore the legacy batch size in messages" in {
+    val legacyOptions = kafkaOptionsModel.copy(additionalOptions = Map("batchSize" -> "100"))
+    val result = KafkaProducer.producerConfig(legacyOptions).containsKey("batch.size")
+    val expected = false
+
+    result should be(expected)
+  }
+
+  "KafkaProducer" should "not pass the consumer params to the producer" in {
+    val result = KafkaProducer.producerConfig(kafkaStreamModel).containsKey("auto.offset.reset")
+    val expected = false
+
+    result should be(expected)
+  }
+
+  "KafkaProducer" should "wait for the pending messages" in {
+    val pendingMessages = new KafkaProducer.PendingMessages
+    pendingMessages.sent()
+    pendingMessages.sent()
+    pendingMessages.onCompletion(null, null)
+    pendingMessages.onCompletion(null, null)
+
+    noException should be thrownBy pendingMessages.await()
+  }
+
+  "KafkaProducer" should "fail when a message is not sent" in {
+    val pendingMessages = new KafkaProducer.PendingMessages
+    pendingMessages.sent()
+    pendingMessages.onCompletion(null, new RuntimeException("Not sent"))
+
+    the[RuntimeException] thrownBy pendingMessages.await() should have message "Not sent"
+  }
+
   "KafkaProducer" should "delete all producers" in {
     val producer = KafkaProducer.getProducer(kafkaOptionsModel)
     KafkaProducer.deleteProducers()
@@ -43,7 +43,7 @@ trait CommonValues extends SparkLoggerComponent{
   val PartitionOutputEmpty = None
   val PartitionOutput = Some("1")
   val additionalOptionsEmpty = Map.empty[String, String]
-  val additionalOptionsStream = Map("auto.offset.reset" -> "smallest", "batchSize" -> "100")
+  val additionalOptionsStream = Map("auto.offset.reset" -> "smallest", "batchSizeBytes" -> "16384")
   val StorageLevel = "MEMORY_ONLY_SER"
   val StorageStreamLevel = "MEMORY_ONLY"
   val connectionHostModel = ConnectionHostModel(